@@ -0,0 +1,156 @@
+/*
+ * AreaSelection.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Works out which tiles to download from the area Settings: the
+ * latitude/longitude box, {@link Settings#BOXES}, {@link Settings#TILES} and
+ * {@link Settings#GEOJSON} all add to the area, which is then widened by
+ * {@link Settings#BUFFER} before {@link Settings#EXCLUDE} is taken out of
+ * it.
+ * 
+ * @author Sean
+ *
+ */
+public final class AreaSelection
+{
+
+	private AreaSelection()
+	{
+		// static only.
+	}
+
+	/**
+	 * @return The tiles selected by the Settings
+	 * @throws IllegalArgumentException If a setting doesn't describe an area
+	 * @throws IOException If the GeoJSON file can't be read
+	 */
+	public static TileSet fromSettings() throws IOException
+	{
+		final TileSet tiles = new TileSet();
+
+		final Settings[] box = { Settings.MIN_LAT, Settings.MIN_LON,
+				Settings.MAX_LAT, Settings.MAX_LON };
+		int given = 0;
+		for (Settings setting : box)
+		{
+			if (isSet(setting))
+			{
+				++given;
+			}
+		}
+		if (given == box.length)
+		{
+			tiles.union(TileSet.box(Settings.MIN_LAT.getIntValue(),
+					Settings.MAX_LAT.getIntValue(),
+					Settings.MIN_LON.getIntValue(),
+					Settings.MAX_LON.getIntValue()));
+		} else if (given != 0)
+		{
+			throw new IllegalArgumentException(
+					"minLatitude, minLongitude, maxLatitude and maxLongitude must all be given for a box");
+		}
+
+		if (isSet(Settings.BOXES))
+		{
+			tiles.union(parseBoxes(Settings.BOXES.getValue()));
+		}
+
+		if (isSet(Settings.TILES))
+		{
+			for (String name : Settings.TILES.getValue().trim()
+					.split("[\\s,]+"))
+			{
+				tiles.add(Tile.parse(name));
+			}
+		}
+
+		if (isSet(Settings.GEOJSON))
+		{
+			tiles.union(GeoJSON.read(Paths.get(Settings.GEOJSON.getValue()
+					.trim())));
+		}
+
+		tiles.buffer(Settings.BUFFER.getIntValue());
+
+		if (isSet(Settings.EXCLUDE))
+		{
+			tiles.difference(parseBoxes(Settings.EXCLUDE.getValue()));
+		}
+		return tiles;
+	}
+
+	/**
+	 * @param boxes minLat,minLon,maxLat,maxLon boxes separated by ;
+	 * @return The tiles in all of them
+	 * @throws IllegalArgumentException If they aren't boxes
+	 */
+	static TileSet parseBoxes(String boxes)
+	{
+		final TileSet tiles = new TileSet();
+		for (String box : boxes.split(";"))
+		{
+			if (box.trim().isEmpty())
+			{
+				continue;
+			}
+			final String[] bounds = box.split(",");
+			if (bounds.length != 4)
+			{
+				throw new IllegalArgumentException("Not a box: " + box);
+			}
+			final int[] values = new int[4];
+			for (int i = 0; i < values.length; ++i)
+			{
+				try
+				{
+					values[i] = Integer.parseInt(bounds[i].trim());
+				} catch (NumberFormatException e)
+				{
+					throw new IllegalArgumentException("Not a box: " + box);
+				}
+			}
+			if (Math.abs(values[0]) > 90 || Math.abs(values[2]) > 90
+					|| Math.abs(values[1]) > 180 || Math.abs(values[3]) > 180)
+			{
+				throw new IllegalArgumentException("Box out of range: " + box);
+			}
+			tiles.union(TileSet.box(values[0], values[2], values[1],
+					values[3]));
+		}
+		return tiles;
+	}
+
+	private static boolean isSet(Settings setting)
+	{
+		return setting.getValue() != null
+				&& !setting.getValue().trim().isEmpty();
+	}
+}
@@ -0,0 +1,524 @@
+/*
+ * DownloadJournal.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records what has become of each tile, so that a later run can skip the
+ * tiles that are done (or aren't on the server) and pick up the ones that
+ * were interrupted.
+ * <p>
+ * The journal is an append-only file of fixed size records (tile, state,
+ * size and CRC32 of the finished file) each with a checksum of it's own, so
+ * a record torn by a crash is spotted and dropped on the next open.
+ * Records are batched up and written with a single fsync once enough have
+ * built up or a second has passed, rather than one per record; losing the
+ * last second of them to a crash only means those tiles are downloaded
+ * again. The state of every tile is kept in memory, a byte each, so asking
+ * what has become of a tile costs an array lookup. A tile that is done is
+ * only as good as it's file, which {@link #isIntact(Tile, Path, boolean)}
+ * checks against the size and CRC32 recorded for it.
+ * <p>
+ * Several processes downloading into the same place may share a journal.
+ * It is opened for appending, and each batch is written while holding a
+ * lock on the file, so the processes' records never interleave; a record
+ * torn by a process that died while writing is cut off before the next
+ * batch goes after it. Replaying and compacting the journal hold the lock
+ * too. Compacting rewrites the file in place, rather than renaming a new
+ * one over it, so the others carry on appending to the same file. The
+ * compacted records are written to a temporary file first, which is
+ * replayed ahead of the journal if a crash leaves it behind.
+ * 
+ * @author Sean
+ *
+ */
+public class DownloadJournal implements Closeable
+{
+
+	private static final Logger LOG = Logger.getLogger(DownloadJournal.class);
+
+	/**
+	 * What has become of a tile. Stored by ordinal, so only ever add to the
+	 * end.
+	 */
+	public enum State
+	{
+		/**
+		 * Not tried, or failed and waiting for another go.
+		 */
+		PENDING,
+
+		/**
+		 * Started but not finished. Found on open, the run was interrupted.
+		 */
+		IN_PROGRESS,
+
+		/**
+		 * Downloaded.
+		 */
+		DONE,
+
+		/**
+		 * Not on the server.
+		 */
+		MISSING
+	}
+
+	private static final State[] STATES = State.values();
+
+	/**
+	 * Tile index (4), state (1), size (8), file hash (4), record check (4).
+	 */
+	private static final int RECORD_BYTES = 21;
+
+	/**
+	 * Records written per fsync at most.
+	 */
+	private static final int BATCH_RECORDS = 256;
+
+	/**
+	 * Longest a record waits to be synced.
+	 */
+	private static final long SYNC_MILLIS = 1000;
+
+	/**
+	 * Superseded records, over the number of live ones, that make opening
+	 * the journal rewrite it.
+	 */
+	private static final int COMPACT_SLACK = 4096;
+
+	private static final ScheduledExecutorService SYNCER = Executors
+			.newSingleThreadScheduledExecutor(r ->
+			{
+				Thread t = new Thread(r, "Journal Sync");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final Path path;
+	/** Where compacted records are written before the journal. */
+	private final Path temp;
+	private final byte[] states = new byte[Tile.COUNT];
+	private final long[] sizes = new long[Tile.COUNT];
+	private final int[] hashes = new int[Tile.COUNT];
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ByteBuffer batch = ByteBuffer.allocate(RECORD_BYTES
+			* BATCH_RECORDS);
+	private final CRC32 check = new CRC32();
+	private FileChannel chan;
+	private ScheduledFuture<?> syncTask;
+	private int interrupted = 0;
+
+	private DownloadJournal(Path path)
+	{
+		this.path = path;
+		this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+	}
+
+	/**
+	 * Opens a journal, replaying whatever is already in it. Tiles left
+	 * {@link State#IN_PROGRESS} by an interrupted run go back to
+	 * {@link State#PENDING}.
+	 * 
+	 * @param path The journal file, created if need be
+	 * @return The journal
+	 * @throws IOException
+	 */
+	public static DownloadJournal open(Path path) throws IOException
+	{
+		DownloadJournal journal = new DownloadJournal(path);
+		journal.replay();
+		journal.syncTask = SYNCER.scheduleWithFixedDelay(() ->
+		{
+			try
+			{
+				journal.sync();
+			} catch (IOException e)
+			{
+				LOG.error("Unable to sync " + path, e);
+			}
+		}, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+		return journal;
+	}
+
+	/**
+	 * @param tile The tile
+	 * @return What has become of it
+	 */
+	public State getState(Tile tile)
+	{
+		return STATES[states[tile.getIndex()]];
+	}
+
+	/**
+	 * Checks that a {@link State#DONE} tile's file is still the one that
+	 * was recorded, before trusting the journal and skipping it.
+	 * 
+	 * @param tile The tile
+	 * @param file It's file
+	 * @param readHash True to read the file back and compare it's CRC32 as
+	 *            well, rather than only it's size
+	 * @return True if the file is there and matches
+	 * @throws IOException If the file can't be read
+	 */
+	public boolean isIntact(Tile tile, Path file, boolean readHash)
+			throws IOException
+	{
+		int index = tile.getIndex();
+		if (states[index] != State.DONE.ordinal() || !Files.isRegularFile(file)
+				|| Files.size(file) != sizes[index])
+		{
+			return false;
+		}
+		if (!readHash)
+		{
+			return true;
+		}
+		CRC32 crc = new CRC32();
+		return checksum(file, crc) == sizes[index]
+				&& (int) crc.getValue() == hashes[index];
+	}
+
+	/**
+	 * @param tile A tile whose download is starting
+	 */
+	public void started(Tile tile)
+	{
+		append(tile, State.IN_PROGRESS, 0, 0);
+	}
+
+	/**
+	 * Records a tile as downloaded, reading it's file back for the hash.
+	 * Call once the file is in it's final place.
+	 * 
+	 * @param tile The tile
+	 * @param file It's file
+	 * @throws IOException If the file can't be read
+	 */
+	public void done(Tile tile, Path file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		long size = checksum(file, crc);
+		append(tile, State.DONE, size, (int) crc.getValue());
+	}
+
+	/**
+	 * @param tile A tile the server doesn't have
+	 */
+	public void missing(Tile tile)
+	{
+		append(tile, State.MISSING, 0, 0);
+	}
+
+	/**
+	 * @param tile A tile whose download failed, to be tried again next run
+	 */
+	public void failed(Tile tile)
+	{
+		append(tile, State.PENDING, 0, 0);
+	}
+
+	/**
+	 * Writes out and fsyncs any records not yet on disk.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (chan == null || batch.position() == 0)
+			{
+				return;
+			}
+			batch.flip();
+			try (FileLock held = chan.lock())
+			{
+				final long torn = chan.size() % RECORD_BYTES;
+				if (torn != 0)
+				{
+					LOG.warn("Dropping a torn record from the end of " + path);
+					chan.truncate(chan.size() - torn);
+				}
+				while (batch.hasRemaining())
+				{
+					chan.write(batch);
+				}
+				chan.force(false);
+			}
+			batch.clear();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		syncTask.cancel(false);
+		lock.lock();
+		try
+		{
+			sync();
+			if (chan != null)
+			{
+				chan.close();
+				chan = null;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		int done = 0;
+		int missing = 0;
+		for (byte state : states)
+		{
+			if (state == State.DONE.ordinal())
+			{
+				++done;
+			} else if (state == State.MISSING.ordinal())
+			{
+				++missing;
+			}
+		}
+		return path + ": " + done + " tiles done, " + missing
+				+ " not available, " + interrupted + " interrupted";
+	}
+
+	private void append(Tile tile, State state, long size, int hash)
+	{
+		int index = tile.getIndex();
+		lock.lock();
+		try
+		{
+			states[index] = (byte) state.ordinal();
+			sizes[index] = size;
+			hashes[index] = hash;
+			if (chan == null)
+			{
+				return;
+			}
+			if (!batch.hasRemaining())
+			{
+				sync();
+			}
+			putRecord(batch, index, state, size, hash);
+		} catch (IOException e)
+		{
+			LOG.error("Unable to write to " + path, e);
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a file through a CRC32.
+	 * 
+	 * @return The number of bytes read
+	 */
+	private static long checksum(Path file, CRC32 crc) throws IOException
+	{
+		long size = 0;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			int num;
+			while ((num = in.read(buf)) != -1)
+			{
+				crc.update(buf.array(), 0, num);
+				size += num;
+				buf.clear();
+			}
+		}
+		return size;
+	}
+
+	private void putRecord(ByteBuffer buf, int index, State state, long size,
+			int hash)
+	{
+		int start = buf.position();
+		buf.putInt(index);
+		buf.put((byte) state.ordinal());
+		buf.putLong(size);
+		buf.putInt(hash);
+		check.reset();
+		check.update(buf.array(), start, RECORD_BYTES - 4);
+		buf.putInt((int) check.getValue());
+	}
+
+	/**
+	 * Reads the journal back into memory, drops a torn tail, and rewrites
+	 * it if it's mostly superseded records. Holds the lock on the journal
+	 * throughout, so that no other process appends to it meanwhile.
+	 */
+	private void replay() throws IOException
+	{
+		chan = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try (FileLock held = chan.lock())
+		{
+			// left by a compaction that didn't finish, and older than
+			// anything in the journal.
+			final boolean unfinished = Files.exists(temp);
+			int records = 0;
+			if (unfinished)
+			{
+				LOG.warn("Finishing an interrupted compaction of " + path);
+				records += replay(temp);
+			}
+			final int kept = replay(path);
+			records += kept;
+			final long good = (long) kept * RECORD_BYTES;
+
+			int live = 0;
+			for (int i = 0; i < Tile.COUNT; ++i)
+			{
+				if (states[i] == State.IN_PROGRESS.ordinal())
+				{
+					states[i] = (byte) State.PENDING.ordinal();
+					++interrupted;
+				}
+				if (states[i] != State.PENDING.ordinal())
+				{
+					++live;
+				}
+			}
+
+			if (unfinished || records > live + COMPACT_SLACK)
+			{
+				compact(live);
+			} else if (chan.size() > good)
+			{
+				chan.truncate(good);
+			}
+		} catch (IOException | RuntimeException e)
+		{
+			chan.close();
+			chan = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the records of a file into memory, up to the first damaged
+	 * one.
+	 * 
+	 * @return The number of good records
+	 */
+	private int replay(Path file) throws IOException
+	{
+		int records = 0;
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+		while (buf.remaining() >= RECORD_BYTES)
+		{
+			int start = buf.position();
+			int index = buf.getInt();
+			int state = buf.get();
+			long size = buf.getLong();
+			int hash = buf.getInt();
+			check.reset();
+			check.update(buf.array(), start, RECORD_BYTES - 4);
+			if (buf.getInt() != (int) check.getValue() || index < 0
+					|| index >= Tile.COUNT || state < 0
+					|| state >= STATES.length)
+			{
+				LOG.warn("Dropping damaged records from " + file
+						+ " after byte " + start);
+				break;
+			}
+			states[index] = (byte) state;
+			sizes[index] = size;
+			hashes[index] = hash;
+			++records;
+		}
+		return records;
+	}
+
+	/**
+	 * Rewrites the journal with one record per tile that isn't pending.
+	 * The records go to a temporary file first, so that a crash while the
+	 * journal is being rewritten loses none of them. Call holding the lock
+	 * on the journal.
+	 */
+	private void compact(int live) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * live);
+		for (int i = 0; i < Tile.COUNT; ++i)
+		{
+			if (states[i] != State.PENDING.ordinal())
+			{
+				putRecord(buf, i, STATES[states[i]], sizes[i], hashes[i]);
+			}
+		}
+		buf.flip();
+		try (FileChannel out = FileChannel.open(temp,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (buf.hasRemaining())
+			{
+				out.write(buf);
+			}
+			out.force(true);
+		}
+
+		buf.rewind();
+		chan.truncate(0);
+		while (buf.hasRemaining())
+		{
+			chan.write(buf);
+		}
+		chan.force(true);
+		Files.delete(temp);
+		LOG.debug("Compacted " + path + " to " + live + " records");
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * DownloadSummary.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of how the tile downloads went, updated as each one
+ * finishes, from any thread.
+ * 
+ * @author Sean
+ *
+ */
+public class DownloadSummary
+{
+
+	private final LongAdder downloaded = new LongAdder();
+	private final LongAdder missing = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder alreadyDone = new LongAdder();
+	private final LongAdder restored = new LongAdder();
+	private final LongAdder fromPeers = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final long start = System.currentTimeMillis();
+
+	/**
+	 * A tile was downloaded.
+	 * 
+	 * @param numBytes The bytes downloaded
+	 */
+	public void downloaded(long numBytes)
+	{
+		downloaded.increment();
+		bytes.add(numBytes);
+	}
+
+	/**
+	 * A tile isn't on the server (most of the globe is ocean).
+	 */
+	public void missing()
+	{
+		missing.increment();
+	}
+
+	/**
+	 * A tile was skipped, an earlier run finished it.
+	 */
+	public void alreadyDone()
+	{
+		alreadyDone.increment();
+	}
+
+	/**
+	 * A tile was copied from the {@link TileStore} rather than downloaded.
+	 */
+	public void restored()
+	{
+		restored.increment();
+	}
+
+	/**
+	 * A tile was fetched from a peer's {@link TileMirror} rather than USGS.
+	 * It is counted as downloaded too.
+	 */
+	public void fromPeer()
+	{
+		fromPeers.increment();
+	}
+
+	/**
+	 * A tile failed.
+	 */
+	public void failed()
+	{
+		failed.increment();
+	}
+
+	/**
+	 * @return The number of tiles that failed
+	 */
+	public long getFailed()
+	{
+		return failed.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.;
+		return "Downloaded " + downloaded.sum() + " tiles ("
+				+ (bytes.sum() / 1024) + " kb in " + seconds + "s, "
+				+ fromPeers.sum() + " from peers), "
+				+ missing.sum() + " not available, " + failed.sum()
+				+ " failed, " + alreadyDone.sum() + " already done, "
+				+ restored.sum() + " from the store";
+	}
+}
@@ -0,0 +1,427 @@
+/*
+ * GeoJSON.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the areas in a GeoJSON (RFC 7946) file into a {@link TileSet}.
+ * <p>
+ * Polygons and multi-polygons (with holes) select the tiles they cover any
+ * of, line strings the tiles they pass through and points the tile they are
+ * in; features, feature collections and geometry collections are searched
+ * for all of them. Positions are [longitude, latitude] in WGS84 degrees, as
+ * GeoJSON has them, and anything after those two is ignored.
+ * <p>
+ * Only as much JSON as that needs is understood, by a small parser of it's
+ * own.
+ * 
+ * @author Sean
+ *
+ */
+public final class GeoJSON
+{
+
+	private GeoJSON()
+	{
+		// static only.
+	}
+
+	/**
+	 * @param file A GeoJSON file
+	 * @return The tiles of the areas in it
+	 * @throws IOException If it can't be read or isn't GeoJSON
+	 */
+	public static TileSet read(Path file) throws IOException
+	{
+		try
+		{
+			return parse(new String(Files.readAllBytes(file),
+					StandardCharsets.UTF_8));
+		} catch (IOException e)
+		{
+			throw new IOException(file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param json GeoJSON text
+	 * @return The tiles of the areas in it
+	 * @throws IOException If it isn't GeoJSON
+	 */
+	public static TileSet parse(String json) throws IOException
+	{
+		final TileSet tiles = new TileSet();
+		addObject(tiles, new Parser(json).parseDocument());
+		return tiles;
+	}
+
+	private static void addObject(TileSet tiles, Object object)
+			throws IOException
+	{
+		if (!(object instanceof Map))
+		{
+			throw new IOException("Expected a GeoJSON object but found "
+					+ object);
+		}
+		final Map<?, ?> map = (Map<?, ?>) object;
+		final Object type = map.get("type");
+		final Object coordinates = map.get("coordinates");
+		if ("FeatureCollection".equals(type))
+		{
+			for (Object feature : list(map.get("features"), "features"))
+			{
+				addObject(tiles, feature);
+			}
+		} else if ("Feature".equals(type))
+		{
+			// a feature without a geometry has no area.
+			if (map.get("geometry") != null)
+			{
+				addObject(tiles, map.get("geometry"));
+			}
+		} else if ("GeometryCollection".equals(type))
+		{
+			for (Object geometry : list(map.get("geometries"), "geometries"))
+			{
+				addObject(tiles, geometry);
+			}
+		} else if ("Polygon".equals(type))
+		{
+			tiles.addPolygon(rings(coordinates));
+		} else if ("MultiPolygon".equals(type))
+		{
+			for (Object polygon : list(coordinates, "coordinates"))
+			{
+				tiles.addPolygon(rings(polygon));
+			}
+		} else if ("LineString".equals(type))
+		{
+			tiles.addLine(positions(coordinates));
+		} else if ("MultiLineString".equals(type))
+		{
+			for (Object line : list(coordinates, "coordinates"))
+			{
+				tiles.addLine(positions(line));
+			}
+		} else if ("Point".equals(type))
+		{
+			tiles.addPoint(position(coordinates));
+		} else if ("MultiPoint".equals(type))
+		{
+			for (double[] point : positions(coordinates))
+			{
+				tiles.addPoint(point);
+			}
+		} else
+		{
+			throw new IOException("Unsupported GeoJSON type: " + type);
+		}
+	}
+
+	private static List<double[][]> rings(Object polygon) throws IOException
+	{
+		final List<double[][]> rings = new ArrayList<>();
+		for (Object ring : list(polygon, "polygon"))
+		{
+			rings.add(positions(ring));
+		}
+		return rings;
+	}
+
+	private static double[][] positions(Object array) throws IOException
+	{
+		final List<?> list = list(array, "positions");
+		final double[][] positions = new double[list.size()][];
+		for (int i = 0; i < positions.length; ++i)
+		{
+			positions[i] = position(list.get(i));
+		}
+		return positions;
+	}
+
+	private static double[] position(Object array) throws IOException
+	{
+		final List<?> list = list(array, "position");
+		if (list.size() < 2 || !(list.get(0) instanceof Double)
+				|| !(list.get(1) instanceof Double))
+		{
+			throw new IOException("Bad position: " + array);
+		}
+		final double lon = (Double) list.get(0);
+		final double lat = (Double) list.get(1);
+		if (lon < -180 || lon > 180 || lat < -90 || lat > 90)
+		{
+			throw new IOException("Position out of range: " + array);
+		}
+		return new double[] { lon, lat };
+	}
+
+	private static List<?> list(Object array, String what) throws IOException
+	{
+		if (!(array instanceof List))
+		{
+			throw new IOException("Expected an array of " + what
+					+ " but found " + array);
+		}
+		return (List<?>) array;
+	}
+
+	/**
+	 * Turns JSON text into Maps, Lists, Strings, Doubles, Booleans and
+	 * nulls.
+	 */
+	private static final class Parser
+	{
+		private final String text;
+		private int pos = 0;
+
+		Parser(String text)
+		{
+			this.text = text;
+		}
+
+		Object parseDocument() throws IOException
+		{
+			final Object value = parseValue();
+			skipWhitespace();
+			if (pos != text.length())
+			{
+				throw error("Unexpected text after the end");
+			}
+			return value;
+		}
+
+		private Object parseValue() throws IOException
+		{
+			skipWhitespace();
+			if (pos >= text.length())
+			{
+				throw error("Unexpected end");
+			}
+			final char c = text.charAt(pos);
+			switch (c)
+			{
+			case '{':
+				return parseObject();
+			case '[':
+				return parseArray();
+			case '"':
+				return parseString();
+			case 't':
+				return literal("true", Boolean.TRUE);
+			case 'f':
+				return literal("false", Boolean.FALSE);
+			case 'n':
+				return literal("null", null);
+			default:
+				return parseNumber();
+			}
+		}
+
+		private Map<String, Object> parseObject() throws IOException
+		{
+			final Map<String, Object> map = new LinkedHashMap<>();
+			++pos;
+			skipWhitespace();
+			if (peek() == '}')
+			{
+				++pos;
+				return map;
+			}
+			while (true)
+			{
+				skipWhitespace();
+				if (peek() != '"')
+				{
+					throw error("Expected a name");
+				}
+				final String name = parseString();
+				skipWhitespace();
+				expect(':');
+				map.put(name, parseValue());
+				skipWhitespace();
+				if (peek() == ',')
+				{
+					++pos;
+				} else
+				{
+					expect('}');
+					return map;
+				}
+			}
+		}
+
+		private List<Object> parseArray() throws IOException
+		{
+			final List<Object> list = new ArrayList<>();
+			++pos;
+			skipWhitespace();
+			if (peek() == ']')
+			{
+				++pos;
+				return list;
+			}
+			while (true)
+			{
+				list.add(parseValue());
+				skipWhitespace();
+				if (peek() == ',')
+				{
+					++pos;
+				} else
+				{
+					expect(']');
+					return list;
+				}
+			}
+		}
+
+		private String parseString() throws IOException
+		{
+			final StringBuilder bld = new StringBuilder();
+			++pos;
+			while (pos < text.length())
+			{
+				final char c = text.charAt(pos++);
+				if (c == '"')
+				{
+					return bld.toString();
+				}
+				if (c != '\\')
+				{
+					bld.append(c);
+					continue;
+				}
+				if (pos >= text.length())
+				{
+					break;
+				}
+				final char escaped = text.charAt(pos++);
+				switch (escaped)
+				{
+				case 'b':
+					bld.append('\b');
+					break;
+				case 'f':
+					bld.append('\f');
+					break;
+				case 'n':
+					bld.append('\n');
+					break;
+				case 'r':
+					bld.append('\r');
+					break;
+				case 't':
+					bld.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > text.length())
+					{
+						throw error("Bad unicode escape");
+					}
+					try
+					{
+						bld.append((char) Integer.parseInt(
+								text.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e)
+					{
+						throw error("Bad unicode escape");
+					}
+					pos += 4;
+					break;
+				default:
+					bld.append(escaped);
+				}
+			}
+			throw error("Unterminated string");
+		}
+
+		private Double parseNumber() throws IOException
+		{
+			final int start = pos;
+			while (pos < text.length()
+					&& "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+			{
+				++pos;
+			}
+			try
+			{
+				return Double.valueOf(text.substring(start, pos));
+			} catch (NumberFormatException e)
+			{
+				pos = start;
+				throw error("Unexpected character");
+			}
+		}
+
+		private Object literal(String word, Object value) throws IOException
+		{
+			if (!text.startsWith(word, pos))
+			{
+				throw error("Unexpected character");
+			}
+			pos += word.length();
+			return value;
+		}
+
+		private void expect(char c) throws IOException
+		{
+			if (peek() != c)
+			{
+				throw error("Expected '" + c + "'");
+			}
+			++pos;
+		}
+
+		private char peek()
+		{
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		private void skipWhitespace()
+		{
+			while (pos < text.length()
+					&& Character.isWhitespace(text.charAt(pos)))
+			{
+				++pos;
+			}
+		}
+
+		private IOException error(String message)
+		{
+			return new IOException(message + " at character " + pos);
+		}
+	}
+}
@@ -26,35 +26,57 @@
  */
 package com.seanmadden.usgs;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.net.HttpCookie;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import com.smmsp.core.net.AdaptiveLimiter;
+import com.smmsp.core.net.CircuitBreaker;
+import com.smmsp.core.net.DNSResolver;
 import com.smmsp.core.net.HTTPConnection;
-import com.smmsp.core.net.HTTPConnection.RequestMethod;
+import com.smmsp.core.net.HTTPConnectionPool;
 import com.smmsp.core.net.HTTPResponse;
+import com.smmsp.core.net.HTTPStatusException;
+import com.smmsp.core.net.NIOHTTPConnection;
+import com.smmsp.core.net.NIOHTTPEngine;
+import com.smmsp.core.net.PartFile;
+import com.smmsp.core.net.RetryPolicy;
+import com.smmsp.core.net.SegmentedDownload;
+import com.smmsp.core.net.Throttle;
+import com.smmsp.core.net.TLSContext;
+import com.smmsp.core.utils.OSAPI;
 
 /**
  * Primary entry point into the program. Downloads a series of SRTM1 DTED data
@@ -82,20 +104,106 @@ public class Main
 	protected static final String LOGIN_URL = "https://earthexplorer.usgs.gov/login";
 
 	/**
-	 * Rentrant Lock for logins
+	 * Hosts every run talks to, resolved up front. Tile downloads are
+	 * redirected to dds.cr.usgs.gov.
 	 */
-	protected static final ReentrantReadWriteLock LOGIN_LOCK = new ReentrantReadWriteLock();
+	protected static final List<String> KNOWN_HOSTS = Arrays.asList(
+			"earthexplorer.usgs.gov", "dds.cr.usgs.gov");
 
 	/**
-	 * Series of cookies grabbed from the Login.
+	 * Concurrent downloads to start with when adapting, doubled from there
+	 * while throughput keeps rising.
 	 */
-	protected static Map<String, String> LOGIN_COOKIES = new HashMap<>();
+	protected static final int INITIAL_CONCURRENCY = 2;
+
+	/**
+	 * Where the login session is saved in the cache directory.
+	 */
+	protected static final String SESSION_FILE = "session.properties";
+
+	/**
+	 * How often the settings file is checked for bandwidth changes.
+	 */
+	protected static final long SETTINGS_POLL_SECONDS = 5;
+
+	/**
+	 * Where tiles are leased when there is no tile store to lease them from.
+	 */
+	protected static final String LEASES_DIR = ".leases";
+
+	/**
+	 * The login session sent with every request.
+	 */
+	protected static SessionManager SESSION;
+
+	/**
+	 * Where the redirects for a tile lead, so later tiles can skip them.
+	 */
+	protected static final RedirectCache REDIRECTS = new RedirectCache();
 
 	/**
 	 * Thread Pool for concurrent downloads
 	 */
 	protected static ExecutorService THREAD_POOL;
 
+	/**
+	 * Fetches the extra byte ranges of segmented downloads
+	 */
+	protected static ExecutorService SEGMENT_POOL;
+
+	/**
+	 * The tiles to download, from the area Settings
+	 */
+	protected static TileSet AREA;
+
+	/**
+	 * The order to download the {@link #AREA} in
+	 */
+	protected static TileOrder ORDER;
+
+	/**
+	 * Records which tiles are done, so that reruns skip them
+	 */
+	protected static DownloadJournal JOURNAL;
+
+	/**
+	 * Downloaded tiles kept for later runs, null if there is none
+	 */
+	protected static TileStore STORE;
+
+	/**
+	 * Leases on the tiles, the {@link #STORE}'s if there is one, so that of
+	 * several processes downloading into the same place only one downloads
+	 * any tile. Null if tiles can't be leased.
+	 */
+	protected static TileLeases LEASES;
+
+	/**
+	 * Serves the {@link #STORE} to other downloaders, null if it isn't
+	 */
+	protected static TileMirror MIRROR;
+
+	/**
+	 * Other downloaders to fetch tiles from before USGS, null if there are
+	 * none
+	 */
+	protected static PeerMirrors PEERS;
+
+	/**
+	 * Non-blocking HTTP engine, only used when {@link Settings#ENGINE} is nio
+	 */
+	protected static NIOHTTPEngine NIO_ENGINE;
+
+	/**
+	 * When to try a failed tile again.
+	 */
+	protected static RetryPolicy RETRY;
+
+	/**
+	 * Runs delayed work: retries on the nio engine and settings reloads.
+	 */
+	protected static ScheduledExecutorService TIMER;
+
 	public static void main(String[] args)
 	{
 		// Default to the INFO level.
@@ -115,23 +223,245 @@ public class Main
 			return;
 		}
 
-		THREAD_POOL = Executors.newFixedThreadPool(
-				Settings.NUM_THREADS.getIntValue(), new ThreadFactory()
-				{
-					int num = 0;
+		try
+		{
+			AREA = AreaSelection.fromSettings();
+			ORDER = TileOrder.fromSettings(AREA);
+		} catch (IllegalArgumentException | IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.out.println();
+			printUsage(System.out);
+			return;
+		}
+		if (AREA.isEmpty() && Settings.MIRROR_PORT.getIntValue() == 0)
+		{
+			System.err.println("No area to download: give a box, boxes, tiles or geojson (or a mirrorPort to only serve)");
+			System.out.println();
+			printUsage(System.out);
+			return;
+		}
+		LOG.info("Selected " + AREA + ", downloading in " + ORDER + " order");
+
+		final String engine = Settings.ENGINE.getValue();
+		ExecutorService virtualThreads = null;
+		if ("virtual".equalsIgnoreCase(engine))
+		{
+			virtualThreads = newVirtualThreadExecutor("Downloader Thread ");
+		}
+		final boolean virtual = virtualThreads != null;
 
-					@Override
-					public Thread newThread(Runnable r)
+		// the most downloads that may run at once.
+		final int maxDownloads;
+		if (virtual)
+		{
+			THREAD_POOL = virtualThreads;
+			SEGMENT_POOL = newVirtualThreadExecutor("Segment Thread ");
+			maxDownloads = Settings.MAX_IN_FLIGHT.getIntValue();
+		} else
+		{
+			THREAD_POOL = Executors.newFixedThreadPool(
+					Settings.NUM_THREADS.getIntValue(), new ThreadFactory()
 					{
-						Thread t = new Thread(r, "Downloader Thread " + num++);
-						t.setDaemon(true);
-						return t;
-					}
-				});
+						int num = 0;
+
+						@Override
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "Downloader Thread "
+									+ num++);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+
+			SEGMENT_POOL = Executors.newCachedThreadPool(new ThreadFactory()
+			{
+				int num = 0;
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Segment Thread " + num++);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			maxDownloads = Settings.NUM_THREADS.getIntValue();
+		}
+
+		// a socket per range per download, plus one for a login.
+		HTTPConnectionPool.getDefault().setMaxPerHost(
+				maxDownloads * Settings.SEGMENTS.getIntValue() + 1);
+
+		HTTPConnection.setConnectTimeoutMillis(Settings.CONNECT_TIMEOUT
+				.getIntValue());
+		HTTPConnection.setReadTimeoutMillis(Settings.READ_TIMEOUT.getIntValue());
+
+		final DNSResolver dns = DNSResolver.getDefault();
+		dns.setTTLMillis(TimeUnit.SECONDS.toMillis(Settings.DNS_TTL
+				.getIntValue()));
+		dns.setSelection("roundRobin".equalsIgnoreCase(Settings.DNS_SELECTION
+				.getValue()) ? DNSResolver.Selection.ROUND_ROBIN
+				: DNSResolver.Selection.FASTEST);
+		dns.preResolve(KNOWN_HOSTS);
+
+		final TLSContext tls;
+		try
+		{
+			tls = new TLSContext(Settings.TLS_SESSION_CACHE_SIZE.getIntValue(),
+					Settings.TLS_SESSION_TIMEOUT.getIntValue());
+		} catch (IOException e)
+		{
+			LOG.error("Unable to set up TLS", e);
+			return;
+		}
+		TLSContext.setDefault(tls);
+
+		SESSION = new SessionManager(LOGIN_URL, Settings.USERNAME.getValue(),
+				Settings.PASSWORD.getValue(), OSAPI.getCacheDirectory()
+						.resolve(SESSION_FILE), TimeUnit.SECONDS
+						.toMillis(Settings.SESSION_MAX_AGE.getIntValue()));
+
+		RETRY = new RetryPolicy(Settings.RETRY_ATTEMPTS.getIntValue(),
+				Settings.RETRY_DELAY.getIntValue(),
+				Settings.RETRY_MAX_DELAY.getIntValue());
+		CircuitBreaker.configure(Settings.BREAKER_FAILURES.getIntValue(),
+				Settings.BREAKER_COOLDOWN.getIntValue());
+
+		applyBandwidthSettings();
+		TIMER = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "Timer");
+			t.setDaemon(true);
+			return t;
+		});
+		TIMER.scheduleWithFixedDelay(() ->
+		{
+			if (Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH,
+					Settings.MAX_CONNECTION_BANDWIDTH))
+			{
+				applyBandwidthSettings();
+			}
+		}, SETTINGS_POLL_SECONDS, SETTINGS_POLL_SECONDS, TimeUnit.SECONDS);
+
+		try
+		{
+			JOURNAL = DownloadJournal.open(Paths.get(Settings.JOURNAL
+					.getValue()));
+		} catch (IOException e)
+		{
+			LOG.error("Unable to open the download journal", e);
+			return;
+		}
+		LOG.info(JOURNAL);
+
+		if (Settings.STORE_SIZE.getIntValue() > 0)
+		{
+			try
+			{
+				STORE = TileStore.open(Paths.get(Settings.STORE.getValue()),
+						Settings.STORE_SIZE.getIntValue() * 1024L * 1024L,
+						Settings.MEMORY_CACHE_SIZE.getIntValue() * 1024L * 1024L);
+				LOG.info(STORE);
+			} catch (IOException e)
+			{
+				LOG.error("Unable to open the tile store, downloading without it",
+						e);
+			}
+		}
+		try
+		{
+			LEASES = STORE != null ? STORE.getLeases() : new TileLeases(
+					Paths.get(LEASES_DIR));
+		} catch (IOException e)
+		{
+			LOG.warn("Unable to lease tiles, downloading without leases", e);
+		}
+
+		if (Settings.MIRROR_PORT.getIntValue() > 0)
+		{
+			if (STORE == null)
+			{
+				LOG.warn("Not mirroring, there is no tile store to serve");
+			} else
+			{
+				try
+				{
+					MIRROR = TileMirror.start(STORE,
+							Settings.MIRROR_PORT.getIntValue());
+					Runtime.getRuntime().addShutdownHook(
+							new Thread(MIRROR::stop, "Mirror Shutdown"));
+					LOG.info(MIRROR);
+				} catch (IOException e)
+				{
+					LOG.error("Unable to serve the tile store on port "
+							+ Settings.MIRROR_PORT.getIntValue(), e);
+				}
+			}
+		}
+		PEERS = PeerMirrors.fromSettings();
+		if (PEERS != null)
+		{
+			LOG.info(PEERS);
+		}
 
-		downloadAllFilesThreaded();
+		if ("nio".equalsIgnoreCase(engine))
+		{
+			try
+			{
+				NIO_ENGINE = new NIOHTTPEngine(
+						Settings.SELECTOR_THREADS.getIntValue());
+				NIO_ENGINE.setConnectTimeoutMillis(Settings.CONNECT_TIMEOUT
+						.getIntValue());
+				NIO_ENGINE.setReadTimeoutMillis(Settings.READ_TIMEOUT
+						.getIntValue());
+			} catch (IOException e)
+			{
+				LOG.error("Unable to start the nio engine", e);
+				return;
+			}
+			downloadAllFilesNIO();
+			NIO_ENGINE.shutdown();
+		} else
+		{
+			downloadAllFilesThreaded(maxDownloads);
+		}
 
+		TIMER.shutdown();
 		THREAD_POOL.shutdown();
+		SEGMENT_POOL.shutdown();
+		HTTPConnectionPool.getDefault().closeIdle();
+		try
+		{
+			JOURNAL.close();
+		} catch (IOException e)
+		{
+			LOG.error("Unable to close the download journal", e);
+		}
+		if (PEERS != null)
+		{
+			LOG.info(PEERS);
+		}
+		if (MIRROR != null)
+		{
+			LOG.info(MIRROR + ", serving until stopped");
+			try
+			{
+				MIRROR.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			LOG.info(MIRROR);
+		}
+		if (STORE != null)
+		{
+			LOG.info(STORE);
+			closeQuietly(STORE);
+		}
+		LOG.info(REDIRECTS);
+		LOG.info(tls);
 	}
 
 	/**
@@ -172,133 +502,528 @@ public class Main
 	}
 
 	/**
-	 * Download all files as described by Settings in a multi-threaded manner
+	 * Download all files in the {@link #AREA}, in the {@link #ORDER}, in a
+	 * multi-threaded manner.
+	 * Tiles are only handed to the pool as the {@link AdaptiveLimiter}
+	 * allows, so maxDownloads ({@link Settings#NUM_THREADS}, or
+	 * {@link Settings#MAX_IN_FLIGHT} on virtual threads) is the most that run
+	 * (or wait in the pool's queue) at once, and the tiles still to come cost
+	 * nothing but their key in the order. Results are handled in the order
+	 * downloads finish, so one slow tile doesn't hold up the rest.
+	 * 
+	 * @param maxDownloads The most downloads to run at once
 	 */
-	private static void downloadAllFilesThreaded()
+	private static void downloadAllFilesThreaded(int maxDownloads)
 	{
-		int minLat = Settings.MIN_LAT.getIntValue();
-		int maxLat = Settings.MAX_LAT.getIntValue();
-		int minLon = Settings.MIN_LON.getIntValue();
-		int maxLon = Settings.MAX_LON.getIntValue();
+		final AdaptiveLimiter limiter = newLimiter(maxDownloads);
+		final CompletionService<Long> completed = new ExecutorCompletionService<>(
+				THREAD_POOL);
+		final Map<Future<Long>, Tile> running = new HashMap<>();
+		final DownloadSummary summary = new DownloadSummary();
 
-		int startLat = Math.min(minLat, maxLat);
-		int endLat = Math.max(minLat, maxLat);
-		int startLon = Math.min(minLon, maxLon);
-		int endLon = Math.max(minLon, maxLon);
-
-		List<Future<Void>> futures = new LinkedList<>();
-
-		for (int lat = startLat; lat <= endLat; ++lat)
+		try
 		{
-			for (int lon = startLon; lon <= endLon; ++lon)
+			forEachTileToDownload(summary, (tile, lease) ->
+			{
+				final AdaptiveLimiter.Permit permit = limiter.acquire();
+				JOURNAL.started(tile);
+				running.put(completed.submit(new SingleDownloaderCallable(tile,
+						permit, lease, summary)), tile);
+
+				// deal with whatever finished while we waited for the permit.
+				Future<Long> result;
+				while ((result = completed.poll()) != null)
+				{
+					handleResult(running.remove(result), result, summary);
+				}
+			});
+			while (!running.isEmpty())
 			{
-				futures.add(THREAD_POOL.submit(new SingleDownloaderCallable(
-						lat, lon)));
+				Future<Long> result = completed.take();
+				handleResult(running.remove(result), result, summary);
 			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted with " + running.size()
+					+ " downloads running", e);
+		}
+
+		LOG.info(summary);
+	}
+
+	/**
+	 * Records a finished download from the thread pool.
+	 * 
+	 * @param tile The tile it downloaded
+	 * @param result It's finished future
+	 * @param summary The totals to add it to
+	 * @throws InterruptedException
+	 */
+	private static void handleResult(Tile tile, Future<Long> result,
+			DownloadSummary summary) throws InterruptedException
+	{
+		try
+		{
+			handleResult(tile, result.get(), null, summary);
+		} catch (ExecutionException e)
+		{
+			handleResult(tile, 0, e.getCause(), summary);
 		}
+	}
 
-		futures.forEach(future ->
+	/**
+	 * Records a finished download, as soon as it finishes.
+	 * 
+	 * @param tile The tile it downloaded
+	 * @param bytes The bytes downloaded, 0 if there was no file
+	 * @param failure Why it failed, or null
+	 * @param summary The totals to add it to
+	 */
+	private static void handleResult(Tile tile, long bytes, Throwable failure,
+			DownloadSummary summary)
+	{
+		Throwable t = failure;
+		while (t instanceof CompletionException && t.getCause() != null)
 		{
-			try
+			t = t.getCause();
+		}
+		if (t == null)
+		{
+			if (bytes > 0)
 			{
-				future.get();
-			} catch (InterruptedException | ExecutionException e)
+				// journaled as done once it's file was in place.
+				summary.downloaded(bytes);
+			} else
 			{
-				LOG.error("Unexpected error downloading file", e);
+				// the redirects ended somewhere other than a tile, which
+				// isn't to say the server doesn't have it.
+				LOG.error("No file was downloaded for tile " + tile);
+				JOURNAL.failed(tile);
+				summary.failed();
 			}
-		});
+		} else if (t instanceof HTTPStatusException
+				&& ((HTTPStatusException) t).getResponseCode() == 404)
+		{
+			LOG.debug("Tile " + tile + " is not available");
+			JOURNAL.missing(tile);
+			summary.missing();
+		} else
+		{
+			LOG.error("Unable to download tile " + tile, t);
+			JOURNAL.failed(tile);
+			summary.failed();
+		}
 	}
 
 	/**
-	 * 0. Does a double-checking synchronize against the Login lock to ensure
-	 * that we're the only thread waiting to LOGIN 1. Makes an initial request
-	 * to the /login to grab the PHPSESSID cookie 2. Makes a POST to the /login
-	 * with the username + password + cookies to get the last session cookies 3.
-	 * Saves the Session cookies in {@link #LOGIN_COOKIES}
+	 * Download all files in the {@link #AREA}, in the {@link #ORDER}, on the
+	 * non-blocking engine.
+	 * The thread pool is only used for logins and to start each hop, so the
+	 * number of downloads in flight is bounded by
+	 * {@link Settings#MAX_IN_FLIGHT} rather than the number of threads, and
+	 * is adapted below that as for {@link #downloadAllFilesThreaded(int)}.
 	 */
-	private static void getLoginCookies()
+	private static void downloadAllFilesNIO()
 	{
+		final AdaptiveLimiter limiter = newLimiter(Settings.MAX_IN_FLIGHT
+				.getIntValue());
+		final DownloadSummary summary = new DownloadSummary();
+		// a party per download running, plus this thread.
+		final Phaser running = new Phaser(1);
+
+		try
+		{
+			forEachTileToDownload(summary, (tile, lease) ->
+			{
+				final AdaptiveLimiter.Permit permit = limiter.acquire();
+				JOURNAL.started(tile);
+				running.register();
+				final boolean[] fromPeer = new boolean[1];
+				fetchFromPeersAsync(tile, summary).thenCompose(fetched ->
+				{
+					fromPeer[0] = fetched > 0;
+					return fromPeer[0] ? CompletableFuture.completedFuture(fetched)
+							: downloadWithRetriesAsync(tile, 1);
+				}).handle(
+						(bytes, t) ->
+						{
+							closeQuietly(lease);
+							if (fromPeer[0])
+							{
+								// says nothing about USGS.
+								permit.close();
+							} else
+							{
+								report(permit, bytes == null ? 0 : bytes, t);
+							}
+							handleResult(tile, bytes == null ? 0 : bytes, t,
+									summary);
+							running.arriveAndDeregister();
+							return null;
+						});
+			});
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOG.error("Interrupted queueing downloads", e);
+		}
+
+		running.arriveAndAwaitAdvance();
+		LOG.info(summary);
+	}
 
-		if (!LOGIN_LOCK.isWriteLocked())
+	/**
+	 * Walks the tiles of the {@link #AREA} in {@link #ORDER}, skipping those
+	 * already finished or in the {@link #STORE}, and starts downloading the
+	 * rest. Each is leased first, so that of several processes sharing the
+	 * store or the download directory only one downloads any tile. Tiles
+	 * another process has the lease on are put off to the end, by when it
+	 * has usually finished them, and then waited for.
+	 * 
+	 * @param summary The totals to count skipped tiles in
+	 * @param download Starts a download, which must close the lease when it
+	 *            finishes
+	 * @throws InterruptedException
+	 */
+	private static void forEachTileToDownload(DownloadSummary summary,
+			TileDownload download) throws InterruptedException
+	{
+		// tiles another process has, and when their files last changed.
+		final Map<Tile, Long> deferred = new LinkedHashMap<>();
+		for (Tile tile : ORDER.order(AREA))
 		{
-			synchronized (LOGIN_LOCK)
+			if (isAlreadyDone(tile))
+			{
+				summary.alreadyDone();
+				continue;
+			}
+			if (restoreFromStore(tile, summary))
+			{
+				continue;
+			}
+			TileLeases.Lease lease = null;
+			if (LEASES != null)
 			{
-				if (!LOGIN_LOCK.isWriteLocked())
+				try
+				{
+					lease = LEASES.tryLease(tile);
+					if (lease == null)
+					{
+						deferred.put(tile, lastModified(tile));
+						continue;
+					}
+				} catch (IOException e)
 				{
-					LOGIN_LOCK.writeLock().lock();
+					LOG.warn("Unable to lease " + tile + ", downloading it anyway",
+							e);
 				}
 			}
+			startDownload(tile, lease, summary, download);
 		}
-		if (!LOGIN_LOCK.isWriteLockedByCurrentThread())
+
+		if (!deferred.isEmpty())
 		{
-			return;
+			LOG.info("Waiting on " + deferred.size()
+					+ " tiles another process is downloading");
 		}
-		try
+		for (Map.Entry<Tile, Long> entry : deferred.entrySet())
 		{
-			LOG.info("Attempting login...");
-			HTTPConnection conn = new HTTPConnection(LOGIN_URL);
+			final Tile tile = entry.getKey();
+			TileLeases.Lease lease = null;
+			try
+			{
+				lease = LEASES.lease(tile);
+			} catch (IOException e)
+			{
+				if (Thread.interrupted())
+				{
+					throw new InterruptedException("Interrupted waiting for "
+							+ tile);
+				}
+				LOG.warn("Unable to lease " + tile + ", downloading it anyway", e);
+			}
+			if (lastModified(tile) != entry.getValue())
+			{
+				// the other process finished it while we waited.
+				closeQuietly(lease);
+				adoptDownloaded(tile, summary);
+				continue;
+			}
+			startDownload(tile, lease, summary, download);
+		}
+	}
 
-			Map<String, String> cookies = grabAllCookiesFromRequest(conn);
+	/**
+	 * @param tile A tile
+	 * @return When it's file was last changed, -1 if it isn't there
+	 */
+	private static long lastModified(Tile tile)
+	{
+		try
+		{
+			return Files.getLastModifiedTime(Paths.get(tile.getFileName()))
+					.toMillis();
+		} catch (IOException e)
+		{
+			return -1;
+		}
+	}
 
-			conn = new HTTPConnection(LOGIN_URL, RequestMethod.POST);
-			conn.addFormField("username", Settings.USERNAME.getValue());
-			conn.addFormField("password", Settings.PASSWORD.getValue());
-			conn.addFormField("rememberMe", "1");
-			conn.addFormField("submit", "");
+	/**
+	 * Records a tile another process downloaded into the same place as
+	 * done, rather than downloading it again.
+	 * 
+	 * @param tile The tile
+	 * @param summary The totals to count it in
+	 */
+	private static void adoptDownloaded(Tile tile, DownloadSummary summary)
+	{
+		final Path target = Paths.get(tile.getFileName());
+		try
+		{
+			JOURNAL.done(tile, target);
+		} catch (IOException e)
+		{
+			LOG.warn("Unable to record " + target + " as done", e);
+		}
+		LOG.info(target + " was downloaded by another process");
+		summary.alreadyDone();
+	}
 
-			for (String value : cookies.keySet())
+	/**
+	 * Checks the {@link #JOURNAL} for a tile that needn't be fetched again.
+	 * One it has as downloaded only counts while it's file is still there
+	 * and the size it was (and with {@link Settings#VERIFY_TILES}, has the
+	 * same CRC32). Otherwise it goes back to pending, to be restored from
+	 * the store or downloaded again.
+	 * 
+	 * @param tile The tile
+	 * @return True to skip it
+	 */
+	private static boolean isAlreadyDone(Tile tile)
+	{
+		switch (JOURNAL.getState(tile))
+		{
+		case MISSING:
+			return true;
+		case DONE:
+			final Path target = Paths.get(tile.getFileName());
+			try
+			{
+				if (JOURNAL.isIntact(tile, target, Boolean
+						.parseBoolean(Settings.VERIFY_TILES.getValue())))
+				{
+					return true;
+				}
+			} catch (IOException e)
 			{
-				LOGIN_COOKIES.put(value, cookies.get(value));
+				LOG.warn("Unable to check " + target, e);
 			}
-			addCookies(conn);
+			LOG.warn(target + " is missing or has changed since it was "
+					+ "downloaded, fetching it again");
+			JOURNAL.failed(tile);
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a download holding it's lease, unless the tile was stored by
+	 * another process while we weren't holding it.
+	 */
+	private static void startDownload(Tile tile, TileLeases.Lease lease,
+			DownloadSummary summary, TileDownload download)
+			throws InterruptedException
+	{
+		if (lease != null && restoreFromStore(tile, summary))
+		{
+			closeQuietly(lease);
+			return;
+		}
+		download.start(tile, lease);
+	}
 
-			cookies = grabAllCookiesFromRequest(conn);
-			for (String value : cookies.keySet())
+	/**
+	 * Copies a tile out of the {@link #STORE} rather than downloading it, if
+	 * it's there.
+	 * 
+	 * @param tile The tile
+	 * @param summary The totals to count it in
+	 * @return True if it was restored
+	 */
+	private static boolean restoreFromStore(Tile tile, DownloadSummary summary)
+	{
+		if (STORE == null)
+		{
+			return false;
+		}
+		final Path target = Paths.get(tile.getFileName());
+		try
+		{
+			if (!STORE.restore(tile, target))
 			{
-				LOGIN_COOKIES.put(value, cookies.get(value));
+				return false;
 			}
+			JOURNAL.done(tile, target);
+		} catch (IOException e)
+		{
+			LOG.warn("Unable to restore " + target + " from the tile store", e);
+			return false;
+		}
+		LOG.info("Restored " + target + " from the tile store");
+		summary.restored();
+		return true;
+	}
 
-		} catch (MalformedURLException e)
+	/**
+	 * Keeps a downloaded tile in the {@link #STORE}, if there is one.
+	 * 
+	 * @param tile The tile
+	 * @param file It's file
+	 */
+	private static void keepInStore(Tile tile, Path file)
+	{
+		if (STORE == null)
+		{
+			return;
+		}
+		try
 		{
-			e.printStackTrace();
-		} finally
+			STORE.put(tile, file);
+		} catch (IOException e)
 		{
-			LOGIN_LOCK.writeLock().unlock();
+			LOG.warn("Unable to keep " + file + " in the tile store", e);
 		}
-
 	}
 
 	/**
-	 * Pulls all of the cookies in the request and returns them in a Key:Value
-	 * pairing
+	 * Fetches a tile from the {@link #PEERS} rather than USGS, if one of them
+	 * has it.
 	 * 
-	 * @param conn The connection to pull cookies form
-	 * @return A Key:Value map for all cookie values
+	 * @param tile The tile
+	 * @param summary The totals to count it in
+	 * @return The bytes fetched, 0 if no peer had it
+	 * @throws IOException If it was fetched but couldn't be journaled
 	 */
-	private static Map<String, String> grabAllCookiesFromRequest(
-			HTTPConnection conn)
+	private static long fetchFromPeers(Tile tile, DownloadSummary summary)
+			throws IOException
 	{
-		HTTPResponse response = conn.getResponse();
-
-		Map<String, List<String>> headers = response.getResponseHeaders();
-
-		if (!headers.containsKey("Set-Cookie"))
+		if (PEERS == null)
 		{
-			return null;
+			return 0;
+		}
+		final Path target = Paths.get(tile.getFileName());
+		final long bytes = PEERS.fetch(tile, target);
+		if (bytes > 0)
+		{
+			JOURNAL.done(tile, target);
+			keepInStore(tile, target);
+			summary.fromPeer();
 		}
+		return bytes;
+	}
 
-		List<String> cookies = headers.get("Set-Cookie");
-		Map<String, String> parsedCookies = new HashMap<>();
-		for (String cookie : cookies)
+	/**
+	 * {@link #fetchFromPeers(Tile, DownloadSummary)} on the
+	 * {@link #THREAD_POOL}, for the non-blocking engine.
+	 */
+	private static CompletableFuture<Long> fetchFromPeersAsync(Tile tile,
+			DownloadSummary summary)
+	{
+		if (PEERS == null)
 		{
-			List<HttpCookie> parse = HttpCookie.parse(cookie);
-			for (HttpCookie httpCookie : parse)
+			return CompletableFuture.completedFuture(0L);
+		}
+		return CompletableFuture.supplyAsync(() ->
+		{
+			try
+			{
+				return fetchFromPeers(tile, summary);
+			} catch (IOException e)
 			{
-				parsedCookies.put(httpCookie.getName(), httpCookie.getValue());
+				throw new UncheckedIOException(e);
 			}
+		}, THREAD_POOL);
+	}
+
+	/**
+	 * Caps download bandwidth as {@link Settings#MAX_BANDWIDTH} and
+	 * {@link Settings#MAX_CONNECTION_BANDWIDTH} say, from now on.
+	 */
+	private static void applyBandwidthSettings()
+	{
+		Throttle.setGlobalBytesPerSecond(Settings.MAX_BANDWIDTH.getIntValue());
+		Throttle.setConnectionBytesPerSecond(Settings.MAX_CONNECTION_BANDWIDTH
+				.getIntValue());
+	}
+
+	/**
+	 * @param max The most downloads to ever run at once
+	 * @return A limiter that adapts up to max, or stays at it if
+	 *         {@link Settings#ADAPTIVE_CONCURRENCY} is off
+	 */
+	private static AdaptiveLimiter newLimiter(int max)
+	{
+		if (Boolean.parseBoolean(Settings.ADAPTIVE_CONCURRENCY.getValue()))
+		{
+			return new AdaptiveLimiter(INITIAL_CONCURRENCY, 1, max);
+		}
+		return new AdaptiveLimiter(max, max, max);
+	}
+
+	/**
+	 * Makes an executor that starts a new virtual thread for each task, so
+	 * that every download (with all of it's hops and logins) blocks on it's
+	 * own thread for next to no memory. Virtual threads need Java 21, and
+	 * this builds with an older target, so they are found reflectively.
+	 * 
+	 * @param name Prefix for the thread names
+	 * @return The executor, or null if the JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String name)
+	{
+		try
+		{
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtual = builder.getMethod("name", String.class, long.class)
+					.invoke(virtual, name, 0L);
+			final ThreadFactory factory = (ThreadFactory) builder.getMethod(
+					"factory").invoke(virtual);
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+					null, factory);
+		} catch (ReflectiveOperationException e)
+		{
+			LOG.warn("Virtual threads need Java 21 or later, using "
+					+ Settings.NUM_THREADS.getIntValue()
+					+ " platform threads instead");
+			return null;
+		}
+	}
 
+	/**
+	 * Tells the limiter how a download went. Throttling and network
+	 * failures shrink the limit, anything else that failed (a missing tile)
+	 * says nothing about capacity.
+	 * 
+	 * @param permit The download's permit, released here
+	 * @param bytes How many bytes were downloaded
+	 * @param failure Why it failed, or null
+	 */
+	private static void report(AdaptiveLimiter.Permit permit, long bytes,
+			Throwable failure)
+	{
+		if (failure == null)
+		{
+			permit.success(bytes);
+		} else if (RetryPolicy.isTransient(failure))
+		{
+			permit.dropped();
 		}
-		return parsedCookies;
+		permit.close();
 	}
 
 	/**
@@ -337,136 +1062,587 @@ public class Main
 	 * until we get to the file (*.dt2) -- If a redirect passes you to /login
 	 * again, attempts login. - Downloads that file to the current directory.
 	 * 
-	 * @param lat
-	 * @param lon
+	 * Starts wherever {@link #REDIRECTS} says the redirects lead, if it
+	 * knows, and from the beginning if not or if that was wrong.
+	 * 
+	 * @param tile The tile to download
+	 * @return The number of bytes downloaded, 0 if there was no file
+	 * @throws IOException If the download failed
 	 */
-	protected static void downloadSingleFile(int lat, int lon)
+	protected static long downloadSingleFile(Tile tile) throws IOException
 	{
-		String URL = makeFileName(lat, lon);
-		LOG.debug("Attempting download of file: " + URL);
-		try
+		final String predicted = REDIRECTS.predict(tile);
+		if (predicted != null)
 		{
-			HTTPConnection conn = new HTTPConnection(URL);
-			while (true)
+			try
 			{
-				Lock readLock = LOGIN_LOCK.readLock();
-				readLock.lock();
-				try
+				return downloadSingleFile(tile, predicted);
+			} catch (HTTPStatusException e)
+			{
+				if (!isRedirectMiss(e))
 				{
-					addCookies(conn);
+					throw e;
+				}
+				REDIRECTS.miss(tile, predicted);
+			}
+		}
+		return downloadSingleFile(tile, makeFileName(tile.getLat(),
+				tile.getLon()));
+	}
 
-					String fileName = null;
+	/**
+	 * Downloads a tile starting from a given URL.
+	 * 
+	 * @param tile The tile to download
+	 * @param URL Where to start
+	 * @return The number of bytes downloaded, 0 if there was no file
+	 * @throws IOException If the download failed
+	 */
+	protected static long downloadSingleFile(Tile tile, String URL)
+			throws IOException
+	{
+		LOG.debug("Attempting download of file: " + URL);
+		// where we've been sent, for REDIRECTS.
+		final List<String> hops = new ArrayList<>();
+		if (!URL.equals(makeFileName(tile.getLat(), tile.getLon())))
+		{
+			hops.add(URL);
+		}
+		long downloaded = 0;
+		HTTPConnection conn = new HTTPConnection(URL);
+		// the session a login gave us, if we had to log in.
+		SessionManager.Session loggedIn = null;
+		while (true)
+		{
+			final CircuitBreaker breaker = CircuitBreaker.forHost(conn.getURL()
+					.getHost());
+			try
+			{
+				breaker.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for "
+						+ conn.getURL().getHost());
+			}
 
-					long startTime = System.currentTimeMillis();
-					if (URL.contains(".dt2"))
-					{
-						fileName = URL.substring(URL.lastIndexOf('/') + 1,
-								URL.indexOf(".dt2") + 4);
+			final SessionManager.Session session = SESSION.current();
+			session.addTo(conn);
 
-						LOG.info("Starting download of " + fileName);
+			String fileName = null;
+			PartFile part = null;
 
-					}
+			long startTime = System.currentTimeMillis();
+			if (URL.contains(".dt2"))
+			{
+				fileName = URL.substring(URL.lastIndexOf('/') + 1,
+						URL.indexOf(".dt2") + 4);
+				part = new PartFile(new File(fileName).toPath());
+				part.addResumeHeaders(conn);
+				if (isSegmented(part))
+				{
+					SegmentedDownload.addProbeHeaders(conn);
+				}
 
-					HTTPResponse response = conn.getResponse();
-					LOG.debug("Got response code: "
-							+ response.getResponseCode());
+				LOG.info("Starting download of " + fileName);
 
-					Map<String, List<String>> headers = response
-							.getResponseHeaders();
-					if (headers.containsKey("Location"))
-					{
-						URL = headers.get("Location").get(0);
+			}
 
-						if (URL.startsWith("/login"))
-						{
-							if (!LOGIN_LOCK.isWriteLocked())
-							{
-								readLock.unlock();
-								getLoginCookies();
-								readLock.lock();
-							}
-							continue;
-						}
+			boolean needsLogin = false;
+			try (HTTPResponse response = conn.getResponse())
+			{
+				if (response == null)
+				{
+					// the reason has already been logged.
+					final Exception cause = conn.getFailure();
+					if (RetryPolicy.isTransient(cause))
+					{
+						breaker.failure(-1);
+					}
+					throw new IOException("No response from "
+							+ conn.getURL().getHost(), cause);
+				}
+				final int code = response.getResponseCode();
+				final String retryAfter = response.getHeaders().getFirst(
+						"Retry-After");
+				recordResponse(breaker, code, retryAfter);
+				LOG.debug("Got response code: " + code);
 
+				final String location = response.getHeaders().getFirst(
+						"Location");
+				if (location != null)
+				{
+					if (location.startsWith("/login"))
+					{
+						// log in once this response has given it's
+						// connection back to the pool.
+						needsLogin = true;
+					} else
+					{
+						URL = location;
 						LOG.debug("Redirecting to: " + URL);
+						hops.add(URL);
 						conn = new HTTPConnection(URL);
 						continue;
 					}
+				} else if (part == null && code >= 400)
+				{
+					throw new HTTPStatusException(code,
+							"Unexpected response code " + code + " from "
+									+ URL, retryAfter);
+				}
 
-					if (URL.contains(".dt2"))
+				// a redirect to the login page has no tile to write.
+				if (part != null && !needsLogin)
+				{
+					long numBytes;
+					if (isSegmented(part))
+					{
+						numBytes = new SegmentedDownload(conn,
+								Settings.SEGMENTS.getIntValue(), SEGMENT_POOL)
+								.download(response, part);
+					} else
 					{
-						long numBytes = Files.copy(response.getStream(),
-								new File(fileName).toPath(),
-								StandardCopyOption.REPLACE_EXISTING);
-
-						long deltaMillis = System.currentTimeMillis()
-								- startTime;
-						double avgSpeed = (numBytes / 1024.)
-								/ (deltaMillis / 1000.);
-						LOG.info("Finished download of " + fileName
-								+ " avg speed of " + avgSpeed + " kb/s");
+						numBytes = part.write(response);
 					}
-				} finally
-				{
-					readLock.unlock();
+					part.complete();
+					JOURNAL.done(tile, part.getTarget());
+					keepInStore(tile, part.getTarget());
+					REDIRECTS.learn(tile, hops);
+					downloaded = numBytes;
+
+					long deltaMillis = System.currentTimeMillis() - startTime;
+					double avgSpeed = (numBytes / 1024.)
+							/ (deltaMillis / 1000.);
+					LOG.info("Finished download of " + fileName
+							+ " avg speed of " + avgSpeed + " kb/s");
 				}
+			}
 
-				break;
+			if (needsLogin)
+			{
+				if (session == loggedIn)
+				{
+					throw new HTTPStatusException(401, "Login as "
+							+ Settings.USERNAME.getValue()
+							+ " was not accepted");
+				}
+				loggedIn = SESSION.refresh(session);
+				continue;
 			}
 
-		} catch (IOException e)
+			break;
+		}
+
+		return downloaded;
+	}
+
+	/**
+	 * Should this file be fetched as several concurrent byte ranges? Only
+	 * when segments are configured and there is no partial download to
+	 * resume instead.
+	 * 
+	 * @param part The file being downloaded
+	 * @return True for a segmented download
+	 */
+	private static boolean isSegmented(PartFile part)
+	{
+		return Settings.SEGMENTS.getIntValue() > 1 && part.getOffset() == 0;
+	}
+
+	/**
+	 * @param failure Why a download that skipped it's redirects failed
+	 * @return True if it was turned away in a way the full chain of
+	 *         redirects might not be (any 4xx but 429)
+	 */
+	private static boolean isRedirectMiss(Throwable failure)
+	{
+		final Throwable t = RetryPolicy.unwrap(failure);
+		if (!(t instanceof HTTPStatusException))
+		{
+			return false;
+		}
+		final int code = ((HTTPStatusException) t).getResponseCode();
+		return code / 100 == 4 && code != 429;
+	}
+
+	/**
+	 * Tells a host's breaker whether it answered.
+	 * 
+	 * @param breaker The host's breaker
+	 * @param code The response code
+	 * @param retryAfter The Retry-After header, may be null
+	 */
+	private static void recordResponse(CircuitBreaker breaker, int code,
+			String retryAfter)
+	{
+		if (HTTPStatusException.isThrottling(code))
 		{
-			LOG.error(e, e);
+			breaker.failure(HTTPStatusException.parseRetryAfter(retryAfter));
+		} else if (code / 100 == 3)
+		{
+			breaker.redirected();
+		} else
+		{
+			breaker.success();
 		}
 	}
 
 	/**
-	 * Adds all the Login Cookies to the HTTP connection specified by CONN
+	 * Downloads a tile on the non-blocking engine, trying again as
+	 * {@link #RETRY} says if it fails.
 	 * 
-	 * @param conn
+	 * @param tile The tile to download
+	 * @param attempt This attempt, from 1
+	 * @return The number of bytes downloaded, once the file has been
+	 *         downloaded (or has failed for good)
 	 */
-	private static void addCookies(HTTPConnection conn)
+	private static CompletableFuture<Long> downloadWithRetriesAsync(
+			final Tile tile, final int attempt)
 	{
-		StringBuffer buf = new StringBuffer();
-		Iterator<String> rator = LOGIN_COOKIES.keySet().iterator();
-		while (rator.hasNext())
+		return downloadSingleFileAsync(tile).handle((bytes, t) ->
 		{
-			String key = rator.next();
-			buf.append(key);
-			buf.append("=");
-			buf.append(LOGIN_COOKIES.get(key));
-			if (rator.hasNext())
+			if (t == null)
+			{
+				return CompletableFuture.completedFuture(bytes);
+			}
+			final long delay = RETRY.nextDelayMillis(attempt, t);
+			if (delay < 0)
 			{
-				buf.append("; ");
+				return Main.<Long> failedFuture(t);
 			}
+			logRetry(tile, attempt, delay, t);
+			return after(delay).thenCompose(
+					v -> downloadWithRetriesAsync(tile, attempt + 1));
+		}).thenCompose(result -> result);
+	}
+
+	/**
+	 * @param tile The tile that failed
+	 * @param attempt The attempt that failed
+	 * @param delay Milliseconds until the next
+	 * @param failure Why it failed
+	 */
+	private static void logRetry(Tile tile, int attempt, long delay,
+			Throwable failure)
+	{
+		LOG.warn("Attempt " + attempt + " of " + RETRY.getMaxAttempts()
+				+ " at tile " + tile + " failed (" + RetryPolicy.unwrap(failure)
+				+ "), trying again in " + delay + "ms");
+	}
+
+	/**
+	 * @param millis How long to wait
+	 * @return Completes on {@link #TIMER} once the time is up
+	 */
+	private static CompletableFuture<Void> after(long millis)
+	{
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		TIMER.schedule(() -> done.complete(null), millis,
+				TimeUnit.MILLISECONDS);
+		return done;
+	}
+
+	/**
+	 * @param failure Why it failed
+	 * @return A future that has already failed
+	 */
+	private static <T> CompletableFuture<T> failedFuture(Throwable failure)
+	{
+		final CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(failure);
+		return failed;
+	}
+
+	/**
+	 * The non-blocking version of {@link #downloadSingleFile(Tile)}.
+	 * 
+	 * @param tile The tile to download
+	 * @return The number of bytes downloaded, once the file has been
+	 *         downloaded (or has failed)
+	 */
+	protected static CompletableFuture<Long> downloadSingleFileAsync(Tile tile)
+	{
+		final String start = makeFileName(tile.getLat(), tile.getLon());
+		final String predicted = REDIRECTS.predict(tile);
+		if (predicted == null)
+		{
+			LOG.debug("Attempting download of file: " + start);
+			return requestAsync(tile, start, null, new ArrayList<>());
 		}
 
-		conn.addHeader("Cookie", buf.toString());
+		LOG.debug("Attempting download of file: " + predicted);
+		final List<String> hops = new ArrayList<>();
+		hops.add(predicted);
+		return requestAsync(tile, predicted, null, hops).handle(
+				(bytes, t) ->
+				{
+					if (t == null)
+					{
+						return CompletableFuture.completedFuture(bytes);
+					}
+					if (!isRedirectMiss(t))
+					{
+						return Main.<Long> failedFuture(t);
+					}
+					REDIRECTS.miss(tile, predicted);
+					return requestAsync(tile, start, null,
+							new ArrayList<String>());
+				}).thenCompose(result -> result);
 	}
 
 	/**
-	 * Calls downloadSingleFile in a concurrent manner.
+	 * Makes a single hop on the non-blocking engine, then follows it's
+	 * redirect (logging in first if it points at /login). A *.dt2 body is
+	 * written to the current directory straight from the selector thread.
+	 * 
+	 * @param tile The tile being downloaded
+	 * @param URL The URL for this hop
+	 * @param loggedIn The session a login gave this download, null if it
+	 *            hasn't had to log in
+	 * @param hops Where the download has been sent so far, for
+	 *            {@link #REDIRECTS}
+	 * @return The bytes downloaded, once the last hop has finished
+	 */
+	private static CompletableFuture<Long> requestAsync(final Tile tile,
+			final String URL, final SessionManager.Session loggedIn,
+			final List<String> hops)
+	{
+		final NIOHTTPConnection conn;
+		try
+		{
+			conn = new NIOHTTPConnection(NIO_ENGINE, URL);
+		} catch (MalformedURLException e)
+		{
+			return failedFuture(e);
+		}
+
+		final CircuitBreaker breaker = CircuitBreaker.forHost(conn.getURL()
+				.getHost());
+		final long wait = breaker.delayMillis();
+		if (wait > 0)
+		{
+			return after(wait).thenCompose(
+					v -> requestAsync(tile, URL, loggedIn, hops));
+		}
+
+		final SessionManager.Session session = SESSION.current();
+		session.addTo(conn);
+
+		final String fileName;
+		final PartFile part;
+		if (URL.contains(".dt2"))
+		{
+			fileName = URL.substring(URL.lastIndexOf('/') + 1,
+					URL.indexOf(".dt2") + 4);
+			part = new PartFile(new File(fileName).toPath());
+			part.addResumeHeaders(conn);
+			LOG.info("Starting download of " + fileName);
+		} else
+		{
+			fileName = null;
+			part = null;
+		}
+
+		final long startTime = System.currentTimeMillis();
+		final WritableByteChannel[] out = new WritableByteChannel[1];
+		final boolean[] answered = new boolean[1];
+		return conn.execute((code, headers) ->
+		{
+			answered[0] = true;
+			recordResponse(breaker, code, headers.getFirst("Retry-After"));
+			if (part == null || headers.contains("Location"))
+			{
+				return null;
+			}
+			out[0] = part.open(code, headers);
+			return out[0];
+		}).whenComplete((result, t) ->
+		{
+			closeQuietly(out[0]);
+			if (t != null && !answered[0] && RetryPolicy.isTransient(t))
+			{
+				breaker.failure(-1);
+			}
+		}).thenComposeAsync(
+				result ->
+				{
+					LOG.debug("Got response code: "
+							+ result.getResponseCode());
+
+					final String next = result.getHeaders().getFirst(
+							"Location");
+					if (next != null)
+					{
+						if (next.startsWith("/login"))
+						{
+							if (session == loggedIn)
+							{
+								return failedFuture(new HTTPStatusException(
+										401, "Login as "
+												+ Settings.USERNAME.getValue()
+												+ " was not accepted"));
+							}
+							return SESSION.refreshAsync(session, THREAD_POOL)
+									.thenCompose(
+											fresh -> requestAsync(tile, URL,
+													fresh, hops));
+						}
+
+						LOG.debug("Redirecting to: " + next);
+						hops.add(next);
+						return requestAsync(tile, next, loggedIn, hops);
+					}
+
+					if (part == null)
+					{
+						if (result.getResponseCode() >= 400)
+						{
+							return failedFuture(new HTTPStatusException(result
+									.getResponseCode(), "Unexpected response code "
+									+ result.getResponseCode() + " from " + URL,
+									result.getHeaders().getFirst("Retry-After")));
+						}
+						return CompletableFuture.completedFuture(0L);
+					}
+					try
+					{
+						part.complete();
+						JOURNAL.done(tile, part.getTarget());
+						keepInStore(tile, part.getTarget());
+						REDIRECTS.learn(tile, hops);
+					} catch (IOException e)
+					{
+						throw new UncheckedIOException(e);
+					}
+					long deltaMillis = System.currentTimeMillis() - startTime;
+					double avgSpeed = (result.getBodyLength() / 1024.)
+							/ (deltaMillis / 1000.);
+					LOG.info("Finished download of " + fileName
+							+ " avg speed of " + avgSpeed + " kb/s");
+					return CompletableFuture.completedFuture(result
+							.getBodyLength());
+				}, THREAD_POOL);
+	}
+
+	/**
+	 * Closes a file, logging rather than throwing any error.
+	 * 
+	 * @param closeable The file to close, may be null
+	 */
+	private static void closeQuietly(Closeable closeable)
+	{
+		if (closeable == null)
+		{
+			return;
+		}
+		try
+		{
+			closeable.close();
+		} catch (IOException e)
+		{
+			LOG.error("Error closing " + closeable, e);
+		}
+	}
+
+	/**
+	 * Calls downloadSingleFile in a concurrent manner, trying again as
+	 * {@link #RETRY} says if it fails, and reporting how it went to the
+	 * download's permit before the result is handed on. A download that only
+	 * worked after being throttled is reported as throttled. The
+	 * {@link #PEERS} are asked first, and a tile one of them sent isn't
+	 * reported, it says nothing about USGS.
 	 * 
 	 * @author Sean
 	 *
 	 */
-	protected static class SingleDownloaderCallable implements Callable<Void>
+	protected static class SingleDownloaderCallable implements Callable<Long>
 	{
-		private int lat;
-		private int lon;
+		private Tile tile;
+		private AdaptiveLimiter.Permit permit;
+		private TileLeases.Lease lease;
+		private DownloadSummary summary;
 
-		public SingleDownloaderCallable(int lat, int lon)
+		public SingleDownloaderCallable(Tile tile,
+				AdaptiveLimiter.Permit permit, TileLeases.Lease lease,
+				DownloadSummary summary)
 		{
-			this.lat = lat;
-			this.lon = lon;
+			this.tile = tile;
+			this.permit = permit;
+			this.lease = lease;
+			this.summary = summary;
 		}
 
 		@Override
-		public Void call()
+		public Long call() throws IOException
 		{
-			downloadSingleFile(lat, lon);
-			return null;
+			long bytes = 0;
+			// the last failure, even if a retry then worked.
+			Throwable failure = null;
+			boolean fromPeer = false;
+			try
+			{
+				bytes = fetchFromPeers(tile, summary);
+				if (bytes > 0)
+				{
+					fromPeer = true;
+					return bytes;
+				}
+				for (int attempt = 1;; ++attempt)
+				{
+					try
+					{
+						bytes = downloadSingleFile(tile);
+						return bytes;
+					} catch (IOException e)
+					{
+						failure = e;
+						final long delay = RETRY.nextDelayMillis(attempt, e);
+						if (delay < 0)
+						{
+							throw e;
+						}
+						logRetry(tile, attempt, delay, e);
+						try
+						{
+							Thread.sleep(delay);
+						} catch (InterruptedException ie)
+						{
+							Thread.currentThread().interrupt();
+							throw e;
+						}
+					}
+				}
+			} catch (IOException | RuntimeException e)
+			{
+				failure = e;
+				throw e;
+			} finally
+			{
+				closeQuietly(lease);
+				if (fromPeer)
+				{
+					permit.close();
+				} else
+				{
+					report(permit, bytes, failure);
+				}
+			}
 		}
 
 	}
+
+	/**
+	 * Starts downloading a tile.
+	 */
+	private interface TileDownload
+	{
+		/**
+		 * @param tile The tile
+		 * @param lease It's lease, to close once it's done, null if none
+		 * @throws InterruptedException
+		 */
+		void start(Tile tile, TileLeases.Lease lease)
+				throws InterruptedException;
+	}
 }
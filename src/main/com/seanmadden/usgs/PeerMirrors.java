@@ -0,0 +1,211 @@
+/*
+ * PeerMirrors.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.smmsp.core.net.CircuitBreaker;
+import com.smmsp.core.net.HTTPConnection;
+import com.smmsp.core.net.HTTPResponse;
+import com.smmsp.core.net.HTTPStatusException;
+
+/**
+ * Other downloaders' {@link TileMirror}s, asked for each tile before it is
+ * downloaded from USGS so that only tiles none of them have cross the WAN.
+ * <p>
+ * Peers are asked in the order they were given. One that doesn't answer
+ * opens it's host's {@link CircuitBreaker}, and is passed over (rather than
+ * waited for) until the breaker lets a probe through, so a peer that is
+ * down costs a connect timeout now and then rather than on every tile.
+ * 
+ * @author Sean
+ *
+ */
+public class PeerMirrors
+{
+
+	private static final Logger LOG = Logger.getLogger(PeerMirrors.class);
+
+	/** host:port of each peer. */
+	private final List<String> peers;
+	private final LongAdder fetched = new LongAdder();
+	private final LongAdder asked = new LongAdder();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param peers host:port of each peer, in the order to ask them
+	 */
+	public PeerMirrors(List<String> peers)
+	{
+		this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+	}
+
+	/**
+	 * @return The peers in {@link Settings#PEERS}, or null if there are none
+	 */
+	public static PeerMirrors fromSettings()
+	{
+		final String value = Settings.PEERS.getValue();
+		if (value == null)
+		{
+			return null;
+		}
+		final List<String> peers = new ArrayList<>();
+		for (String peer : value.split("[\\s,]+"))
+		{
+			if (!peer.isEmpty())
+			{
+				peers.add(peer);
+			}
+		}
+		return peers.isEmpty() ? null : new PeerMirrors(peers);
+	}
+
+	/**
+	 * Fetches a tile from the first peer that has it.
+	 * 
+	 * @param tile The tile
+	 * @param target Where to put it's file, replaced if it exists
+	 * @return The size of the file, or 0 if no peer could send it
+	 */
+	public long fetch(Tile tile, Path target)
+	{
+		for (String peer : peers)
+		{
+			final String host = peer.substring(0, peer.lastIndexOf(':'));
+			final CircuitBreaker breaker = CircuitBreaker.forHost(host);
+			if (breaker.delayMillis() > 0)
+			{
+				continue;
+			}
+			asked.increment();
+			try
+			{
+				final long size = fetch(peer, breaker, tile, target);
+				if (size > 0)
+				{
+					LOG.info("Fetched " + target + " from " + peer);
+					fetched.increment();
+					return size;
+				}
+			} catch (IOException e)
+			{
+				LOG.warn("Unable to fetch " + target + " from " + peer, e);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Asks one peer for a tile.
+	 * 
+	 * @return The size of the file, or 0 if the peer doesn't have it
+	 * @throws IOException If the peer failed to send it
+	 */
+	private long fetch(String peer, CircuitBreaker breaker, Tile tile,
+			Path target) throws IOException
+	{
+		final HTTPConnection conn = new HTTPConnection("http://" + peer
+				+ TileMirror.PATH + tile.getFileName());
+		conn.addHeader("Accept-Encoding", "identity");
+
+		final Path temp = target.resolveSibling(target.getFileName() + "."
+				+ UUID.randomUUID() + ".tmp");
+		try (HTTPResponse response = conn.getResponse())
+		{
+			if (response == null)
+			{
+				// the reason has already been logged.
+				breaker.failure(-1);
+				return 0;
+			}
+			final int code = response.getResponseCode();
+			if (code != 200)
+			{
+				if (HTTPStatusException.isThrottling(code))
+				{
+					breaker.failure(-1);
+				} else
+				{
+					breaker.success();
+				}
+				return 0;
+			}
+
+			long size;
+			try (FileChannel out = FileChannel.open(temp,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+			{
+				size = response.transferTo(out, 0);
+			} catch (IOException e)
+			{
+				breaker.failure(-1);
+				throw e;
+			}
+			breaker.success();
+			final long length = response.getHeaders().getContentLength();
+			if (size != length)
+			{
+				throw new IOException("Got " + size + " bytes of "
+						+ tile.getFileName() + ", expected " + length);
+			}
+			try
+			{
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return size;
+		} finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Peers " + peers + ": " + fetched.sum() + " tiles fetched in "
+				+ asked.sum() + " requests";
+	}
+}
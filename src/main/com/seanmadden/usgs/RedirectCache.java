@@ -0,0 +1,294 @@
+/*
+ * RedirectCache.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.smmsp.core.net.DNSResolver;
+
+/**
+ * Learns where the redirects for a tile lead, so that later tiles can go
+ * straight there instead of following every hop.
+ * <p>
+ * Each hop of a finished download is turned into a template by swapping the
+ * tile's latitude and longitude ("N10", "w010" and so on, keeping their
+ * case) for placeholders. A template is only trusted once
+ * {@link #CONFIRMATIONS} tiles have led to the same one at the same
+ * distance from the end of their chains, and hops that can't safely be
+ * skipped to never become templates: those with a query string (signed or
+ * expiring links) and those that don't name the tile. Later tiles start at
+ * the trusted hop closest to the file.
+ * <p>
+ * A guess that turns out wrong costs one request: the caller reports the
+ * miss and falls back to the full chain, and if the chain now leads
+ * somewhere else the template is replaced as that download is learnt.
+ * 
+ * @author Sean
+ *
+ */
+public class RedirectCache
+{
+
+	private static final Logger LOG = Logger.getLogger(RedirectCache.class);
+
+	/**
+	 * Tiles that must agree on a template before it is used.
+	 */
+	private static final int CONFIRMATIONS = 2;
+
+	private static final String LAT_UPPER = "{LAT}";
+	private static final String LAT_LOWER = "{lat}";
+	private static final String LON_UPPER = "{LON}";
+	private static final String LON_LOWER = "{lon}";
+
+	/**
+	 * A template and how many tiles have agreed on it.
+	 */
+	private static final class Candidate
+	{
+		final String template;
+		int confirmations = 1;
+
+		Candidate(final String template)
+		{
+			this.template = template;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Candidates by distance from the end of the chain, 0 being the file.
+	 */
+	private final Map<Integer, Candidate> candidates = new TreeMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param tile A tile about to be downloaded
+	 * @return The URL to start it's download at, or null to start at the
+	 *         beginning
+	 */
+	public String predict(final Tile tile)
+	{
+		lock.lock();
+		try
+		{
+			for (Candidate candidate : candidates.values())
+			{
+				if (candidate.confirmations >= CONFIRMATIONS)
+				{
+					hits.increment();
+					return fill(candidate.template, tile);
+				}
+			}
+			return null;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Learns from a download that got it's file.
+	 * 
+	 * @param tile The tile downloaded
+	 * @param hops The URLs it was sent to after the one it started at, in
+	 *            order, the last being the file
+	 */
+	public void learn(final Tile tile, final List<String> hops)
+	{
+		lock.lock();
+		try
+		{
+			for (int i = 0; i < hops.size(); ++i)
+			{
+				final Integer depth = hops.size() - 1 - i;
+				final String template = toTemplate(hops.get(i), tile);
+				final Candidate known = candidates.get(depth);
+				if (template == null)
+				{
+					candidates.remove(depth);
+				} else if (known != null && known.template.equals(template))
+				{
+					if (++known.confirmations == CONFIRMATIONS)
+					{
+						trusted(template);
+					}
+				} else
+				{
+					if (known != null
+							&& known.confirmations >= CONFIRMATIONS)
+					{
+						LOG.info("Redirects no longer lead to "
+								+ known.template);
+					}
+					candidates.put(depth, new Candidate(template));
+				}
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A download started at {@link #predict(Tile)}'s URL was turned away.
+	 * 
+	 * @param tile The tile
+	 * @param url Where it started
+	 */
+	public void miss(final Tile tile, final String url)
+	{
+		misses.increment();
+		LOG.debug("Skipping redirects for " + tile + " to " + url
+				+ " failed, following them instead");
+	}
+
+	/**
+	 * Looks up the host of a newly trusted template ahead of time.
+	 */
+	private static void trusted(final String template)
+	{
+		LOG.info("Going straight to " + template + " for later tiles");
+		try
+		{
+			DNSResolver.getDefault().preResolve(
+					Collections.singletonList(new URL(template).getHost()));
+		} catch (MalformedURLException e)
+		{
+			LOG.debug("No host in " + template, e);
+		}
+	}
+
+	/**
+	 * @param url A hop
+	 * @param tile The tile it was for
+	 * @return It's template, or null if it can't safely be skipped to
+	 */
+	static String toTemplate(final String url, final Tile tile)
+	{
+		if (url.indexOf('?') >= 0 || url.indexOf('{') >= 0)
+		{
+			return null;
+		}
+		final String lon = replace(url, lonToken(tile), LON_UPPER, LON_LOWER);
+		final String both = replace(lon, latToken(tile), LAT_UPPER, LAT_LOWER);
+		if (both == null || both.equals(lon) || lon.equals(url))
+		{
+			return null;
+		}
+		return both;
+	}
+
+	/**
+	 * @param template A template
+	 * @param tile A tile
+	 * @return The template's URL for the tile
+	 */
+	static String fill(final String template, final Tile tile)
+	{
+		final String lat = latToken(tile);
+		final String lon = lonToken(tile);
+		return template.replace(LAT_UPPER, lat)
+				.replace(LAT_LOWER, lat.toLowerCase())
+				.replace(LON_UPPER, lon)
+				.replace(LON_LOWER, lon.toLowerCase());
+	}
+
+	/**
+	 * Swaps each occurrence of a token, in any case, for the placeholder of
+	 * it's case.
+	 * 
+	 * @return The result, or null if an occurrence is in mixed case
+	 */
+	private static String replace(final String url, final String token,
+			final String upper, final String lower)
+	{
+		if (url == null)
+		{
+			return null;
+		}
+		final String lowerToken = token.toLowerCase();
+		final StringBuilder bld = new StringBuilder();
+		int from = 0;
+		int at;
+		while ((at = url.toLowerCase().indexOf(lowerToken, from)) >= 0)
+		{
+			final String found = url.substring(at, at + token.length());
+			bld.append(url, from, at);
+			if (found.equals(token))
+			{
+				bld.append(upper);
+			} else if (found.equals(lowerToken))
+			{
+				bld.append(lower);
+			} else
+			{
+				return null;
+			}
+			from = at + token.length();
+		}
+		bld.append(url, from, url.length());
+		return bld.toString();
+	}
+
+	/**
+	 * @return e.g. "N10"
+	 */
+	private static String latToken(final Tile tile)
+	{
+		return String.format("%c%02d", tile.getLat() >= 0 ? 'N' : 'S',
+				Math.abs(tile.getLat()));
+	}
+
+	/**
+	 * @return e.g. "W010"
+	 */
+	private static String lonToken(final Tile tile)
+	{
+		return String.format("%c%03d", tile.getLon() >= 0 ? 'E' : 'W',
+				Math.abs(tile.getLon()));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Skipped redirects for " + hits.sum() + " tiles, "
+				+ misses.sum() + " of them missed";
+	}
+}
@@ -0,0 +1,440 @@
+/*
+ * SessionManager.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.smmsp.core.net.HTTPConnection;
+import com.smmsp.core.net.HTTPConnection.RequestMethod;
+import com.smmsp.core.net.HTTPResponse;
+import com.smmsp.core.utils.OSAPI;
+
+/**
+ * Keeps the EarthExplorer login session that every download sends it's
+ * cookies from.
+ * <p>
+ * The session is an immutable snapshot, so reading it takes no lock. When a
+ * download is sent back to the login page it asks for the session it was
+ * using to be refreshed: if another download already has, it just gets the
+ * newer session, and if one is logging in right now it waits for that login
+ * rather than starting another, so however many downloads notice at once
+ * there is only ever one login.
+ * <p>
+ * Each new session is saved in the cache directory (readable only by it's
+ * owner, where the file system allows) so the next run can reuse it without
+ * logging in, for up to {@link Settings#SESSION_MAX_AGE}. A saved session
+ * the server has since expired costs no more than a login would have.
+ * 
+ * @author Sean
+ *
+ */
+public class SessionManager
+{
+
+	private static final Logger LOG = Logger.getLogger(SessionManager.class);
+
+	private static final String USERNAME_KEY = "username";
+	private static final String CREATED_KEY = "created";
+	private static final String COOKIE_PREFIX = "cookie.";
+
+	/**
+	 * The cookies from one login.
+	 * 
+	 * @author Sean
+	 *
+	 */
+	public static final class Session
+	{
+		private final Map<String, String> cookies;
+		private final String cookieHeader;
+		private final long created;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param cookies The session's cookies, copied
+		 * @param created When it was logged in to, in epoch millis
+		 */
+		Session(final Map<String, String> cookies, final long created)
+		{
+			this.cookies = Collections
+					.unmodifiableMap(new LinkedHashMap<>(cookies));
+			this.created = created;
+
+			final StringBuilder buf = new StringBuilder();
+			final Iterator<Map.Entry<String, String>> rator = this.cookies
+					.entrySet().iterator();
+			while (rator.hasNext())
+			{
+				final Map.Entry<String, String> cookie = rator.next();
+				buf.append(cookie.getKey());
+				buf.append("=");
+				buf.append(cookie.getValue());
+				if (rator.hasNext())
+				{
+					buf.append("; ");
+				}
+			}
+			this.cookieHeader = buf.toString();
+		}
+
+		/**
+		 * @return The session's cookies
+		 */
+		public Map<String, String> getCookies()
+		{
+			return cookies;
+		}
+
+		/**
+		 * @return When it was logged in to, in epoch millis
+		 */
+		public long getCreated()
+		{
+			return created;
+		}
+
+		/**
+		 * Sends the session's cookies with a request.
+		 * 
+		 * @param conn The request
+		 */
+		public void addTo(final HTTPConnection conn)
+		{
+			if (!cookieHeader.isEmpty())
+			{
+				conn.addHeader("Cookie", cookieHeader);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return cookies.isEmpty() ? "No session" : "Session of "
+					+ cookies.size() + " cookies from " + new Date(created);
+		}
+	}
+
+	private final String loginUrl;
+	private final String username;
+	private final String password;
+	private final Path store;
+	private final long maxAgeMillis;
+
+	/**
+	 * The session to send with requests.
+	 */
+	private final AtomicReference<Session> current;
+
+	/**
+	 * The login running now, if any.
+	 */
+	private final AtomicReference<CompletableFuture<Session>> inFlight = new AtomicReference<>();
+
+	/**
+	 * Constructor, picks up the saved session if it's still young enough.
+	 * 
+	 * @param loginUrl The login page
+	 * @param username Who to log in as
+	 * @param password Their password
+	 * @param store Where the session is saved between runs
+	 * @param maxAgeMillis How long a saved session may be reused for, 0 to
+	 *            neither save nor reuse it
+	 */
+	public SessionManager(final String loginUrl, final String username,
+			final String password, final Path store, final long maxAgeMillis)
+	{
+		this.loginUrl = loginUrl;
+		this.username = username;
+		this.password = password;
+		this.store = store;
+		this.maxAgeMillis = maxAgeMillis;
+		this.current = new AtomicReference<>(load());
+	}
+
+	/**
+	 * @return The session to send with requests
+	 */
+	public Session current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Logs in again, in this thread if no one else is.
+	 * 
+	 * @param stale The session the server turned away
+	 * @return The session to try again with
+	 * @throws IOException If the login failed
+	 * @see #refreshAsync(Session, Executor)
+	 */
+	public Session refresh(final Session stale) throws IOException
+	{
+		try
+		{
+			return refreshAsync(stale, Runnable::run).join();
+		} catch (CompletionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Logs in again, unless the session has already been replaced since the
+	 * server turned it away, or a login is already running.
+	 * 
+	 * @param stale The session the server turned away
+	 * @param executor Runs the login, if one is needed
+	 * @return The session to try again with, once there is one
+	 */
+	public CompletableFuture<Session> refreshAsync(final Session stale,
+			final Executor executor)
+	{
+		while (true)
+		{
+			final Session now = current.get();
+			if (now != stale)
+			{
+				return CompletableFuture.completedFuture(now);
+			}
+			final CompletableFuture<Session> running = inFlight.get();
+			if (running != null)
+			{
+				return running;
+			}
+
+			final CompletableFuture<Session> login = new CompletableFuture<>();
+			if (!inFlight.compareAndSet(null, login))
+			{
+				continue;
+			}
+			if (current.get() != stale)
+			{
+				// a login finished between reading current and winning.
+				inFlight.compareAndSet(login, null);
+				continue;
+			}
+			executor.execute(() ->
+			{
+				try
+				{
+					final Session fresh = login();
+					current.set(fresh);
+					save(fresh);
+					login.complete(fresh);
+				} catch (IOException | RuntimeException e)
+				{
+					login.completeExceptionally(e);
+				} finally
+				{
+					inFlight.compareAndSet(login, null);
+				}
+			});
+			return login;
+		}
+	}
+
+	/**
+	 * 1. Makes an initial request to the login page to grab the PHPSESSID
+	 * cookie 2. Makes a POST to it with the username + password + cookies to
+	 * get the last session cookies.
+	 */
+	private Session login() throws IOException
+	{
+		LOG.info("Attempting login...");
+		final Map<String, String> cookies = new LinkedHashMap<>();
+		cookies.putAll(fetchCookies(new HTTPConnection(loginUrl)));
+
+		final HTTPConnection conn = new HTTPConnection(loginUrl,
+				RequestMethod.POST);
+		conn.addFormField("username", username);
+		conn.addFormField("password", password);
+		conn.addFormField("rememberMe", "1");
+		conn.addFormField("submit", "");
+		new Session(cookies, 0).addTo(conn);
+
+		final Map<String, String> loggedIn = fetchCookies(conn);
+		if (loggedIn.isEmpty())
+		{
+			LOG.warn("Login as " + username + " set no cookies");
+		}
+		cookies.putAll(loggedIn);
+		return new Session(cookies, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param conn The request to make
+	 * @return The cookies it's response sets
+	 * @throws IOException If there was no response
+	 */
+	private static Map<String, String> fetchCookies(final HTTPConnection conn)
+			throws IOException
+	{
+		try (HTTPResponse response = conn.getResponse())
+		{
+			if (response == null)
+			{
+				throw new IOException("No response from "
+						+ conn.getURL().getHost() + " while logging in");
+			}
+			final Map<String, String> parsedCookies = new LinkedHashMap<>();
+			for (String cookie : response.getHeaders().getAll("Set-Cookie"))
+			{
+				for (HttpCookie httpCookie : HttpCookie.parse(cookie))
+				{
+					parsedCookies.put(httpCookie.getName(),
+							httpCookie.getValue());
+				}
+			}
+			return parsedCookies;
+		}
+	}
+
+	/**
+	 * @return The saved session if it's for the same user and young enough,
+	 *         otherwise an empty one
+	 */
+	private Session load()
+	{
+		final Session none = new Session(Collections.emptyMap(), 0);
+		if (maxAgeMillis <= 0 || !Files.exists(store))
+		{
+			return none;
+		}
+
+		final Properties p = new Properties();
+		try (InputStream in = Files.newInputStream(store))
+		{
+			p.load(in);
+			final long created = Long.parseLong(p.getProperty(CREATED_KEY,
+					"0"));
+			if (!username.equals(p.getProperty(USERNAME_KEY))
+					|| System.currentTimeMillis() - created > maxAgeMillis)
+			{
+				return none;
+			}
+
+			final Map<String, String> cookies = new LinkedHashMap<>();
+			for (String key : p.stringPropertyNames())
+			{
+				if (key.startsWith(COOKIE_PREFIX))
+				{
+					cookies.put(key.substring(COOKIE_PREFIX.length()),
+							p.getProperty(key));
+				}
+			}
+			final Session saved = new Session(cookies, created);
+			LOG.info("Reusing saved login: " + saved);
+			return saved;
+		} catch (IOException | NumberFormatException e)
+		{
+			LOG.warn("Ignoring unreadable " + store, e);
+			return none;
+		}
+	}
+
+	/**
+	 * Saves a session for the next run.
+	 */
+	private void save(final Session session)
+	{
+		if (maxAgeMillis <= 0)
+		{
+			return;
+		}
+
+		final Properties p = new Properties();
+		p.setProperty(USERNAME_KEY, username);
+		p.setProperty(CREATED_KEY, Long.toString(session.getCreated()));
+		for (Map.Entry<String, String> cookie : session.getCookies()
+				.entrySet())
+		{
+			p.setProperty(COOKIE_PREFIX + cookie.getKey(), cookie.getValue());
+		}
+
+		try
+		{
+			OSAPI.ensureCacheDirExists();
+			final Path tmp = store.resolveSibling(store.getFileName() + ".tmp");
+			Files.deleteIfExists(tmp);
+			try
+			{
+				Files.createFile(tmp, PosixFilePermissions
+						.asFileAttribute(PosixFilePermissions
+								.fromString("rw-------")));
+			} catch (UnsupportedOperationException e)
+			{
+				Files.createFile(tmp);
+			}
+			try (OutputStream out = Files.newOutputStream(tmp))
+			{
+				p.store(out, "Login session");
+			}
+			try
+			{
+				Files.move(tmp, store, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmp, store, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e)
+		{
+			LOG.warn("Unable to save the login session to " + store, e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return current.get().toString();
+	}
+}
@@ -37,6 +37,7 @@ import java.util.Arrays;
 import java.util.Properties;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
@@ -62,33 +63,99 @@ public enum Settings
 	PASSWORD("password", "USGS EarthExplorer Password",
 			NonNullStringVerifier.INSTANCE),
 
+	/**
+	 * How long a login may be reused by later runs.
+	 */
+	SESSION_MAX_AGE("sessionMaxAge",
+			"Seconds a saved login may be reused for by later runs, 0 to always log in [0, MAX_INT].",
+			"3600", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
 	/**
 	 * Minimum latitude to attempt downloading
 	 */
 	MIN_LAT("minLatitude",
-			"Minimum Latitude to Download [inclusive] Decimal Degrees WGS84",
-			new IntRangeVerifier(-90, 90)),
+			"Minimum Latitude to Download [inclusive] Decimal Degrees WGS84 (all four make a box)",
+			new OptionalVerifier(new IntRangeVerifier(-90, 90))),
 
 	/**
 	 * Minimum longitude to attempt downloading
 	 */
 	MIN_LON("minLongitude",
-			"Minimum Longitude to Download [inclusive] Decimal Degrees WGS84",
-			new IntRangeVerifier(-180, 180)),
+			"Minimum Longitude to Download [inclusive] Decimal Degrees WGS84 (all four make a box)",
+			new OptionalVerifier(new IntRangeVerifier(-180, 180))),
 
 	/**
 	 * Maximum latitude to attempt downloading
 	 */
 	MAX_LAT("maxLatitude",
-			"Maximum Latitude to Download [inclusive] Decimal Degrees WGS84",
-			new IntRangeVerifier(-90, 90)),
+			"Maximum Latitude to Download [inclusive] Decimal Degrees WGS84 (all four make a box)",
+			new OptionalVerifier(new IntRangeVerifier(-90, 90))),
 
 	/**
 	 * Maximum longitude to attempt downloading
 	 */
 	MAX_LON("maxLongitude",
-			"Maximum Longitude to Download [inclusive] Decimal Degrees WGS84",
-			new IntRangeVerifier(-180, 180)),
+			"Maximum Longitude to Download [inclusive] Decimal Degrees WGS84 (all four make a box)",
+			new OptionalVerifier(new IntRangeVerifier(-180, 180))),
+
+	/**
+	 * More latitude/longitude boxes to download.
+	 */
+	BOXES("boxes",
+			"Boxes to Download as minLatitude,minLongitude,maxLatitude,maxLongitude [inclusive], separated by ;",
+			new OptionalVerifier(PatternVerifier.BOXES)),
+
+	/**
+	 * Individual tiles to download.
+	 */
+	TILES("tiles",
+			"Tiles to Download by name (e.g. N10W010), separated by commas or spaces",
+			new OptionalVerifier(new PatternVerifier(
+					"[\\s,]*([NnSs]\\d{1,2}[EeWw]\\d{1,3}[\\s,]*)+"))),
+
+	/**
+	 * A GeoJSON file of the areas to download.
+	 */
+	GEOJSON("geojson",
+			"GeoJSON file of Polygons, LineStrings and Points (or Features of them) to Download the tiles of",
+			new OptionalVerifier(NonNullStringVerifier.INSTANCE)),
+
+	/**
+	 * How many tiles to widen the selected area by.
+	 */
+	BUFFER("buffer",
+			"Tiles to widen the selected area by on every side [0, 180].",
+			"0", new IntRangeVerifier(0, 180)),
+
+	/**
+	 * Boxes not to download.
+	 */
+	EXCLUDE("exclude",
+			"Boxes not to Download (after the buffer), as for boxes",
+			new OptionalVerifier(PatternVerifier.BOXES)),
+
+	/**
+	 * The order to download the selected tiles in.
+	 */
+	ORDER("order",
+			"Order to download tiles in: row, hilbert or morton (keep finished tiles in compact blocks), nearest (to orderFrom first) or priority (the priority boxes first)",
+			"row", new ChoiceVerifier("row", "hilbert", "morton", "nearest",
+					"priority")),
+
+	/**
+	 * The point nearest order downloads out from.
+	 */
+	ORDER_FROM("orderFrom",
+			"Latitude,Longitude Decimal Degrees WGS84 the nearest order starts from (defaults to the middle of the area)",
+			new OptionalVerifier(new PatternVerifier(
+					"\\s*-?\\d+(\\.\\d*)?\\s*,\\s*-?\\d+(\\.\\d*)?\\s*"))),
+
+	/**
+	 * Boxes the priority order downloads first.
+	 */
+	PRIORITY("priority",
+			"Boxes the priority order downloads first, most important first, as for boxes",
+			new OptionalVerifier(PatternVerifier.BOXES)),
 
 	/**
 	 * The number of download threads to use.
@@ -97,6 +164,186 @@ public enum Settings
 			"Number of Download Threads to use [1, MAX_INT].",
 			new IntRangeVerifier(1, Integer.MAX_VALUE)),
 
+	/**
+	 * How many byte ranges to fetch each tile in.
+	 */
+	SEGMENTS("segments",
+			"Number of byte ranges to download each tile in concurrently [1, 16].",
+			"1", new IntRangeVerifier(1, 16)),
+
+	/**
+	 * Which HTTP engine to download with.
+	 */
+	ENGINE("engine",
+			"HTTP engine: blocking (one thread per download), virtual (blocking, on a virtual thread per download, Java 21+) or nio (selector based)",
+			"blocking", new ChoiceVerifier("blocking", "virtual", "nio")),
+
+	/**
+	 * Number of selector threads for the nio engine.
+	 */
+	SELECTOR_THREADS("selectorThreads",
+			"Number of selector threads for the nio engine [1, 64].", "2",
+			new IntRangeVerifier(1, 64)),
+
+	/**
+	 * Maximum number of concurrent downloads with the nio and virtual engines.
+	 */
+	MAX_IN_FLIGHT("maxInFlight",
+			"Maximum concurrent downloads for the nio and virtual engines [1, MAX_INT].",
+			"256", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * Whether to find the number of concurrent downloads from throughput and
+	 * errors, up to numThreads (or maxInFlight), rather than always using it.
+	 */
+	ADAPTIVE_CONCURRENCY("adaptiveConcurrency",
+			"Adapt concurrent downloads to throughput and throttling, up to numThreads/maxInFlight: true or false",
+			"true", new ChoiceVerifier("true", "false")),
+
+	/**
+	 * Number of TLS sessions kept for resumption.
+	 */
+	TLS_SESSION_CACHE_SIZE("tlsSessionCacheSize",
+			"Number of TLS sessions cached for resumption [0 (unlimited), MAX_INT].",
+			"256", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * How long a TLS session may be resumed for.
+	 */
+	TLS_SESSION_TIMEOUT("tlsSessionTimeout",
+			"Seconds a cached TLS session may be resumed for [0 (unlimited), MAX_INT].",
+			"86400", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * Time allowed to establish a connection.
+	 */
+	CONNECT_TIMEOUT("connectTimeout",
+			"Milliseconds allowed to connect to a server [0 (unlimited), MAX_INT].",
+			"10000", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * Time allowed between bytes received.
+	 */
+	READ_TIMEOUT("readTimeout",
+			"Milliseconds to wait for data from a server [0 (unlimited), MAX_INT].",
+			"60000", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * How many times to try each tile.
+	 */
+	RETRY_ATTEMPTS("retryAttempts",
+			"Times to try a tile that is throttled or fails in the network, including the first [1, MAX_INT].",
+			"5", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * The longest wait after a tile's first failure, doubling after each.
+	 */
+	RETRY_DELAY("retryDelay",
+			"Milliseconds to wait (at most, picked at random) before trying a tile again, doubling each time [1, MAX_INT].",
+			"1000", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * The longest wait before trying a tile again.
+	 */
+	RETRY_MAX_DELAY("retryMaxDelay",
+			"Most milliseconds to wait before trying a tile again, unless the server asks for longer [1, MAX_INT].",
+			"60000", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * Failures in a row that pause all requests to a host.
+	 */
+	BREAKER_FAILURES("breakerFailures",
+			"Failures in a row from a host that pause all requests to it [1, MAX_INT].",
+			"5", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * How long requests to a failing host are paused for.
+	 */
+	BREAKER_COOLDOWN("breakerCooldown",
+			"Milliseconds to pause requests to a failing host before probing it, doubling while it keeps failing [1, MAX_INT].",
+			"30000", new IntRangeVerifier(1, Integer.MAX_VALUE)),
+
+	/**
+	 * How long host name lookups are cached.
+	 */
+	DNS_TTL("dnsTtl",
+			"Seconds to cache host name lookups for [0, MAX_INT].", "60",
+			new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * How to pick between a host's addresses.
+	 */
+	DNS_SELECTION("dnsSelection",
+			"Order to try a host's addresses in: fastest or roundRobin",
+			"fastest", new ChoiceVerifier("fastest", "roundRobin")),
+
+	/**
+	 * Bandwidth cap across all connections, re-read from the settings file
+	 * while running.
+	 */
+	MAX_BANDWIDTH("maxBandwidth",
+			"Most bytes per second to download at across all connections, may be changed in the settings file while running [0 (unlimited), MAX_INT].",
+			"0", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * Bandwidth cap for each connection, re-read from the settings file
+	 * while running.
+	 */
+	MAX_CONNECTION_BANDWIDTH("maxConnectionBandwidth",
+			"Most bytes per second to download at on each connection, may be changed in the settings file while running [0 (unlimited), MAX_INT].",
+			"0", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * Journal of which tiles are done, so that reruns skip them.
+	 */
+	JOURNAL("journal",
+			"Journal of finished tiles, reruns skip them while their files are still there and the same size (delete it to download everything again)",
+			"srtm1.journal", NonNullStringVerifier.INSTANCE),
+
+	/**
+	 * Whether finished tiles are read back before they are skipped.
+	 */
+	VERIFY_TILES("verifyTiles",
+			"Read back the tiles the journal has as finished and check their CRC32 before skipping them, rather than only their size: true or false",
+			"false", new ChoiceVerifier("true", "false")),
+
+	/**
+	 * Where downloaded tiles are kept for later runs.
+	 */
+	STORE("store",
+			"Directory tiles are kept in for later runs and other directories, copied from there rather than downloaded again",
+			OSAPI.getCacheDirectory().resolve("tiles").toString(),
+			NonNullStringVerifier.INSTANCE),
+
+	/**
+	 * How big the tile store may grow.
+	 */
+	STORE_SIZE("storeSize",
+			"Megabytes of tiles to keep in the store, least recently used are evicted past it, 0 to not keep any [0, MAX_INT].",
+			"10240", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * How much of the tile store to hold in memory.
+	 */
+	MEMORY_CACHE_SIZE("memoryCacheSize",
+			"Megabytes of the most used tiles to hold off-heap in memory in front of the store, 0 for none [0, MAX_INT].",
+			"256", new IntRangeVerifier(0, Integer.MAX_VALUE)),
+
+	/**
+	 * Port to serve the tile store to other downloaders on.
+	 */
+	MIRROR_PORT("mirrorPort",
+			"Port to serve the tile store to other downloaders on, serving on once downloads finish until stopped, 0 to not serve [0, 65535].",
+			"0", new IntRangeVerifier(0, 65535)),
+
+	/**
+	 * Other downloaders to fetch tiles from before USGS.
+	 */
+	PEERS("peers",
+			"Other downloaders' mirrors (host:port) to fetch tiles from before USGS, in order, separated by commas or spaces",
+			new OptionalVerifier(new PatternVerifier(
+					"[\\s,]*([^\\s,]+:\\d{1,5}[\\s,]*)+"))),
+
 	/**
 	 * The configuration file to use to override these defaults
 	 */
@@ -146,6 +393,12 @@ public enum Settings
 	 */
 	private String value;
 
+	/**
+	 * The value last read from or written to the settings file, so that a
+	 * reload only applies what has been edited there since.
+	 */
+	private String fromFile;
+
 	/**
 	 * The description of the item (for printing)
 	 */
@@ -165,9 +418,24 @@ public enum Settings
 	 */
 	private Settings(final String name, final String description,
 			final Verifier v)
+	{
+		this(name, description, null, v);
+	}
+
+	/**
+	 * Private constructor for settings that are optional
+	 * 
+	 * @param name The name of the setting
+	 * @param description The description
+	 * @param defaultValue The value used when none is configured
+	 * @param v The verifier to use
+	 */
+	private Settings(final String name, final String description,
+			final String defaultValue, final Verifier v)
 	{
 		this.name = name;
 		this.description = description;
+		this.value = defaultValue;
 		this.verifier = v;
 	}
 
@@ -259,8 +527,16 @@ public enum Settings
 				p.load(fis);
 			}
 
-			consumeAllSettings(setting -> setting.setValue((String) p
-					.get(setting.getName())));
+			// settings missing from the file keep their defaults.
+			consumeAllSettings(setting ->
+			{
+				String fromFile = p.getProperty(setting.getName());
+				if (fromFile != null)
+				{
+					setting.setValue(fromFile);
+					setting.fromFile = fromFile;
+				}
+			});
 
 		} catch (IOException e)
 		{
@@ -268,6 +544,61 @@ public enum Settings
 		}
 	}
 
+	/**
+	 * Re-reads some settings from the file, for those that can be changed
+	 * while running. Only values edited in the file since it was last read
+	 * are applied, so a setting given on the command line keeps it's value
+	 * until the file's is changed. Values in the file that don't verify are
+	 * ignored.
+	 * 
+	 * @param settings The settings to re-read
+	 * @return True if any of them changed
+	 */
+	public static boolean reloadFromSettingsFile(Settings... settings)
+	{
+		Path path = DEFAULT_CONFIG_FILE;
+		if (CONFIG_FILE.verify()
+				&& Files.exists(Paths.get(CONFIG_FILE.getValue())))
+		{
+			path = Paths.get(CONFIG_FILE.getValue());
+		}
+		if (!Files.exists(path))
+		{
+			return false;
+		}
+
+		Properties p = new Properties();
+		try (FileInputStream fis = new FileInputStream(path.toFile()))
+		{
+			p.load(fis);
+		} catch (IOException e)
+		{
+			LOG.error("Unable to re-read " + path, e);
+			return false;
+		}
+
+		boolean changed = false;
+		for (Settings setting : settings)
+		{
+			String fromFile = p.getProperty(setting.getName());
+			if (fromFile == null || fromFile.equals(setting.fromFile))
+			{
+				continue;
+			}
+			setting.fromFile = fromFile;
+			if (fromFile.equals(setting.getValue())
+					|| !setting.verifier.verify(fromFile))
+			{
+				continue;
+			}
+			LOG.info(setting.getName() + " changed from "
+					+ setting.getValue() + " to " + fromFile);
+			setting.setValue(fromFile);
+			changed = true;
+		}
+		return changed;
+	}
+
 	/**
 	 * Saves all the individual settings to the file specified by CONFIG_FILE
 	 */
@@ -297,7 +628,8 @@ public enum Settings
 
 			Arrays.asList(values())
 					.stream()
-					.filter(setting -> setting != CONFIG_FILE)
+					.filter(setting -> setting != CONFIG_FILE
+							&& setting.getValue() != null)
 					.forEach(
 							setting -> p.setProperty(setting.getName(),
 									setting.getValue()));
@@ -306,6 +638,8 @@ public enum Settings
 			{
 				p.store(fos, "");
 			}
+			consumeAllSettings(setting -> setting.fromFile = p
+					.getProperty(setting.getName()));
 
 		} catch (final IOException e)
 		{
@@ -403,6 +737,85 @@ public enum Settings
 		}
 	}
 
+	/**
+	 * Validates that the value is one of a fixed set of choices (ignoring
+	 * case)
+	 * 
+	 * @author Sean
+	 */
+	protected static class ChoiceVerifier implements Verifier
+	{
+		private final String[] choices;
+
+		public ChoiceVerifier(String... choices)
+		{
+			this.choices = choices;
+		}
+
+		@Override
+		public boolean verify(String value)
+		{
+			for (String choice : choices)
+			{
+				if (choice.equalsIgnoreCase(value))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Validates that the value matches a regular expression.
+	 * 
+	 * @author Sean
+	 */
+	protected static class PatternVerifier implements Verifier
+	{
+		/**
+		 * minLat,minLon,maxLat,maxLon boxes separated by ;
+		 */
+		public static final PatternVerifier BOXES = new PatternVerifier(
+				"\\s*(-?\\d+\\s*,\\s*){3}-?\\d+\\s*(;\\s*(-?\\d+\\s*,\\s*){3}-?\\d+\\s*)*;?\\s*");
+
+		private final Pattern pattern;
+
+		public PatternVerifier(String regex)
+		{
+			this.pattern = Pattern.compile(regex);
+		}
+
+		@Override
+		public boolean verify(String value)
+		{
+			return value != null && pattern.matcher(value).matches();
+		}
+	}
+
+	/**
+	 * Lets a setting be left out (null or empty), and otherwise verifies it
+	 * with another Verifier.
+	 * 
+	 * @author Sean
+	 */
+	protected static class OptionalVerifier implements Verifier
+	{
+		private final Verifier verifier;
+
+		public OptionalVerifier(Verifier verifier)
+		{
+			this.verifier = verifier;
+		}
+
+		@Override
+		public boolean verify(String value)
+		{
+			return value == null || value.trim().isEmpty()
+					|| verifier.verify(value);
+		}
+	}
+
 	/**
 	 * Ensures that the value passed in is not null.
 	 * 
@@ -0,0 +1,183 @@
+/*
+ * Tile.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One 1x1 degree SRTM1 tile, named for the latitude and longitude of it's
+ * south west corner.
+ * 
+ * @author Sean
+ *
+ */
+public final class Tile
+{
+
+	/**
+	 * How many tiles cover the globe, 180 rows of 360.
+	 */
+	public static final int COUNT = 180 * 360;
+
+	private static final Pattern NAME = Pattern
+			.compile("([NnSs])(\\d{1,2})([EeWw])(\\d{1,3})");
+
+	private static final Pattern FILE_NAME = Pattern
+			.compile("([ns]\\d{2})_([ew]\\d{3})_1arc_v3\\.dt2");
+
+	private final int lat;
+	private final int lon;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param lat Latitude of the south west corner [-90, 89]
+	 * @param lon Longitude of the south west corner [-180, 179]
+	 */
+	public Tile(int lat, int lon)
+	{
+		this.lat = lat;
+		this.lon = lon;
+	}
+
+	/**
+	 * @param index A tile's {@link #getIndex()}
+	 * @return The tile
+	 */
+	public static Tile fromIndex(int index)
+	{
+		return new Tile(index / 360 - 90, index % 360 - 180);
+	}
+
+	/**
+	 * @param name A tile's name, as USGS gives them: N or S and the latitude,
+	 *            then E or W and the longitude (e.g. N10W010)
+	 * @return The tile
+	 * @throws IllegalArgumentException If it isn't a tile's name
+	 */
+	public static Tile parse(String name)
+	{
+		final Matcher m = NAME.matcher(name.trim());
+		if (!m.matches())
+		{
+			throw new IllegalArgumentException("Not a tile: " + name);
+		}
+		int lat = Integer.parseInt(m.group(2));
+		int lon = Integer.parseInt(m.group(4));
+		if (m.group(1).equalsIgnoreCase("S"))
+		{
+			lat = -lat;
+		}
+		if (m.group(3).equalsIgnoreCase("W"))
+		{
+			lon = -lon;
+		}
+		if (lat < -90 || lat > 89 || lon < -180 || lon > 179)
+		{
+			throw new IllegalArgumentException("Not a tile: " + name);
+		}
+		return new Tile(lat, lon);
+	}
+
+	/**
+	 * @param fileName A tile's {@link #getFileName()}
+	 * @return The tile
+	 * @throws IllegalArgumentException If it isn't a tile's file name
+	 */
+	public static Tile fromFileName(String fileName)
+	{
+		final Matcher m = FILE_NAME.matcher(fileName);
+		if (!m.matches())
+		{
+			throw new IllegalArgumentException("Not a tile's file: " + fileName);
+		}
+		return parse(m.group(1) + m.group(2));
+	}
+
+	/**
+	 * @return Latitude of the south west corner
+	 */
+	public int getLat()
+	{
+		return lat;
+	}
+
+	/**
+	 * @return Longitude of the south west corner
+	 */
+	public int getLon()
+	{
+		return lon;
+	}
+
+	/**
+	 * @return A number from 0 to {@link #COUNT} - 1 unique to this tile, in
+	 *         row (latitude, then longitude) order
+	 */
+	public int getIndex()
+	{
+		return (lat + 90) * 360 + (lon + 180);
+	}
+
+	/**
+	 * @return The name of the tile's DTED file as USGS serves it (e.g.
+	 *         n10_w010_1arc_v3.dt2)
+	 */
+	public String getFileName()
+	{
+		return String.format("%s%02d_%s%03d_1arc_v3.dt2", lat >= 0 ? "n"
+				: "s", Math.abs(lat), lon >= 0 ? "e" : "w", Math.abs(lon));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return getIndex();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+		if (!(obj instanceof Tile))
+		{
+			return false;
+		}
+		Tile other = (Tile) obj;
+		return lat == other.lat && lon == other.lon;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "(" + lat + ", " + lon + ")";
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * TileCache.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tile files kept in memory, off the heap in direct buffers, so that the
+ * tiles asked for most are served with no disk reads and without their
+ * bytes ever being seen by the garbage collector.
+ * <p>
+ * Lookups never lock: they are a {@link ConcurrentHashMap} read and a bump
+ * of the tile's use count and last used time. Only admitting and evicting
+ * tiles takes the lock.
+ * <p>
+ * What to keep follows W-TinyLFU: a new tile goes into a small window
+ * (1% of the budget) kept by recency, and when the window overflows it's
+ * least recently used tile is only let into the main space, in place of
+ * that space's least recently used tile, if it has been asked for more
+ * often. A tile too big for the window competes for the main space
+ * straight away, before it is read into memory. Use counts are kept per
+ * tile rather than in a sketch (there are only 64,800 tiles), saturate at
+ * 15 and are halved every so often so that old popularity fades.
+ * <p>
+ * Evicted buffers are freed by the garbage collector once no reader holds
+ * them, so the JVM's -XX:MaxDirectMemorySize should leave room over the
+ * budget.
+ * 
+ * @author Sean
+ *
+ */
+public class TileCache
+{
+
+	private static final Logger LOG = Logger.getLogger(TileCache.class);
+
+	private static final int MAX_COUNT = 15;
+
+	/**
+	 * Uses counted, per tile the cache holds, before the counts are halved.
+	 */
+	private static final int SAMPLES_PER_TILE = 10;
+
+	/**
+	 * Where a tile is held.
+	 */
+	private enum Region
+	{
+		WINDOW, MAIN
+	}
+
+	private static final class Node
+	{
+		final int index;
+		final ByteBuffer data;
+		volatile long lastUsed = System.nanoTime();
+		Region region = Region.WINDOW;
+
+		Node(int index, ByteBuffer data)
+		{
+			this.index = index;
+			this.data = data;
+		}
+	}
+
+	private final long budget;
+	private final long windowBudget;
+
+	private final ConcurrentHashMap<Integer, Node> nodes = new ConcurrentHashMap<>();
+	private final byte[] counts = new byte[Tile.COUNT];
+	private final AtomicInteger samples = new AtomicInteger();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private long windowBytes = 0;
+	private long mainBytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private int rejected = 0;
+	private int evicted = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param budget The most bytes of tiles to hold
+	 */
+	public TileCache(long budget)
+	{
+		this.budget = budget;
+		this.windowBudget = budget / 100;
+	}
+
+	/**
+	 * Looks a tile up, counting it as used either way.
+	 * 
+	 * @param tile The tile
+	 * @return A read only view of it's file, or null if it isn't held
+	 */
+	public ByteBuffer get(Tile tile)
+	{
+		final int index = tile.getIndex();
+		count(index);
+		final Node node = nodes.get(index);
+		if (node == null)
+		{
+			misses.increment();
+			return null;
+		}
+		node.lastUsed = System.nanoTime();
+		hits.increment();
+		return node.data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Offers a tile's file to the cache, which reads it into memory if it
+	 * is admitted. Doesn't count as a use of the tile.
+	 * 
+	 * @param tile The tile
+	 * @param file It's file, which mustn't change while this runs
+	 * @return A read only view of it in memory, or null if it wasn't
+	 *         admitted
+	 * @throws IOException If the file can't be read
+	 */
+	public ByteBuffer put(Tile tile, Path file) throws IOException
+	{
+		final int index = tile.getIndex();
+		lock.lock();
+		try
+		{
+			final Node held = nodes.get(index);
+			if (held != null)
+			{
+				return held.data.asReadOnlyBuffer();
+			}
+			try (FileChannel in = FileChannel.open(file,
+					StandardOpenOption.READ))
+			{
+				final long size = in.size();
+				if (size > Integer.MAX_VALUE || !makeRoom(index, size))
+				{
+					++rejected;
+					return null;
+				}
+				final ByteBuffer data;
+				try
+				{
+					data = ByteBuffer.allocateDirect((int) size);
+				} catch (OutOfMemoryError e)
+				{
+					// past -XX:MaxDirectMemorySize.
+					LOG.warn("Out of direct memory caching " + tile);
+					++rejected;
+					return null;
+				}
+				while (data.hasRemaining() && in.read(data) != -1)
+				{
+					// read it all.
+				}
+				data.flip();
+
+				final Node node = new Node(index, data);
+				if (size > windowBudget)
+				{
+					node.region = Region.MAIN;
+					mainBytes += size;
+				} else
+				{
+					windowBytes += size;
+				}
+				nodes.put(index, node);
+				drainWindow();
+				return data.asReadOnlyBuffer();
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the space for a new tile. A tile that fits in the window always
+	 * gets in; a bigger one only if it is used more than each tile it would
+	 * push out of the main space. Call holding the lock.
+	 * 
+	 * @return True if the tile may be added
+	 */
+	private boolean makeRoom(int index, long size)
+	{
+		if (size > budget)
+		{
+			return false;
+		}
+		if (size <= windowBudget)
+		{
+			return true;
+		}
+		return admit(index, size);
+	}
+
+	/**
+	 * Moves the window's least recently used tiles into the main space (or
+	 * out) until the window fits it's budget. Call holding the lock.
+	 */
+	private void drainWindow()
+	{
+		while (windowBytes > windowBudget)
+		{
+			final Node candidate = leastRecentlyUsed(Region.WINDOW);
+			final long size = candidate.data.capacity();
+			windowBytes -= size;
+			if (admit(candidate.index, size))
+			{
+				candidate.region = Region.MAIN;
+				mainBytes += size;
+			} else
+			{
+				nodes.remove(candidate.index);
+				++evicted;
+			}
+		}
+	}
+
+	/**
+	 * Evicts the main space's least recently used tiles, while the
+	 * candidate is used more often than them, until it fits. Call holding
+	 * the lock.
+	 * 
+	 * @return True if the candidate now fits in the main space
+	 */
+	private boolean admit(int index, long size)
+	{
+		final long mainBudget = budget - windowBudget;
+		while (mainBytes + size > mainBudget)
+		{
+			final Node victim = leastRecentlyUsed(Region.MAIN);
+			if (victim == null || counts[victim.index] >= counts[index])
+			{
+				return false;
+			}
+			nodes.remove(victim.index);
+			mainBytes -= victim.data.capacity();
+			++evicted;
+		}
+		return true;
+	}
+
+	/**
+	 * Only ever a few hundred tiles fit in memory, so a scan is cheaper
+	 * than keeping the tiles in order on every lookup. Call holding the
+	 * lock.
+	 */
+	private Node leastRecentlyUsed(Region region)
+	{
+		Node oldest = null;
+		for (Node node : nodes.values())
+		{
+			if (node.region == region
+					&& (oldest == null || node.lastUsed - oldest.lastUsed < 0))
+			{
+				oldest = node;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Counts a use of a tile, halving every count once enough have been
+	 * counted. Racing updates may lose a count now and then, which only
+	 * blurs the estimate.
+	 */
+	private void count(int index)
+	{
+		if (counts[index] < MAX_COUNT)
+		{
+			++counts[index];
+		}
+		if (samples.incrementAndGet() >= SAMPLES_PER_TILE
+				* Math.max(16, nodes.size()))
+		{
+			samples.set(0);
+			for (int i = 0; i < counts.length; ++i)
+			{
+				counts[i] >>= 1;
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		lock.lock();
+		try
+		{
+			return "Memory cache: " + nodes.size() + " tiles, "
+					+ ((windowBytes + mainBytes) / (1024 * 1024)) + " of "
+					+ (budget / (1024 * 1024)) + " mb, " + hits.sum()
+					+ " hits, " + misses.sum() + " misses, " + rejected
+					+ " not admitted, " + evicted + " evicted";
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+}
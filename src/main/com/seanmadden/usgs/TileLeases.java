@@ -0,0 +1,147 @@
+/*
+ * TileLeases.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Leases on tiles, so that of several processes downloading into the same
+ * place (or sharing a {@link TileStore}) just one downloads any tile while
+ * the others wait for it. A lease is a lock on a file of the tile's own in
+ * the leases directory, so it is let go of when the process holding it
+ * dies.
+ * 
+ * @author Sean
+ *
+ */
+public class TileLeases
+{
+
+	/**
+	 * A hold on a tile for one process, across all the processes sharing
+	 * the leases, until it is closed.
+	 */
+	public static final class Lease implements Closeable
+	{
+		private final FileChannel chan;
+
+		private Lease(FileChannel chan)
+		{
+			this.chan = chan;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// releases the lock with it.
+			chan.close();
+		}
+	}
+
+	private final Path dir;
+
+	/**
+	 * @param dir Where the lease files are kept, created if need be
+	 * @throws IOException If it can't be created
+	 */
+	public TileLeases(Path dir) throws IOException
+	{
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Takes the lease on a tile, if no process has it.
+	 * 
+	 * @param tile The tile
+	 * @return The lease, or null if another process (or this one) has it
+	 * @throws IOException If the lease file can't be opened
+	 */
+	public Lease tryLease(Tile tile) throws IOException
+	{
+		final FileChannel chan = open(tile);
+		try
+		{
+			if (chan.tryLock() != null)
+			{
+				return new Lease(chan);
+			}
+		} catch (OverlappingFileLockException e)
+		{
+			// this process has it.
+		} catch (IOException | RuntimeException e)
+		{
+			chan.close();
+			throw e;
+		}
+		chan.close();
+		return null;
+	}
+
+	/**
+	 * Takes the lease on a tile, waiting for whichever process has it.
+	 * 
+	 * @param tile The tile
+	 * @return The lease
+	 * @throws IOException If the lease file can't be locked
+	 */
+	public Lease lease(Tile tile) throws IOException
+	{
+		final FileChannel chan = open(tile);
+		try
+		{
+			chan.lock();
+			return new Lease(chan);
+		} catch (IOException | RuntimeException e)
+		{
+			chan.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Tile leases in " + dir;
+	}
+
+	/**
+	 * Lease files are never deleted, a process waiting on one would be left
+	 * holding a lock nobody else can see.
+	 */
+	private FileChannel open(Tile tile) throws IOException
+	{
+		return FileChannel.open(dir.resolve(tile.getFileName() + ".lease"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+}
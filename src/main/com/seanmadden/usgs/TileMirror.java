@@ -0,0 +1,217 @@
+/*
+ * TileMirror.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a {@link TileStore} over HTTP so that other downloaders on the
+ * network can fetch tiles from it (see {@link PeerMirrors}) rather than each
+ * getting them from USGS.
+ * <p>
+ * A tile is at /tiles/ and it's file name (e.g.
+ * /tiles/n10_w010_1arc_v3.dt2), and is served straight from the store, from
+ * memory if it's held there. Tiles that aren't stored are 404s. GET and
+ * HEAD are all it answers.
+ * 
+ * @author Sean
+ *
+ */
+public class TileMirror
+{
+
+	private static final Logger LOG = Logger.getLogger(TileMirror.class);
+
+	/**
+	 * Where tiles are served under.
+	 */
+	public static final String PATH = "/tiles/";
+
+	/**
+	 * Requests served at once.
+	 */
+	private static final int THREADS = 8;
+
+	private final TileStore store;
+	private final HttpServer server;
+	private final ExecutorService pool;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private final LongAdder served = new LongAdder();
+	private final LongAdder notStored = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	private TileMirror(TileStore store, HttpServer server)
+	{
+		this.store = store;
+		this.server = server;
+		final AtomicInteger num = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(THREADS, r ->
+		{
+			Thread t = new Thread(r, "Mirror Thread " + num.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts serving a store.
+	 * 
+	 * @param store The store to serve
+	 * @param port The port to listen on, on all addresses
+	 * @return The running mirror
+	 * @throws IOException If the port can't be listened on
+	 */
+	public static TileMirror start(TileStore store, int port)
+			throws IOException
+	{
+		final TileMirror mirror = new TileMirror(store,
+				HttpServer.create(new InetSocketAddress(port), 0));
+		mirror.server.createContext(PATH, mirror::handle);
+		mirror.server.setExecutor(mirror.pool);
+		mirror.server.start();
+		return mirror;
+	}
+
+	/**
+	 * Stops serving, letting requests that are being answered finish.
+	 */
+	public void stop()
+	{
+		server.stop(1);
+		pool.shutdown();
+		stopped.countDown();
+	}
+
+	/**
+	 * Waits until the mirror is stopped.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException
+	{
+		stopped.await();
+	}
+
+	/**
+	 * Answers one request.
+	 * 
+	 * @param exchange The request
+	 * @throws IOException If the answer couldn't be sent
+	 */
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			final String method = exchange.getRequestMethod();
+			final boolean head = "HEAD".equals(method);
+			if (!head && !"GET".equals(method))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			final ByteBuffer data;
+			try
+			{
+				data = store.read(Tile.fromFileName(exchange.getRequestURI()
+						.getPath().substring(PATH.length())));
+			} catch (IllegalArgumentException e)
+			{
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			} catch (IOException e)
+			{
+				LOG.warn("Unable to read " + exchange.getRequestURI()
+						+ " from the tile store", e);
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+			if (data == null)
+			{
+				notStored.increment();
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/octet-stream");
+			if (head)
+			{
+				exchange.getResponseHeaders().set("Content-Length",
+						Integer.toString(data.remaining()));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			// 0 would mean chunked.
+			exchange.sendResponseHeaders(200,
+					data.hasRemaining() ? data.remaining() : -1);
+			try (OutputStream out = exchange.getResponseBody())
+			{
+				final WritableByteChannel chan = Channels.newChannel(out);
+				final ByteBuffer body = data.duplicate();
+				while (body.hasRemaining())
+				{
+					bytes.add(chan.write(body));
+				}
+			}
+			served.increment();
+		} catch (IOException e)
+		{
+			LOG.debug("Unable to answer " + exchange.getRequestURI() + " from "
+					+ exchange.getRemoteAddress(), e);
+			throw e;
+		} finally
+		{
+			exchange.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Mirroring the tile store on port "
+				+ server.getAddress().getPort() + ": " + served.sum()
+				+ " tiles served (" + (bytes.sum() / 1024) + " kb), "
+				+ notStored.sum() + " not stored";
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * TileOrder.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The order to download the tiles of an area in.
+ * <p>
+ * Each order gives every tile a key, and the tiles are downloaded smallest
+ * key first. The keys are sorted as primitive longs with the tile's index
+ * in the low bits, so ordering even the whole globe is one sort of a
+ * 64,800 element long[] (a few milliseconds) and ties fall back to row
+ * order.
+ * <p>
+ * {@link #ROW} is the order the area is stored in. {@link #MORTON} and
+ * {@link #HILBERT} walk the area along a space filling curve, so that what
+ * has been downloaded at any point is a few compact blocks rather than a
+ * band of whole rows; Hilbert's blocks are the more compact of the two.
+ * {@link #nearest(double, double)} spreads out from a point of interest and
+ * {@link #priority(List)} downloads given areas before the rest.
+ * 
+ * @author Sean
+ *
+ */
+public abstract class TileOrder
+{
+
+	/**
+	 * Bits of the key taken by the tile's index (64,800 < 2^16).
+	 */
+	private static final int INDEX_BITS = 16;
+
+	/**
+	 * Side of the square grid the curves are laid over, the smallest power
+	 * of two holding 360 columns.
+	 */
+	private static final int CURVE_SIDE = 512;
+
+	/**
+	 * Bits of a position along a curve over {@link #CURVE_SIDE}.
+	 */
+	private static final int CURVE_BITS = 18;
+
+	/**
+	 * South to north, west to east along each row.
+	 */
+	public static final TileOrder ROW = new TileOrder("row")
+	{
+		@Override
+		protected long key(int lat, int lon)
+		{
+			return 0;
+		}
+	};
+
+	/**
+	 * Along a Z-order (Morton) curve.
+	 */
+	public static final TileOrder MORTON = new TileOrder("morton")
+	{
+		@Override
+		protected long key(int lat, int lon)
+		{
+			return spread(lon + 180) | spread(lat + 90) << 1;
+		}
+	};
+
+	/**
+	 * Along a Hilbert curve.
+	 */
+	public static final TileOrder HILBERT = new TileOrder("hilbert")
+	{
+		@Override
+		protected long key(int lat, int lon)
+		{
+			return hilbert(lon + 180, lat + 90);
+		}
+	};
+
+	private final String name;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param name What the order is called, for logging
+	 */
+	protected TileOrder(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @param lat Latitude of the tile's south west corner
+	 * @param lon Longitude of the tile's south west corner
+	 * @return Where the tile goes, smallest first [0, 2^47)
+	 */
+	protected abstract long key(int lat, int lon);
+
+	/**
+	 * @param tiles The tiles to order
+	 * @return The tiles, in this order
+	 */
+	public Iterable<Tile> order(TileSet tiles)
+	{
+		final long[] keys = new long[tiles.size()];
+		int count = 0;
+		for (int index = tiles.nextSetBit(0); index >= 0; index = tiles
+				.nextSetBit(index + 1))
+		{
+			final int lat = index / 360 - 90;
+			final int lon = index % 360 - 180;
+			keys[count++] = key(lat, lon) << INDEX_BITS | index;
+		}
+		// already in index order when every key is the same.
+		if (this != ROW)
+		{
+			Arrays.sort(keys);
+		}
+		return () -> new Iterator<Tile>()
+		{
+			int next = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return next < keys.length;
+			}
+
+			@Override
+			public Tile next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				return Tile.fromIndex((int) (keys[next++] & (1 << INDEX_BITS) - 1));
+			}
+		};
+	}
+
+	/**
+	 * Nearest first, by great circle distance from a point to the middle of
+	 * each tile.
+	 * 
+	 * @param lat Latitude of the point, decimal degrees WGS84
+	 * @param lon Longitude of the point, decimal degrees WGS84
+	 * @return The order
+	 */
+	public static TileOrder nearest(final double lat, final double lon)
+	{
+		final double sinLat = Math.sin(Math.toRadians(lat));
+		final double cosLat = Math.cos(Math.toRadians(lat));
+		return new TileOrder("nearest to (" + lat + ", " + lon + ")")
+		{
+			@Override
+			protected long key(int tileLat, int tileLon)
+			{
+				final double phi = Math.toRadians(tileLat + 0.5);
+				final double lambda = Math.toRadians(tileLon + 0.5 - lon);
+				final double cos = sinLat * Math.sin(phi) + cosLat
+						* Math.cos(phi) * Math.cos(lambda);
+				// microradians, so under 2^22.
+				return (long) (Math.acos(Math.max(-1, Math.min(1, cos))) * 1e6);
+			}
+		};
+	}
+
+	/**
+	 * The tiles of each area in turn, then the rest, each along a Hilbert
+	 * curve.
+	 * 
+	 * @param areas The areas to download first, most important first
+	 * @return The order
+	 */
+	public static TileOrder priority(final List<TileSet> areas)
+	{
+		final List<TileSet> ranks = new ArrayList<>(areas);
+		return new TileOrder("priority of " + ranks.size() + " areas")
+		{
+			@Override
+			protected long key(int lat, int lon)
+			{
+				final Tile tile = new Tile(lat, lon);
+				int rank = 0;
+				while (rank < ranks.size() && !ranks.get(rank).contains(tile))
+				{
+					++rank;
+				}
+				return (long) rank << CURVE_BITS | hilbert(lon + 180, lat + 90);
+			}
+		};
+	}
+
+	/**
+	 * @param area The tiles that will be downloaded
+	 * @return The order described by the Settings
+	 * @throws IllegalArgumentException If orderFrom or priority are out of
+	 *             range
+	 */
+	public static TileOrder fromSettings(TileSet area)
+	{
+		final String order = Settings.ORDER.getValue();
+		if ("morton".equalsIgnoreCase(order))
+		{
+			return MORTON;
+		} else if ("hilbert".equalsIgnoreCase(order))
+		{
+			return HILBERT;
+		} else if ("nearest".equalsIgnoreCase(order))
+		{
+			final String from = Settings.ORDER_FROM.getValue();
+			if (from == null || from.trim().isEmpty())
+			{
+				final double[] middle = middle(area);
+				return nearest(middle[0], middle[1]);
+			}
+			final String[] latLon = from.split(",");
+			final double lat = Double.parseDouble(latLon[0].trim());
+			final double lon = Double.parseDouble(latLon[1].trim());
+			if (Math.abs(lat) > 90 || Math.abs(lon) > 180)
+			{
+				throw new IllegalArgumentException("orderFrom out of range: "
+						+ from);
+			}
+			return nearest(lat, lon);
+		} else if ("priority".equalsIgnoreCase(order))
+		{
+			final List<TileSet> areas = new ArrayList<>();
+			final String boxes = Settings.PRIORITY.getValue();
+			if (boxes != null)
+			{
+				for (String box : boxes.split(";"))
+				{
+					if (!box.trim().isEmpty())
+					{
+						areas.add(AreaSelection.parseBoxes(box));
+					}
+				}
+			}
+			return priority(areas);
+		}
+		return ROW;
+	}
+
+	/**
+	 * @param tiles Some tiles
+	 * @return The middle of them on the globe (their mean direction from the
+	 *         centre of the earth) as {latitude, longitude}
+	 */
+	public static double[] middle(TileSet tiles)
+	{
+		double x = 0, y = 0, z = 0;
+		for (Tile tile : tiles)
+		{
+			final double phi = Math.toRadians(tile.getLat() + 0.5);
+			final double lambda = Math.toRadians(tile.getLon() + 0.5);
+			x += Math.cos(phi) * Math.cos(lambda);
+			y += Math.cos(phi) * Math.sin(lambda);
+			z += Math.sin(phi);
+		}
+		if (x == 0 && y == 0 && z == 0)
+		{
+			return new double[] { 0, 0 };
+		}
+		return new double[] {
+				Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y))),
+				Math.toDegrees(Math.atan2(y, x)) };
+	}
+
+	/**
+	 * @param value A number under 2^9
+	 * @return It's bits spread out to every other bit
+	 */
+	static long spread(int value)
+	{
+		long v = value;
+		v = (v | v << 8) & 0x00FF00FFL;
+		v = (v | v << 4) & 0x0F0F0F0FL;
+		v = (v | v << 2) & 0x33333333L;
+		v = (v | v << 1) & 0x55555555L;
+		return v;
+	}
+
+	/**
+	 * @param x Column [0, {@link #CURVE_SIDE})
+	 * @param y Row [0, {@link #CURVE_SIDE})
+	 * @return The distance along a Hilbert curve over the grid to the cell
+	 */
+	static long hilbert(int x, int y)
+	{
+		long d = 0;
+		for (int s = CURVE_SIDE >>> 1; s > 0; s >>>= 1)
+		{
+			final int rx = (x & s) != 0 ? 1 : 0;
+			final int ry = (y & s) != 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so the curve inside it lines up.
+			if (ry == 0)
+			{
+				if (rx == 1)
+				{
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				final int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * TileRange.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The tiles in a latitude/longitude box, made one at a time as they are
+ * iterated rather than all up front, so that even the whole globe costs
+ * nothing until each tile is reached.
+ * 
+ * @author Sean
+ *
+ */
+public final class TileRange implements Iterable<Tile>
+{
+
+	private final int startLat;
+	private final int endLat;
+	private final int startLon;
+	private final int endLon;
+
+	/**
+	 * Constructor, the bounds may be given in either order.
+	 * 
+	 * @param lat1 One latitude bound [inclusive]
+	 * @param lat2 The other latitude bound [inclusive]
+	 * @param lon1 One longitude bound [inclusive]
+	 * @param lon2 The other longitude bound [inclusive]
+	 */
+	public TileRange(int lat1, int lat2, int lon1, int lon2)
+	{
+		this.startLat = Math.min(lat1, lat2);
+		this.endLat = Math.max(lat1, lat2);
+		this.startLon = Math.min(lon1, lon2);
+		this.endLon = Math.max(lon1, lon2);
+	}
+
+	/**
+	 * @return The number of tiles in the box
+	 */
+	public long size()
+	{
+		return (long) (endLat - startLat + 1) * (endLon - startLon + 1);
+	}
+
+	@Override
+	public Iterator<Tile> iterator()
+	{
+		return new Iterator<Tile>()
+		{
+			int lat = startLat;
+			int lon = startLon;
+
+			@Override
+			public boolean hasNext()
+			{
+				return lat <= endLat;
+			}
+
+			@Override
+			public Tile next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				Tile tile = new Tile(lat, lon);
+				if (++lon > endLon)
+				{
+					lon = startLon;
+					++lat;
+				}
+				return tile;
+			}
+		};
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[" + startLat + ", " + endLat + "] x [" + startLon + ", "
+				+ endLon + "]";
+	}
+}
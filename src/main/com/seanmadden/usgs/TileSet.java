@@ -0,0 +1,450 @@
+/*
+ * TileSet.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of tiles, kept as one bit per tile of the whole globe (a little
+ * under 8 KB) indexed by {@link Tile#getIndex()}.
+ * <p>
+ * Areas are added by rasterizing them onto the one degree grid: a tile is in
+ * the set if it's interior meets the area's, so a polygon that only shares
+ * an edge with a tile doesn't pull it in. Sets can then be grown by a number
+ * of tiles, merged and subtracted. Iterating walks the bits in index order,
+ * a row of latitude at a time from the south, which is also the order the
+ * {@link DownloadJournal} keeps it's state in.
+ * 
+ * @author Sean
+ *
+ */
+public final class TileSet implements Iterable<Tile>
+{
+
+	private static final int ROWS = 180;
+	private static final int COLUMNS = 360;
+
+	private final long[] words = new long[(Tile.COUNT + 63) >>> 6];
+
+	/**
+	 * @param lat1 One latitude bound [inclusive]
+	 * @param lat2 The other latitude bound [inclusive]
+	 * @param lon1 One longitude bound [inclusive]
+	 * @param lon2 The other longitude bound [inclusive]
+	 * @return The tiles in the box
+	 */
+	public static TileSet box(int lat1, int lat2, int lon1, int lon2)
+	{
+		final TileSet set = new TileSet();
+		for (Tile tile : new TileRange(lat1, lat2, lon1, lon2))
+		{
+			set.add(tile.getLat(), tile.getLon());
+		}
+		return set;
+	}
+
+	/**
+	 * Adds a tile. Longitudes wrap around, latitudes off the grid are
+	 * ignored.
+	 * 
+	 * @param lat Latitude of the tile's south west corner
+	 * @param lon Longitude of the tile's south west corner
+	 */
+	public void add(int lat, int lon)
+	{
+		if (lat < -90 || lat >= 90)
+		{
+			return;
+		}
+		final int index = (lat + 90) * COLUMNS + Math.floorMod(lon + 180,
+				COLUMNS);
+		words[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * @param tile A tile
+	 */
+	public void add(Tile tile)
+	{
+		add(tile.getLat(), tile.getLon());
+	}
+
+	/**
+	 * @param tile A tile
+	 * @return True if it is in the set
+	 */
+	public boolean contains(Tile tile)
+	{
+		final int index = tile.getIndex();
+		return index >= 0 && index < Tile.COUNT
+				&& (words[index >>> 6] & 1L << index) != 0;
+	}
+
+	/**
+	 * Adds every tile of another set.
+	 * 
+	 * @param other The other set
+	 * @return This set
+	 */
+	public TileSet union(TileSet other)
+	{
+		for (int i = 0; i < words.length; ++i)
+		{
+			words[i] |= other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Removes every tile of another set.
+	 * 
+	 * @param other The other set
+	 * @return This set
+	 */
+	public TileSet difference(TileSet other)
+	{
+		for (int i = 0; i < words.length; ++i)
+		{
+			words[i] &= ~other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Grows the set by a number of tiles in every direction, diagonals
+	 * included, wrapping around in longitude.
+	 * 
+	 * @param tiles How far to grow it
+	 * @return This set
+	 */
+	public TileSet buffer(int tiles)
+	{
+		if (tiles <= 0 || isEmpty())
+		{
+			return this;
+		}
+		final boolean[] cells = new boolean[Tile.COUNT];
+		final boolean[] grown = new boolean[Tile.COUNT];
+		for (int index = nextSetBit(0); index >= 0; index = nextSetBit(index
+				+ 1))
+		{
+			cells[index] = true;
+		}
+
+		// across each row, then up and down each column.
+		final int reach = Math.min(tiles, COLUMNS / 2);
+		for (int row = 0; row < ROWS; ++row)
+		{
+			for (int col = 0; col < COLUMNS; ++col)
+			{
+				if (cells[row * COLUMNS + col])
+				{
+					for (int d = -reach; d <= reach; ++d)
+					{
+						grown[row * COLUMNS
+								+ Math.floorMod(col + d, COLUMNS)] = true;
+					}
+				}
+			}
+		}
+		for (int col = 0; col < COLUMNS; ++col)
+		{
+			for (int row = 0; row < ROWS; ++row)
+			{
+				if (grown[row * COLUMNS + col])
+				{
+					final int from = Math.max(0, row - tiles);
+					final int to = Math.min(ROWS - 1, row + tiles);
+					for (int r = from; r <= to; ++r)
+					{
+						cells[r * COLUMNS + col] = true;
+					}
+				}
+			}
+		}
+
+		for (int index = 0; index < Tile.COUNT; ++index)
+		{
+			if (cells[index])
+			{
+				words[index >>> 6] |= 1L << index;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Adds the tiles a polygon covers any of.
+	 * 
+	 * @param rings The outer ring and any holes, each a list of
+	 *            [longitude, latitude] positions
+	 */
+	public void addPolygon(List<double[][]> rings)
+	{
+		double minLat = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		for (double[][] ring : rings)
+		{
+			for (int i = 0; i < ring.length; ++i)
+			{
+				minLat = Math.min(minLat, ring[i][1]);
+				maxLat = Math.max(maxLat, ring[i][1]);
+				// tiles the boundary passes through.
+				addSegment(ring[i], ring[(i + 1) % ring.length], false);
+			}
+		}
+		if (minLat > maxLat)
+		{
+			return;
+		}
+
+		// tiles wholly inside, by whether their centres are (even-odd).
+		final List<Double> crossings = new ArrayList<>();
+		final int firstRow = Math.max(-90, (int) Math.floor(minLat));
+		final int lastRow = Math.min(89, (int) Math.floor(maxLat));
+		for (int lat = firstRow; lat <= lastRow; ++lat)
+		{
+			final double y = lat + 0.5;
+			crossings.clear();
+			for (double[][] ring : rings)
+			{
+				for (int i = 0; i < ring.length; ++i)
+				{
+					final double[] a = ring[i];
+					final double[] b = ring[(i + 1) % ring.length];
+					if ((a[1] > y) != (b[1] > y))
+					{
+						crossings.add(a[0] + (y - a[1]) * (b[0] - a[0])
+								/ (b[1] - a[1]));
+					}
+				}
+			}
+			crossings.sort(null);
+			for (int i = 0; i + 1 < crossings.size(); i += 2)
+			{
+				final int first = (int) Math.ceil(crossings.get(i) - 0.5);
+				final int last = Math.min(first + COLUMNS - 1,
+						(int) Math.floor(crossings.get(i + 1) - 0.5));
+				for (int lon = first; lon <= last; ++lon)
+				{
+					add(lat, lon);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the tiles a line passes through, including those it runs along
+	 * the southern or western edge of.
+	 * 
+	 * @param line [longitude, latitude] positions
+	 */
+	public void addLine(double[][] line)
+	{
+		if (line.length == 1)
+		{
+			addPoint(line[0]);
+		}
+		for (int i = 0; i + 1 < line.length; ++i)
+		{
+			addSegment(line[i], line[i + 1], true);
+		}
+	}
+
+	/**
+	 * Adds the tile a point is in.
+	 * 
+	 * @param point [longitude, latitude]
+	 */
+	public void addPoint(double[] point)
+	{
+		add((int) Math.floor(point[1]), (int) Math.floor(point[0]));
+	}
+
+	/**
+	 * Adds the tiles a segment passes through the inside of, found by
+	 * splitting it wherever it crosses a grid line and taking the tile of
+	 * each piece's middle.
+	 * 
+	 * @param onGrid Whether to add the northern or eastern tile of a piece
+	 *            that runs along a grid line, rather than neither
+	 */
+	private void addSegment(double[] a, double[] b, boolean onGrid)
+	{
+		final double dx = b[0] - a[0];
+		final double dy = b[1] - a[1];
+		final List<Double> cuts = new ArrayList<>();
+		cuts.add(0.);
+		cuts.add(1.);
+		addCuts(cuts, a[0], dx);
+		addCuts(cuts, a[1], dy);
+		cuts.sort(null);
+
+		for (int i = 0; i + 1 < cuts.size(); ++i)
+		{
+			final double t0 = cuts.get(i);
+			final double t1 = cuts.get(i + 1);
+			if (t1 <= t0)
+			{
+				// crossed a corner, both lines at once.
+				continue;
+			}
+			final double t = (t0 + t1) / 2;
+			final double x = a[0] + t * dx;
+			final double y = a[1] + t * dy;
+			if (!onGrid && (isOnGrid(x) && dx == 0 || isOnGrid(y) && dy == 0))
+			{
+				continue;
+			}
+			add((int) Math.floor(y), (int) Math.floor(x));
+		}
+	}
+
+	/**
+	 * Adds where a coordinate changing from start by delta crosses whole
+	 * degrees, as fractions of the way along.
+	 */
+	private static void addCuts(List<Double> cuts, double start, double delta)
+	{
+		if (delta == 0)
+		{
+			return;
+		}
+		final double end = start + delta;
+		for (double line = Math.ceil(Math.min(start, end)); line <= Math
+				.max(start, end); ++line)
+		{
+			final double t = (line - start) / delta;
+			if (t > 0 && t < 1)
+			{
+				cuts.add(t);
+			}
+		}
+	}
+
+	private static boolean isOnGrid(double coordinate)
+	{
+		return coordinate == Math.floor(coordinate);
+	}
+
+	/**
+	 * @return The number of tiles in the set
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (long word : words)
+		{
+			size += Long.bitCount(word);
+		}
+		return size;
+	}
+
+	/**
+	 * @return True if there are no tiles in the set
+	 */
+	public boolean isEmpty()
+	{
+		return nextSetBit(0) < 0;
+	}
+
+	/**
+	 * @param from The index to start looking at
+	 * @return The index of the next tile in the set, or -1 if none
+	 */
+	int nextSetBit(int from)
+	{
+		if (from >= Tile.COUNT)
+		{
+			return -1;
+		}
+		int i = from >>> 6;
+		long word = words[i] & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+			{
+				return (i << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++i == words.length)
+			{
+				return -1;
+			}
+			word = words[i];
+		}
+	}
+
+	@Override
+	public Iterator<Tile> iterator()
+	{
+		return new Iterator<Tile>()
+		{
+			int next = nextSetBit(0);
+
+			@Override
+			public boolean hasNext()
+			{
+				return next >= 0;
+			}
+
+			@Override
+			public Tile next()
+			{
+				if (next < 0)
+				{
+					throw new NoSuchElementException();
+				}
+				final Tile tile = Tile.fromIndex(next);
+				next = nextSetBit(next + 1);
+				return tile;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof TileSet
+				&& Arrays.equals(words, ((TileSet) obj).words);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(words);
+	}
+
+	@Override
+	public String toString()
+	{
+		return size() + " tiles";
+	}
+}
@@ -0,0 +1,884 @@
+/*
+ * TileStore.java
+ * 
+ * Copyright (C) 2014 Sean P Madden
+ * 
+ * The MIT License (MIT)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ */
+package com.seanmadden.usgs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A store of downloaded tiles kept across runs and working directories, so
+ * a tile is only ever downloaded once while it fits in the store.
+ * <p>
+ * Each tile's file is stored once by the SHA-256 of it's contents, under
+ * objects/ab/cd/abcd... so no directory gets too big, and tiles with the
+ * same contents share it. Which tile has which hash is kept in memory and
+ * in an append-only index file, replayed (and rewritten, least recently
+ * used first) on open, when anything left behind by a crash is also
+ * cleaned up. Once the objects outgrow the byte budget the least recently
+ * used tiles are evicted until they fit again.
+ * <p>
+ * Files are hashed as they are copied in and checked as they are copied
+ * out, so a damaged object is dropped rather than handed out. Copies are
+ * made outside the lock, into a temporary file renamed into place, so
+ * downloads storing and restoring tiles from many threads only hold the
+ * lock to update the index.
+ * <p>
+ * A {@link TileCache} may hold the most used tiles in memory in front of
+ * the disk, in which case restoring or reading them doesn't touch the disk.
+ * <p>
+ * Several processes may share a store. Each holds a shared lock on the
+ * store's lock file while it has it open, and the cleaning up and
+ * rewriting of the index are only done by a process that finds it can
+ * take that lock exclusively. Index lines are appended in single writes,
+ * and a process reads the lines the others have appended when it misses a
+ * tile. Storing and evicting tiles take a second lock, on the objects, so
+ * that an object is never deleted by one process just as another stores a
+ * tile as it. A lease on a tile, from {@link #getLeases()}, lets just one
+ * process download it while the others wait to restore it.
+ * 
+ * @author Sean
+ *
+ */
+public class TileStore implements Closeable
+{
+
+	private static final Logger LOG = Logger.getLogger(TileStore.class);
+
+	private static final String INDEX = "index";
+	private static final String OBJECTS = "objects";
+	private static final String TEMP = "tmp";
+	private static final String LEASES = "leases";
+	private static final String LOCK = "lock";
+	private static final String OBJECTS_LOCK = "objects.lock";
+
+	/**
+	 * A stored tile.
+	 */
+	private static final class Entry
+	{
+		final String hash;
+		final long size;
+
+		Entry(String hash, long size)
+		{
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	private final Path root;
+	private final long budget;
+	/** Tiles held in memory in front of the disk, null for none. */
+	private final TileCache memory;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Tile index to entry, least recently used first. */
+	private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(
+			16, 0.75f, true);
+	/** Hash to the number of tiles with it. */
+	private final Map<String, Integer> refs = new HashMap<>();
+	private long bytes = 0;
+	private FileChannel index;
+	/** How far into the index this process has read. */
+	private long indexRead = 0;
+	private TileLeases leases;
+	private FileChannel lockChannel;
+	private FileLock shared;
+	/** Locked while objects are stored as or deleted, see lockObjects(). */
+	private FileChannel objectsChannel;
+	private int hits = 0;
+	private int evictions = 0;
+
+	private TileStore(Path root, long budget, long memoryBudget)
+	{
+		this.root = root;
+		this.budget = budget;
+		this.memory = memoryBudget > 0 ? new TileCache(memoryBudget) : null;
+	}
+
+	/**
+	 * Opens a store, creating it if need be.
+	 * 
+	 * @param root The store's directory
+	 * @param budget The most bytes of tiles to keep
+	 * @param memoryBudget The most bytes of tiles to hold in a
+	 *            {@link TileCache} in front of the disk, 0 for none
+	 * @return The store
+	 * @throws IOException
+	 */
+	public static TileStore open(Path root, long budget, long memoryBudget)
+			throws IOException
+	{
+		TileStore store = new TileStore(root, budget, memoryBudget);
+		store.load();
+		return store;
+	}
+
+	/**
+	 * Copies a stored tile out of the store.
+	 * 
+	 * @param tile The tile
+	 * @param target Where to put it's file, replaced if it exists
+	 * @return True if it was in the store, and is now at the target
+	 * @throws IOException If the target can't be written
+	 */
+	public boolean restore(Tile tile, Path target) throws IOException
+	{
+		final Entry entry;
+		lock.lock();
+		try
+		{
+			if (!entries.containsKey(tile.getIndex()))
+			{
+				// another process may have stored it.
+				refresh();
+			}
+			entry = entries.get(tile.getIndex());
+			if (entry == null)
+			{
+				return false;
+			}
+			log("A " + tile.getIndex());
+		} finally
+		{
+			lock.unlock();
+		}
+
+		final Path temp = target.resolveSibling(target.getFileName() + "."
+				+ UUID.randomUUID() + ".tmp");
+		final ByteBuffer held = memory == null ? null : memory.get(tile);
+		try
+		{
+			if (held != null)
+			{
+				write(held, temp);
+				move(temp, target);
+				countHit();
+				return true;
+			}
+			final String hash;
+			try
+			{
+				hash = copy(objectPath(entry.hash), temp);
+			} catch (NoSuchFileException e)
+			{
+				// evicted since we looked.
+				return false;
+			}
+			if (!hash.equals(entry.hash))
+			{
+				LOG.warn("Dropping damaged " + tile + " from " + root);
+				remove(entry);
+				return false;
+			}
+			if (memory != null)
+			{
+				memory.put(tile, temp);
+			}
+			move(temp, target);
+		} finally
+		{
+			Files.deleteIfExists(temp);
+		}
+		countHit();
+		return true;
+	}
+
+	/**
+	 * Reads a stored tile, from memory if it's held there.
+	 * 
+	 * @param tile The tile
+	 * @return A read only view of it's file, or null if it isn't stored
+	 * @throws IOException If it can't be read
+	 */
+	public ByteBuffer read(Tile tile) throws IOException
+	{
+		final ByteBuffer held = memory == null ? null : memory.get(tile);
+		if (held != null)
+		{
+			return held;
+		}
+		final Entry entry;
+		lock.lock();
+		try
+		{
+			if (!entries.containsKey(tile.getIndex()))
+			{
+				refresh();
+			}
+			entry = entries.get(tile.getIndex());
+			if (entry == null)
+			{
+				return null;
+			}
+			log("A " + tile.getIndex());
+		} finally
+		{
+			lock.unlock();
+		}
+
+		final Path object = objectPath(entry.hash);
+		final ByteBuffer data;
+		try
+		{
+			data = ByteBuffer.wrap(Files.readAllBytes(object));
+		} catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		if (!hex(digest().digest(data.array())).equals(entry.hash))
+		{
+			LOG.warn("Dropping damaged " + tile + " from " + root);
+			remove(entry);
+			return null;
+		}
+		if (memory != null)
+		{
+			final ByteBuffer admitted = memory.put(tile, object);
+			if (admitted != null)
+			{
+				return admitted;
+			}
+		}
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies a tile's file into the store, evicting the least recently used
+	 * tiles if that takes it over budget. A file bigger than the whole
+	 * budget isn't stored.
+	 * 
+	 * @param tile The tile
+	 * @param file It's downloaded file
+	 * @throws IOException If it couldn't be stored
+	 */
+	public void put(Tile tile, Path file) throws IOException
+	{
+		final long size = Files.size(file);
+		if (size > budget)
+		{
+			return;
+		}
+		final Path temp = root.resolve(TEMP).resolve(
+				UUID.randomUUID() + ".tmp");
+		try
+		{
+			final String hash = copy(file, temp);
+			final int index = tile.getIndex();
+			lock.lock();
+			FileLock objectsLock = null;
+			try
+			{
+				// see what other processes have stored before evicting.
+				objectsLock = lockObjects();
+				final Entry old = entries.get(index);
+				if (old != null && old.hash.equals(hash))
+				{
+					log("A " + index);
+					return;
+				}
+				if (!refs.containsKey(hash))
+				{
+					final Path object = objectPath(hash);
+					Files.createDirectories(object.getParent());
+					move(temp, object);
+					bytes += size;
+				}
+				refs.merge(hash, 1, Integer::sum);
+				if (old != null)
+				{
+					unref(old);
+				}
+				entries.put(index, new Entry(hash, size));
+				log("P " + index + " " + hash + " " + size);
+				evict(index);
+			} finally
+			{
+				if (objectsLock != null)
+				{
+					objectsLock.release();
+				}
+				lock.unlock();
+			}
+			if (memory != null)
+			{
+				memory.put(tile, file);
+			}
+		} finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return The leases on the store's tiles
+	 */
+	public TileLeases getLeases()
+	{
+		return leases;
+	}
+
+	/**
+	 * @param tile A tile
+	 * @return True if it is in the store
+	 */
+	public boolean contains(Tile tile)
+	{
+		lock.lock();
+		try
+		{
+			return entries.containsKey(tile.getIndex());
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (index != null)
+			{
+				index.close();
+				index = null;
+			}
+			if (objectsChannel != null)
+			{
+				objectsChannel.close();
+				objectsChannel = null;
+			}
+			if (lockChannel != null)
+			{
+				// releases the shared lock with it.
+				lockChannel.close();
+				lockChannel = null;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		lock.lock();
+		try
+		{
+			return root + ": " + entries.size() + " tiles, "
+					+ (bytes / (1024 * 1024)) + " of "
+					+ (budget / (1024 * 1024)) + " mb, " + hits
+					+ " restored, " + evictions + " evicted"
+					+ (memory == null ? "" : ". " + memory);
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts least recently used tiles until the store fits it's budget.
+	 * Call holding the lock and the {@link #lockObjects()} lock.
+	 * 
+	 * @param keep The tile just stored, not to be evicted
+	 */
+	private void evict(int keep) throws IOException
+	{
+		final Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet()
+				.iterator();
+		while (bytes > budget && it.hasNext())
+		{
+			final Map.Entry<Integer, Entry> eldest = it.next();
+			if (eldest.getKey() == keep)
+			{
+				continue;
+			}
+			it.remove();
+			unref(eldest.getValue());
+			log("R " + eldest.getKey());
+			++evictions;
+		}
+	}
+
+	/**
+	 * Drops a damaged object, and the tiles that have it.
+	 */
+	private void remove(Entry entry) throws IOException
+	{
+		lock.lock();
+		FileLock objectsLock = null;
+		try
+		{
+			objectsLock = lockObjects();
+			// as do any other tiles sharing the object.
+			for (Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet()
+					.iterator(); it.hasNext();)
+			{
+				final Map.Entry<Integer, Entry> e = it.next();
+				if (e.getValue().hash.equals(entry.hash))
+				{
+					it.remove();
+					log("R " + e.getKey());
+				}
+			}
+			if (refs.remove(entry.hash) != null)
+			{
+				bytes -= entry.size;
+				Files.deleteIfExists(objectPath(entry.hash));
+			}
+		} finally
+		{
+			if (objectsLock != null)
+			{
+				objectsLock.release();
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lets go of a tile's object, deleting it if no tile has it now. Call
+	 * holding the lock and the {@link #lockObjects()} lock, so that no other
+	 * process can have stored a tile as the object since this one last
+	 * read the index.
+	 */
+	private void unref(Entry entry) throws IOException
+	{
+		if (release(entry))
+		{
+			Files.deleteIfExists(objectPath(entry.hash));
+		}
+	}
+
+	/**
+	 * Lets go of a tile's object without deleting it. Call holding the lock.
+	 * 
+	 * @return True if no tile has it now
+	 */
+	private boolean release(Entry entry)
+	{
+		final int count = refs.merge(entry.hash, -1, Integer::sum);
+		if (count <= 0)
+		{
+			refs.remove(entry.hash);
+			bytes -= entry.size;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Locks the objects against the other processes sharing the store, then
+	 * catches up with the tiles they have stored. A process that finds an
+	 * object already there stores it's tile as it without copying it, so
+	 * one deleting the object it thinks nothing else has must hold this
+	 * lock from reading the index until it is gone, as must one storing a
+	 * tile from finding the object there until the index says so. Call
+	 * holding the lock.
+	 * 
+	 * @return The lock to release, or null if the store is closed
+	 */
+	private FileLock lockObjects() throws IOException
+	{
+		if (objectsChannel == null)
+		{
+			return null;
+		}
+		final FileLock objectsLock = objectsChannel.lock();
+		try
+		{
+			refresh();
+		} catch (IOException | RuntimeException e)
+		{
+			objectsLock.release();
+			throw e;
+		}
+		return objectsLock;
+	}
+
+	private void countHit()
+	{
+		lock.lock();
+		try
+		{
+			++hits;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private Path objectPath(String hash)
+	{
+		return root.resolve(OBJECTS).resolve(hash.substring(0, 2))
+				.resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	/**
+	 * Appends a line to the index. Call holding the lock.
+	 */
+	private void log(String line)
+	{
+		if (index == null)
+		{
+			return;
+		}
+		try
+		{
+			// one write, so it can't interleave with another process's.
+			final ByteBuffer buf = ByteBuffer.wrap((line + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			while (buf.hasRemaining())
+			{
+				index.write(buf);
+			}
+		} catch (IOException e)
+		{
+			LOG.error("Unable to write to " + root.resolve(INDEX), e);
+		}
+	}
+
+	/**
+	 * Opens the store. If no other process has it open, first drops tiles
+	 * whose objects are missing or the wrong size, deletes objects no tile
+	 * has and leftover temporary files, and rewrites the index with a line
+	 * per tile.
+	 */
+	private void load() throws IOException
+	{
+		Files.createDirectories(root.resolve(OBJECTS));
+		Files.createDirectories(root.resolve(TEMP));
+		leases = new TileLeases(root.resolve(LEASES));
+		// readable too, for the shared lock.
+		lockChannel = FileChannel.open(root.resolve(LOCK),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		final FileLock exclusive = lockChannel.tryLock();
+		if (exclusive != null)
+		{
+			try
+			{
+				readIndex();
+				tidy();
+			} finally
+			{
+				exclusive.release();
+			}
+			entries.clear();
+			refs.clear();
+			bytes = 0;
+		}
+		shared = lockChannel.lock(0, Long.MAX_VALUE, true);
+		objectsChannel = FileChannel.open(root.resolve(OBJECTS_LOCK),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		final FileLock objectsLock = objectsChannel.lock();
+		try
+		{
+			readIndex();
+			index = FileChannel.open(root.resolve(INDEX),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			evict(-1);
+		} finally
+		{
+			objectsLock.release();
+		}
+	}
+
+	/**
+	 * Reads the whole index, keeping the tiles whose objects look right.
+	 */
+	private void readIndex() throws IOException
+	{
+		indexRead = readLines(0, false);
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();)
+		{
+			final Entry entry = it.next();
+			final Path object = objectPath(entry.hash);
+			if (!Files.exists(object) || Files.size(object) != entry.size)
+			{
+				it.remove();
+			}
+		}
+		for (Entry entry : entries.values())
+		{
+			if (refs.merge(entry.hash, 1, Integer::sum) == 1)
+			{
+				bytes += entry.size;
+			}
+		}
+	}
+
+	/**
+	 * Cleans up after crashed processes and compacts the index. Only safe
+	 * holding the store's lock exclusively.
+	 */
+	private void tidy() throws IOException
+	{
+		int orphans = deleteUnreferenced(root.resolve(OBJECTS));
+		try (DirectoryStream<Path> temps = Files.newDirectoryStream(root
+				.resolve(TEMP)))
+		{
+			for (Path temp : temps)
+			{
+				Files.deleteIfExists(temp);
+				++orphans;
+			}
+		}
+		if (orphans > 0)
+		{
+			LOG.info("Cleaned up " + orphans + " files left in " + root);
+		}
+
+		final Path temp = root.resolve(INDEX + ".tmp");
+		try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+		{
+			for (Map.Entry<Integer, Entry> e : entries.entrySet())
+			{
+				out.write("P " + e.getKey() + " " + e.getValue().hash + " "
+						+ e.getValue().size + "\n");
+			}
+		}
+		move(temp, root.resolve(INDEX));
+	}
+
+	/**
+	 * Applies the lines other processes have added to the index since it
+	 * was last read. This process's own lines come round again too, which
+	 * is harmless as they are already applied. Call holding the lock.
+	 */
+	private void refresh() throws IOException
+	{
+		if (index != null && index.size() > indexRead)
+		{
+			indexRead = readLines(indexRead, true);
+		}
+	}
+
+	/**
+	 * Applies the complete lines of the index from a position.
+	 * 
+	 * @param live True once the store is open, to keep the object counts as
+	 *            it goes
+	 * @return The position after the last complete line
+	 */
+	private long readLines(long from, boolean live) throws IOException
+	{
+		final Path path = root.resolve(INDEX);
+		if (!Files.exists(path))
+		{
+			return 0;
+		}
+		final byte[] data;
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			final ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0,
+					in.size() - from));
+			while (buf.hasRemaining() && in.read(buf, from + buf.position()) != -1)
+			{
+				// read it all.
+			}
+			data = buf.array();
+		}
+		int start = 0;
+		for (int i = 0; i < data.length; ++i)
+		{
+			if (data[i] == '\n')
+			{
+				apply(new String(data, start, i - start, StandardCharsets.UTF_8)
+						.split(" "), live);
+				start = i + 1;
+			}
+		}
+		// a line still being written is left for next time.
+		return from + start;
+	}
+
+	private void apply(String[] record, boolean live)
+	{
+		try
+		{
+			final Integer tileIndex = Integer.valueOf(record[1]);
+			if (record[0].equals("P") && record.length == 4)
+			{
+				final Entry entry = new Entry(record[2],
+						Long.parseLong(record[3]));
+				final Entry old = entries.remove(tileIndex);
+				entries.put(tileIndex, entry);
+				if (live && (old == null || !old.hash.equals(entry.hash)))
+				{
+					if (refs.merge(entry.hash, 1, Integer::sum) == 1)
+					{
+						bytes += entry.size;
+					}
+					if (old != null)
+					{
+						// whoever replaced it deletes it.
+						release(old);
+					}
+				}
+			} else if (record[0].equals("A"))
+			{
+				entries.get(tileIndex);
+			} else if (record[0].equals("R"))
+			{
+				final Entry old = entries.remove(tileIndex);
+				if (live && old != null)
+				{
+					release(old);
+				}
+			}
+		} catch (RuntimeException e)
+		{
+			// a line torn by a crash.
+			LOG.warn("Ignoring a damaged line in " + root.resolve(INDEX));
+		}
+	}
+
+	private int deleteUnreferenced(Path dir) throws IOException
+	{
+		int deleted = 0;
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(dir))
+		{
+			for (Path child : children)
+			{
+				if (Files.isDirectory(child))
+				{
+					deleted += deleteUnreferenced(child);
+				} else if (!refs.containsKey(child.getFileName().toString()))
+				{
+					Files.deleteIfExists(child);
+					++deleted;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Copies a file, fsyncing the copy.
+	 * 
+	 * @return The SHA-256 of it, in hex
+	 */
+	private static String copy(Path from, Path to) throws IOException
+	{
+		final MessageDigest digest = digest();
+		try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			while (in.read(buf) != -1)
+			{
+				buf.flip();
+				digest.update(buf.array(), 0, buf.limit());
+				while (buf.hasRemaining())
+				{
+					out.write(buf);
+				}
+				buf.clear();
+			}
+			out.force(true);
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Writes a buffer to a new file, fsyncing it.
+	 */
+	private static void write(ByteBuffer data, Path to) throws IOException
+	{
+		try (FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (data.hasRemaining())
+			{
+				out.write(data);
+			}
+			out.force(true);
+		}
+	}
+
+	private static MessageDigest digest() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("No SHA-256", e);
+		}
+	}
+
+	private static String hex(byte[] bytes)
+	{
+		final StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+		{
+			hex.append(Character.forDigit(b >> 4 & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void move(Path from, Path to) throws IOException
+	{
+		try
+		{
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
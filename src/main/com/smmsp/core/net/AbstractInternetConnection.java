@@ -24,8 +24,8 @@ package com.smmsp.core.net;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @author sean
@@ -52,10 +52,27 @@ public abstract class AbstractInternetConnection {
 	 * @throws IOException 
 	 */
 	public boolean saveToFile(final File f) throws IOException {
-		return Files.copy(getDataStream(), 
-				f.toPath(), 
-				StandardCopyOption.REPLACE_EXISTING) > 0;
-		
+		try (FileChannel out = FileChannel.open(f.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return transferTo(out) > 0;
+		}
+	}
+
+	/**
+	 * Writes the data into a file from the start. Subclasses that can move
+	 * bytes from the socket into the file without copying them through a
+	 * stream override this.
+	 * 
+	 * @param out
+	 *            The file to write to
+	 * @return The number of bytes written
+	 * @throws IOException
+	 */
+	protected long transferTo(final FileChannel out) throws IOException {
+		try (InputStream in = getDataStream()) {
+			return FileTransfer.copyAll(in, out, 0);
+		}
 	}
 
 	/**
@@ -0,0 +1,335 @@
+/*
+ * AdaptiveLimiter.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits how many downloads run at once, finding the limit as it goes rather
+ * than having it guessed up front.
+ * <p>
+ * Completed downloads are grouped into windows of roughly one download per
+ * permit. While each window moves more bytes per second than the last the
+ * limit keeps growing, doubling at first (slow start) and then by one. When
+ * more concurrency stops paying off it holds, and backs off by one while
+ * downloads take much longer per byte than the best seen (they're queueing
+ * for bandwidth with nothing to show for it). Throttling (429 and 503),
+ * timeouts and connection errors halve it, at most once per window, so a
+ * burst of failures from one event only counts once.
+ *
+ * @author Sean
+ *
+ */
+public class AdaptiveLimiter
+{
+
+	private static final Logger LOG = Logger.getLogger(AdaptiveLimiter.class);
+
+	/**
+	 * A window must be this much faster than the last to count as better.
+	 */
+	private static final double GAIN_THRESHOLD = 0.05;
+
+	/**
+	 * Time per byte, over the best seen, that counts as queueing.
+	 */
+	private static final double LATENCY_TOLERANCE = 1.5;
+
+	/**
+	 * What the limit is multiplied by on throttling or errors.
+	 */
+	private static final double BACKOFF = 0.5;
+
+	/**
+	 * Windows to hold at a plateau before probing upwards again.
+	 */
+	private static final int PLATEAU_WINDOWS = 4;
+
+	/**
+	 * How a download went.
+	 */
+	private enum Outcome
+	{
+		/**
+		 * Completed, with it's bytes and time counted.
+		 */
+		SUCCESS,
+
+		/**
+		 * Throttled, timed out or failed in the network. Backs off.
+		 */
+		DROPPED,
+
+		/**
+		 * Said nothing about capacity (a missing tile, a cancelled task).
+		 */
+		IGNORED
+	}
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	private int limit;
+	private int inFlight = 0;
+	private boolean slowStart = true;
+
+	private long windowStart = System.nanoTime();
+	private long windowBytes = 0;
+	private long windowNanos = 0;
+	private int windowCompletions = 0;
+	private boolean droppedThisWindow = false;
+
+	private double lastThroughput = 0;
+	private double minNanosPerByte = Double.MAX_VALUE;
+	private int plateau = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param initial The limit to start with
+	 * @param min The lowest the limit may go
+	 * @param max The highest the limit may go
+	 */
+	public AdaptiveLimiter(final int initial, final int min, final int max)
+	{
+		this.minLimit = Math.max(1, min);
+		this.maxLimit = Math.max(this.minLimit, max);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initial));
+	}
+
+	/**
+	 * Waits until another download may start.
+	 *
+	 * @return The permit, which must be closed once the download is over
+	 * @throws InterruptedException
+	 */
+	public Permit acquire() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (inFlight >= limit)
+			{
+				available.await();
+			}
+			++inFlight;
+			return new Permit();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The current limit
+	 */
+	public int getLimit()
+	{
+		lock.lock();
+		try
+		{
+			return limit;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of permits held
+	 */
+	public int getInFlight()
+	{
+		lock.lock();
+		try
+		{
+			return inFlight;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void complete(final Outcome outcome, final long bytes,
+			final long nanos)
+	{
+		lock.lock();
+		try
+		{
+			--inFlight;
+			if (outcome == Outcome.DROPPED)
+			{
+				onDropped();
+			} else if (outcome == Outcome.SUCCESS)
+			{
+				windowBytes += bytes;
+				windowNanos += nanos;
+				if (++windowCompletions >= limit)
+				{
+					endWindow();
+				}
+			}
+			available.signalAll();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void onDropped()
+	{
+		slowStart = false;
+		if (droppedThisWindow)
+		{
+			return;
+		}
+		droppedThisWindow = true;
+		setLimit((int) (limit * BACKOFF), "throttled or failing");
+	}
+
+	private void endWindow()
+	{
+		final long now = System.nanoTime();
+		final double throughput = windowBytes
+				/ Math.max(1e-9, (now - windowStart) / 1e9);
+		final double nanosPerByte = windowNanos / (double) windowBytes;
+		minNanosPerByte = Math.min(minNanosPerByte, nanosPerByte);
+		final double previous = lastThroughput;
+		lastThroughput = throughput;
+
+		if (!droppedThisWindow)
+		{
+			if (throughput > previous * (1 + GAIN_THRESHOLD))
+			{
+				plateau = 0;
+				setLimit(slowStart ? limit * 2 : limit + 1, "throughput up");
+			} else
+			{
+				slowStart = false;
+				if (nanosPerByte > minNanosPerByte * LATENCY_TOLERANCE)
+				{
+					plateau = 0;
+					setLimit(limit - 1, "latency up, throughput flat");
+				} else if (++plateau >= PLATEAU_WINDOWS)
+				{
+					// capacity may have freed up since.
+					plateau = 0;
+					setLimit(limit + 1, "probing");
+				}
+			}
+		}
+
+		windowStart = now;
+		windowBytes = 0;
+		windowNanos = 0;
+		windowCompletions = 0;
+		droppedThisWindow = false;
+	}
+
+	private void setLimit(final int newLimit, final String reason)
+	{
+		final int bounded = Math.min(maxLimit, Math.max(minLimit, newLimit));
+		if (bounded != limit)
+		{
+			LOG.debug("Concurrency " + limit + " -> " + bounded + " ("
+					+ reason + ", "
+					+ Math.round(lastThroughput / 1024) + " kb/s)");
+			limit = bounded;
+		}
+	}
+
+	/**
+	 * The right to run one download. Record how it went with
+	 * {@link #success(long)} or {@link #dropped()}; closing it without
+	 * either ignores it.
+	 *
+	 * @author Sean
+	 *
+	 */
+	public final class Permit implements AutoCloseable
+	{
+		private final long start = System.nanoTime();
+		private boolean done = false;
+
+		private Permit()
+		{
+			// only from acquire.
+		}
+
+		/**
+		 * The download finished.
+		 *
+		 * @param bytes How many bytes it moved
+		 */
+		public void success(final long bytes)
+		{
+			finish(bytes > 0 ? Outcome.SUCCESS : Outcome.IGNORED, bytes);
+		}
+
+		/**
+		 * The download was throttled, timed out or lost it's connection.
+		 */
+		public void dropped()
+		{
+			finish(Outcome.DROPPED, 0);
+		}
+
+		/**
+		 * Releases the permit without judging the download.
+		 */
+		@Override
+		public void close()
+		{
+			finish(Outcome.IGNORED, 0);
+		}
+
+		private synchronized void finish(final Outcome outcome,
+				final long bytes)
+		{
+			if (done)
+			{
+				return;
+			}
+			done = true;
+			complete(outcome, bytes, System.nanoTime() - start);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Permit held for "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ "ms";
+		}
+	}
+}
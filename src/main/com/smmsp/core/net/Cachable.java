@@ -22,9 +22,14 @@
 package com.smmsp.core.net;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
@@ -33,6 +38,11 @@ import com.smmsp.core.utils.OSAPI;
 /**
  * This interface represents an object that contains a cache, and can update
  * that cache.
+ * <p>
+ * The cache is fresh for a maximum age after it was last fetched (or last
+ * confirmed unchanged), set per entry. Validators for it (such as an HTTP
+ * ETag and Last-Modified) may be kept in a sidecar file next to it, so that
+ * a stale cache can be revalidated rather than fetched again.
  * 
  * @author sean
  * 
@@ -40,11 +50,21 @@ import com.smmsp.core.utils.OSAPI;
 public abstract class Cachable {
 
 	/**
-	 * Maximum length before the cache expires (1 week in seconds)
+	 * Default length before the cache expires (1 week in seconds)
 	 */
 	private static final int MAX_CACHE_TIMEOUT = 604800;
 	private static final Logger log = Logger.getLogger(Cachable.class);
 
+	/**
+	 * Appended to the cache's file name for it's validators.
+	 */
+	private static final String VALIDATORS_SUFFIX = ".validators";
+
+	/**
+	 * How long the cache is fresh for, in milliseconds.
+	 */
+	private long maxAgeMillis = MAX_CACHE_TIMEOUT * 1000L;
+
 	/**
 	 * An exception to be thrown when there is an issue with the cache
 	 * 
@@ -83,10 +103,29 @@ public abstract class Cachable {
 	 */
 	public abstract void updateCache() throws CacheException;
 
+	/**
+	 * @return How long the cache is fresh for after it's fetched, in
+	 *         milliseconds
+	 */
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * Sets how long this entry's cache is fresh for.
+	 * 
+	 * @param millis
+	 *            Milliseconds after it's fetched (or revalidated)
+	 */
+	public void setMaxAgeMillis(final long millis) {
+		this.maxAgeMillis = millis;
+	}
+
 	/**
 	 * Does this cachable need to update it's cache?
 	 * 
-	 * @return True if the cache needs updating.
+	 * @return True if the cache is missing, or older than
+	 *         {@link #getMaxAgeMillis()}.
 	 */
 	public boolean cacheNeedsUpdate() throws CacheException {
 		try {
@@ -105,26 +144,103 @@ public abstract class Cachable {
 		} else {
 			try {
 				FileTime time = Files.getLastModifiedTime(fullCachedFile);
-				FileTime now = FileTime.fromMillis(System.currentTimeMillis()
-						+ MAX_CACHE_TIMEOUT * 1000);
+				long age = System.currentTimeMillis() - time.toMillis();
 
-				if (now.compareTo(time) < 0) {
+				if (age > maxAgeMillis) {
 					// cache is invalidated.
 					needsDownload = true;
 				}
 			} catch (IOException e) {
 				log.error(
-						"Unable to get file modification time on leaps cache",
-						e);
+						"Unable to get file modification time on cache "
+								+ fullCachedFile, e);
 				throw new CacheException(
-						"Unable to get file modification time on leaps cache",
-						e);
+						"Unable to get file modification time on cache "
+								+ fullCachedFile, e);
 			}
 		}
 
 		return needsDownload;
 	}
 
+	/**
+	 * Restarts the cache's maximum age, once it's been found unchanged.
+	 * 
+	 * @throws IOException
+	 */
+	protected void markFresh() throws IOException {
+		Files.setLastModifiedTime(getPathToCache(),
+				FileTime.fromMillis(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return The validators saved with the cache, empty if there are none
+	 *         (or the cache itself is missing).
+	 */
+	protected Properties loadValidators() {
+		final Properties validators = new Properties();
+		final Path path = getPathToValidators();
+		if (Files.notExists(getPathToCache()) || Files.notExists(path)) {
+			return validators;
+		}
+		try (InputStream in = Files.newInputStream(path)) {
+			validators.load(in);
+		} catch (IOException e) {
+			// they only save a download, so do without.
+			log.warn("Unable to read cache validators " + path, e);
+			validators.clear();
+		}
+		return validators;
+	}
+
+	/**
+	 * Replaces the validators saved with the cache.
+	 * 
+	 * @param validators
+	 *            The validators, none to delete them
+	 * @throws IOException
+	 */
+	protected void saveValidators(final Properties validators)
+			throws IOException {
+		final Path path = getPathToValidators();
+		if (validators.isEmpty()) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			validators.store(out, "");
+		}
+		replace(temp, path);
+	}
+
+	/**
+	 * @return The sidecar file the cache's validators are kept in.
+	 * @throws CacheException
+	 */
+	protected Path getPathToValidators() throws CacheException {
+		final Path cache = getPathToCache();
+		return cache.resolveSibling(cache.getFileName() + VALIDATORS_SUFFIX);
+	}
+
+	/**
+	 * Moves a file over another, atomically where the file system can.
+	 * 
+	 * @param from
+	 *            The new file
+	 * @param to
+	 *            The file it replaces
+	 * @throws IOException
+	 */
+	protected static void replace(final Path from, final Path to)
+			throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	/**
 	 * Returns the path to this cachable's cache.
 	 * 
@@ -0,0 +1,171 @@
+/*
+ * ChunkedInputStream.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a Transfer-Encoding: chunked body as it is read, returning -1
+ * after the last chunk and it's trailers have been consumed so the
+ * connection is left positioned at the next response.
+ *
+ * @author Sean
+ *
+ */
+public class ChunkedInputStream extends FilterInputStream
+{
+
+	/**
+	 * Bytes left in the current chunk.
+	 */
+	private long chunkRemaining = 0;
+
+	/**
+	 * True once the zero length chunk has been read.
+	 */
+	private boolean finished = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in The socket stream, positioned at the first chunk header
+	 */
+	public ChunkedInputStream(final InputStream in)
+	{
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!nextChunk())
+		{
+			return -1;
+		}
+		final int chr = in.read();
+		if (chr == -1)
+		{
+			throw new EOFException(
+					"Connection closed in the middle of a chunk");
+		}
+		--chunkRemaining;
+		return chr;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		if (!nextChunk())
+		{
+			return -1;
+		}
+		final int num = in.read(b, off, (int) Math.min(len, chunkRemaining));
+		if (num == -1)
+		{
+			throw new EOFException(
+					"Connection closed in the middle of a chunk");
+		}
+		chunkRemaining -= num;
+		return num;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		if (finished)
+		{
+			return 0;
+		}
+		return (int) Math.min(in.available(), chunkRemaining);
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * Moves on to the next chunk if the current one has been used up.
+	 *
+	 * @return False once the last chunk has been read.
+	 * @throws IOException
+	 */
+	private boolean nextChunk() throws IOException
+	{
+		if (finished)
+		{
+			return false;
+		}
+		if (chunkRemaining > 0)
+		{
+			return true;
+		}
+
+		String line = HTTPConnection.readLine(in);
+		// the CRLF that ends the previous chunk's data.
+		if (line != null && line.isEmpty())
+		{
+			line = HTTPConnection.readLine(in);
+		}
+		if (line == null)
+		{
+			throw new EOFException("Connection closed before the last chunk");
+		}
+
+		final int ext = line.indexOf(';');
+		final String size = (ext == -1 ? line : line.substring(0, ext)).trim();
+		try
+		{
+			chunkRemaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e)
+		{
+			throw new IOException("Bad chunk size: " + line, e);
+		}
+
+		if (chunkRemaining == 0)
+		{
+			// skip any trailers up to the blank line that ends the body.
+			while ((line = HTTPConnection.readLine(in)) != null
+					&& !line.isEmpty())
+			{
+				// no-op
+			}
+			finished = true;
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * CircuitBreaker.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stops every download from going to a host that is down, rather than
+ * letting each one find out for itself.
+ * <p>
+ * After enough failures in a row (throttling or no answer at all, redirects
+ * don't count either way) the breaker opens and everything waits for a
+ * cool-down. Then a single request is let through as a probe: if the host
+ * answers, the breaker closes and everyone carries on, otherwise it opens
+ * again for twice as long (up to {@link #MAX_COOLDOWN_FACTOR} times the
+ * first). A Retry-After from the host holds everyone back for that long
+ * even while the breaker is closed.
+ *
+ * @author Sean
+ *
+ */
+public class CircuitBreaker
+{
+
+	private static final Logger LOG = Logger.getLogger(CircuitBreaker.class);
+
+	/**
+	 * The longest cool-down, as a multiple of the first.
+	 */
+	private static final int MAX_COOLDOWN_FACTOR = 16;
+
+	/**
+	 * One breaker per host.
+	 */
+	private static final ConcurrentMap<String, CircuitBreaker> HOSTS = new ConcurrentHashMap<>();
+
+	private static volatile int defaultThreshold = 5;
+	private static volatile long defaultCooldownMillis = 30000;
+
+	private enum State
+	{
+		/**
+		 * Requests go through.
+		 */
+		CLOSED,
+
+		/**
+		 * Requests wait for the cool-down.
+		 */
+		OPEN,
+
+		/**
+		 * A probe is out, everything else waits for it.
+		 */
+		HALF_OPEN
+	}
+
+	private final String host;
+	private final int threshold;
+	private final long baseCooldownMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long cooldownMillis;
+	private long openUntil = 0;
+	private long pausedUntil = 0;
+	private long probeStarted = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param host The host it guards
+	 * @param threshold Failures in a row that open it
+	 * @param cooldownMillis How long it stays open the first time
+	 */
+	public CircuitBreaker(final String host, final int threshold,
+			final long cooldownMillis)
+	{
+		this.host = host;
+		this.threshold = Math.max(1, threshold);
+		this.baseCooldownMillis = Math.max(1, cooldownMillis);
+		this.cooldownMillis = this.baseCooldownMillis;
+	}
+
+	/**
+	 * Sets up the breakers made by {@link #forHost(String)} from now on.
+	 *
+	 * @param threshold Failures in a row that open a breaker
+	 * @param cooldownMillis How long it stays open the first time
+	 */
+	public static void configure(final int threshold, final long cooldownMillis)
+	{
+		defaultThreshold = threshold;
+		defaultCooldownMillis = cooldownMillis;
+	}
+
+	/**
+	 * @param host A host name
+	 * @return The breaker for it
+	 */
+	public static CircuitBreaker forHost(final String host)
+	{
+		return HOSTS.computeIfAbsent(host.toLowerCase(),
+				h -> new CircuitBreaker(h, defaultThreshold,
+						defaultCooldownMillis));
+	}
+
+	/**
+	 * Asks to send a request without waiting. If the breaker is half open
+	 * and this returns 0, the request is the probe and it's outcome must be
+	 * recorded.
+	 *
+	 * @return 0 to go ahead, otherwise the milliseconds to wait before
+	 *         asking again
+	 */
+	public long delayMillis()
+	{
+		lock.lock();
+		try
+		{
+			final long now = System.currentTimeMillis();
+			if (now < pausedUntil)
+			{
+				return pausedUntil - now;
+			}
+			switch (state)
+			{
+			case OPEN:
+				if (now < openUntil)
+				{
+					return openUntil - now;
+				}
+				state = State.HALF_OPEN;
+				probeStarted = now;
+				LOG.info("Probing " + host);
+				return 0;
+			case HALF_OPEN:
+				// a probe that never reported back is given up on.
+				if (now - probeStarted < cooldownMillis)
+				{
+					return Math.min(1000, probeStarted + cooldownMillis - now);
+				}
+				probeStarted = now;
+				return 0;
+			default:
+				return 0;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a request may be sent.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException
+	{
+		long wait;
+		while ((wait = delayMillis()) > 0)
+		{
+			lock.lock();
+			try
+			{
+				changed.await(wait, TimeUnit.MILLISECONDS);
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * The host answered.
+	 */
+	public void success()
+	{
+		lock.lock();
+		try
+		{
+			failures = 0;
+			if (state != State.CLOSED)
+			{
+				LOG.info(host + " is answering again");
+				state = State.CLOSED;
+				cooldownMillis = baseCooldownMillis;
+				changed.signalAll();
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The host answered with a redirect, which says it's up but not that it
+	 * can serve what was asked for. If half open, the request it was
+	 * redirected to may probe it instead.
+	 */
+	public void redirected()
+	{
+		lock.lock();
+		try
+		{
+			if (state == State.HALF_OPEN)
+			{
+				probeStarted = 0;
+				changed.signalAll();
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The host throttled the request or didn't answer.
+	 *
+	 * @param retryAfterMillis How long it asked to be left alone for, -1 if
+	 *            it didn't say
+	 */
+	public void failure(final long retryAfterMillis)
+	{
+		lock.lock();
+		try
+		{
+			final long now = System.currentTimeMillis();
+			++failures;
+			if (retryAfterMillis > 0)
+			{
+				pausedUntil = Math.max(pausedUntil, now + retryAfterMillis);
+			}
+			if (state == State.HALF_OPEN)
+			{
+				cooldownMillis = Math.min(cooldownMillis * 2,
+						baseCooldownMillis * MAX_COOLDOWN_FACTOR);
+				open(now, retryAfterMillis);
+			} else if (state == State.CLOSED && failures >= threshold)
+			{
+				open(now, retryAfterMillis);
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void open(final long now, final long retryAfterMillis)
+	{
+		state = State.OPEN;
+		openUntil = now + Math.max(cooldownMillis, retryAfterMillis);
+		LOG.warn(host + " failed " + failures
+				+ " times in a row, pausing requests to it for "
+				+ (openUntil - now) + "ms");
+	}
+
+	@Override
+	public String toString()
+	{
+		lock.lock();
+		try
+		{
+			return "Circuit breaker for " + host + " " + state + " after "
+					+ failures + " failures";
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+}
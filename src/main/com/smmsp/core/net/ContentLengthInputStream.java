@@ -0,0 +1,255 @@
+/*
+ * ContentLengthInputStream.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import com.smmsp.core.net.HTTPConnectionPool.ConnectionInputStream;
+
+/**
+ * Streams a response body straight off of the socket, stopping after
+ * Content-Length bytes so that nothing past the body is ever consumed. When
+ * the socket has a channel the body can also be moved into a file without
+ * passing through the Java heap, see
+ * {@link #transferTo(FileChannel, long, long)}.
+ *
+ * @author Sean
+ *
+ */
+public class ContentLengthInputStream extends FilterInputStream
+{
+
+	/**
+	 * The most moved by each transferFrom, so the read timeout watchdog sees
+	 * progress on a fast transfer.
+	 */
+	private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+	/**
+	 * Number of body bytes left to read.
+	 */
+	private long remaining;
+
+	/**
+	 * The socket the body is read from, null if unknown.
+	 */
+	private final Socket socket;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in The socket stream, positioned at the start of the body
+	 * @param length The value of the Content-Length header
+	 */
+	public ContentLengthInputStream(final InputStream in, final long length)
+	{
+		this(in, length, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param in The socket stream, positioned at the start of the body
+	 * @param length The value of the Content-Length header
+	 * @param socket The socket underneath in, or null if unknown
+	 */
+	public ContentLengthInputStream(final InputStream in, final long length,
+			final Socket socket)
+	{
+		super(in);
+		this.remaining = Math.max(0, length);
+		this.socket = socket;
+	}
+
+	/**
+	 * @return The number of body bytes that have not been read yet
+	 */
+	public long getRemaining()
+	{
+		return remaining;
+	}
+
+	/**
+	 * Moves up to count bytes of the body into a file. Anything the socket
+	 * stream has already read ahead is written first, then the rest goes
+	 * from the socket's channel straight into the file with
+	 * {@link FileChannel#transferFrom}. Without a channel (TLS) the bytes
+	 * are copied through {@link FileTransfer}'s per-thread buffer.
+	 *
+	 * @param out Where to write the body
+	 * @param position The file offset to write the first byte at
+	 * @param count The most to move
+	 * @return The number of bytes moved, or -1 if the body has all been read
+	 * @throws IOException
+	 */
+	public long transferTo(final FileChannel out, final long position,
+			final long count) throws IOException
+	{
+		if (remaining <= 0)
+		{
+			return -1;
+		}
+		final long wanted = Math.min(count, remaining);
+		final SocketChannel channel = socket == null ? null : socket
+				.getChannel();
+		if (channel == null || !(in instanceof ConnectionInputStream))
+		{
+			return FileTransfer.copy(this, out, position, wanted);
+		}
+
+		final ConnectionInputStream buffer = (ConnectionInputStream) in;
+		final ReadWatchdog watchdog = ReadWatchdog.start(channel,
+				socket.getSoTimeout());
+		long moved = 0;
+		try
+		{
+			while (moved < wanted)
+			{
+				final int buffered = buffer.buffered();
+				if (buffered > 0 || position + moved > out.size())
+				{
+					// read-ahead bytes come first. transferFrom also won't
+					// write past the end of the file, so that is extended
+					// through the stream too.
+					moved += FileTransfer.copy(this, out, position + moved,
+							Math.min(Math.max(buffered, 1), wanted - moved));
+					continue;
+				}
+				final long num = out.transferFrom(channel, position + moved,
+						Math.min(wanted - moved, TRANSFER_CHUNK));
+				if (num <= 0)
+				{
+					throw new EOFException("Connection closed with "
+							+ remaining + " bytes of the body left unread");
+				}
+				remaining -= num;
+				moved += num;
+				if (watchdog != null)
+				{
+					watchdog.progress();
+				}
+			}
+		} catch (ClosedChannelException e)
+		{
+			if (watchdog != null && watchdog.isExpired())
+			{
+				final SocketTimeoutException timeout = new SocketTimeoutException(
+						"Read timed out with " + remaining
+								+ " bytes of the body left unread");
+				timeout.initCause(e);
+				throw timeout;
+			}
+			throw e;
+		} finally
+		{
+			if (watchdog != null)
+			{
+				watchdog.cancel();
+			}
+		}
+		return moved;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (remaining <= 0)
+		{
+			return -1;
+		}
+		final int chr = in.read();
+		if (chr == -1)
+		{
+			throw new EOFException("Connection closed with " + remaining
+					+ " bytes of the body left unread");
+		}
+		--remaining;
+		return chr;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		if (remaining <= 0)
+		{
+			return -1;
+		}
+		if (len == 0)
+		{
+			return 0;
+		}
+		final int num = in.read(b, off, (int) Math.min(len, remaining));
+		if (num == -1)
+		{
+			throw new EOFException("Connection closed with " + remaining
+					+ " bytes of the body left unread");
+		}
+		remaining -= num;
+		return num;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		final long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(final int readlimit)
+	{
+		// not supported.
+	}
+
+	@Override
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+}
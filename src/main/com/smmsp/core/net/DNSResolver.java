@@ -0,0 +1,270 @@
+/*
+ * DNSResolver.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves host names for new connections, caching the answers for a fixed
+ * time so that each connection doesn't cost a lookup. When a name has more
+ * than one address they are offered either in turn (round robin) or by how
+ * quickly each has accepted connections before (fastest first, where
+ * addresses that fail to connect drop to the back).
+ *
+ * @author Sean
+ *
+ */
+public final class DNSResolver
+{
+
+	private static final Logger LOG = Logger.getLogger(DNSResolver.class);
+
+	/**
+	 * How to order the addresses of a host.
+	 */
+	public enum Selection
+	{
+		/**
+		 * Start at the next address each time.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * Quickest to connect first, addresses not tried yet before any.
+		 */
+		FASTEST
+	}
+
+	/**
+	 * Connect time charged to an address that refused or timed out.
+	 */
+	private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS
+			.toNanos(10);
+
+	private static DNSResolver defaultResolver = new DNSResolver(
+			TimeUnit.SECONDS.toMillis(60), Selection.FASTEST);
+
+	private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Moving average of the connect time to each address, in nanos.
+	 */
+	private final ConcurrentHashMap<InetAddress, AtomicLong> connectTimes = new ConcurrentHashMap<>();
+
+	private volatile long ttlMillis;
+	private volatile Selection selection;
+
+	/**
+	 * Constructor
+	 *
+	 * @param ttlMillis How long answers are cached for
+	 * @param selection How to order a host's addresses
+	 */
+	public DNSResolver(final long ttlMillis, final Selection selection)
+	{
+		this.ttlMillis = ttlMillis;
+		this.selection = selection;
+	}
+
+	/**
+	 * @return The resolver shared by all connections
+	 */
+	public static synchronized DNSResolver getDefault()
+	{
+		return defaultResolver;
+	}
+
+	/**
+	 * @param resolver The resolver for all connections to share
+	 */
+	public static synchronized void setDefault(final DNSResolver resolver)
+	{
+		defaultResolver = resolver;
+	}
+
+	/**
+	 * @param ttlMillis How long answers are cached for, 0 to not cache
+	 */
+	public void setTTLMillis(final long ttlMillis)
+	{
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param selection How to order a host's addresses
+	 */
+	public void setSelection(final Selection selection)
+	{
+		this.selection = selection;
+	}
+
+	/**
+	 * Looks up a host, from the cache if the answer is fresh.
+	 *
+	 * @param host The host name or address literal
+	 * @return It's addresses, in the order they should be tried
+	 * @throws UnknownHostException If the name doesn't resolve
+	 */
+	public List<InetAddress> resolve(final String host)
+			throws UnknownHostException
+	{
+		final String key = host.toLowerCase();
+		Entry ent = cache.get(key);
+		if (ent == null || System.nanoTime() - ent.expires > 0)
+		{
+			ent = lookup(key);
+		}
+		return order(ent);
+	}
+
+	/**
+	 * Resolves hosts in the background so their first connections don't
+	 * wait on DNS. Failures are only logged.
+	 *
+	 * @param hosts The hosts that will be connected to
+	 * @return Completes once every host has been looked up
+	 */
+	public CompletableFuture<Void> preResolve(final Collection<String> hosts)
+	{
+		final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+		for (String host : hosts)
+		{
+			lookups.add(CompletableFuture.runAsync(() ->
+			{
+				try
+				{
+					lookup(host.toLowerCase());
+				} catch (UnknownHostException e)
+				{
+					LOG.warn("Unable to resolve " + host, e);
+				}
+			}));
+		}
+		return CompletableFuture.allOf(lookups
+				.toArray(new CompletableFuture<?>[lookups.size()]));
+	}
+
+	/**
+	 * Records how long a connection took to establish.
+	 *
+	 * @param addr The address connected to
+	 * @param nanos How long it took
+	 */
+	public void recordConnect(final InetAddress addr, final long nanos)
+	{
+		final AtomicLong avg = connectTimes.computeIfAbsent(addr,
+				k -> new AtomicLong());
+		avg.accumulateAndGet(nanos, (old, sample) -> old == 0 ? Math.max(1,
+				sample) : (old * 7 + sample) / 8);
+	}
+
+	/**
+	 * Records a failed connection attempt, so that with
+	 * {@link Selection#FASTEST} the address is tried after the others.
+	 *
+	 * @param addr The address that couldn't be connected to
+	 */
+	public void recordFailure(final InetAddress addr)
+	{
+		recordConnect(addr, FAILURE_PENALTY_NANOS);
+	}
+
+	/**
+	 * Forgets every cached answer.
+	 */
+	public void clear()
+	{
+		cache.clear();
+	}
+
+	private Entry lookup(final String host) throws UnknownHostException
+	{
+		final Entry ent = new Entry(InetAddress.getAllByName(host),
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+		cache.put(host, ent);
+		LOG.debug("Resolved " + host + " to " + Arrays.toString(ent.addresses));
+		return ent;
+	}
+
+	private List<InetAddress> order(final Entry ent)
+	{
+		final InetAddress[] addrs = ent.addresses;
+		final List<InetAddress> ordered = new ArrayList<>(addrs.length);
+		if (addrs.length == 1)
+		{
+			ordered.add(addrs[0]);
+			return ordered;
+		}
+		final int start = Math.floorMod(ent.next.getAndIncrement(),
+				addrs.length);
+		for (int i = 0; i < addrs.length; ++i)
+		{
+			ordered.add(addrs[(start + i) % addrs.length]);
+		}
+		if (selection == Selection.FASTEST)
+		{
+			// stable, so ties keep the round robin order.
+			ordered.sort(Comparator.comparingLong(this::connectTime));
+		}
+		return ordered;
+	}
+
+	private long connectTime(final InetAddress addr)
+	{
+		final AtomicLong avg = connectTimes.get(addr);
+		return avg == null ? 0 : avg.get();
+	}
+
+	/**
+	 * A cached answer.
+	 */
+	private static final class Entry
+	{
+		final InetAddress[] addresses;
+		final long expires;
+		final AtomicInteger next = new AtomicInteger();
+
+		Entry(final InetAddress[] addresses, final long expires)
+		{
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+}
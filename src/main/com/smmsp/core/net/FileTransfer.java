@@ -0,0 +1,188 @@
+/*
+ * FileTransfer.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies bodies that can't go socket-to-file (TLS, compressed, chunked)
+ * into a FileChannel through a single scratch buffer per thread, so no
+ * buffers are allocated per transfer. Virtual threads are started for every
+ * download and never reused, so they borrow a buffer from a small shared
+ * pool for each copy instead of keeping one of their own.
+ *
+ * @author Sean
+ *
+ */
+public final class FileTransfer
+{
+
+	/**
+	 * Size of each thread's scratch buffer.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Each platform thread's scratch buffer.
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+	/**
+	 * Buffers returned by virtual threads, kept for the next ones.
+	 */
+	private static final BlockingQueue<ByteBuffer> POOL =
+			new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime()
+					.availableProcessors() * 2));
+
+	/**
+	 * Thread.isVirtual(), or null before Java 21 when there are no virtual
+	 * threads. Found reflectively as this builds with an older target.
+	 */
+	private static final Method IS_VIRTUAL = findIsVirtual();
+
+	/**
+	 * Empty constructor.
+	 */
+	private FileTransfer()
+	{
+		// do nothing.
+	}
+
+	/**
+	 * Copies up to count bytes from the stream into the file at position.
+	 *
+	 * @param in Where to read from
+	 * @param out Where to write to
+	 * @param position The file offset to write the first byte at
+	 * @param count The most to copy
+	 * @return The number copied, or -1 if the stream was already at it's end
+	 * @throws IOException
+	 */
+	public static long copy(final InputStream in, final FileChannel out,
+			final long position, final long count) throws IOException
+	{
+		final boolean pooled = isVirtual();
+		ByteBuffer buf = pooled ? POOL.poll() : BUFFER.get();
+		if (buf == null)
+		{
+			buf = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		try
+		{
+			return copy(in, out, position, count, buf);
+		} finally
+		{
+			if (pooled)
+			{
+				// dropped if the pool is already full.
+				POOL.offer(buf);
+			}
+		}
+	}
+
+	private static long copy(final InputStream in, final FileChannel out,
+			final long position, final long count, final ByteBuffer buf)
+			throws IOException
+	{
+		final byte[] arr = buf.array();
+		long copied = 0;
+		while (copied < count)
+		{
+			final int num = in.read(arr, 0,
+					(int) Math.min(arr.length, count - copied));
+			if (num == -1)
+			{
+				return copied == 0 ? -1 : copied;
+			}
+			buf.clear();
+			buf.limit(num);
+			while (buf.hasRemaining())
+			{
+				out.write(buf, position + copied + buf.position());
+			}
+			copied += num;
+		}
+		return copied;
+	}
+
+	/**
+	 * Copies everything left in the stream into the file at position.
+	 *
+	 * @param in Where to read from
+	 * @param out Where to write to
+	 * @param position The file offset to write the first byte at
+	 * @return The number of bytes copied
+	 * @throws IOException
+	 */
+	public static long copyAll(final InputStream in, final FileChannel out,
+			final long position) throws IOException
+	{
+		long total = 0;
+		long num;
+		while ((num = copy(in, out, position + total, Long.MAX_VALUE)) != -1)
+		{
+			total += num;
+		}
+		return total;
+	}
+
+	/**
+	 * @return True if the current thread is a virtual thread
+	 */
+	private static boolean isVirtual()
+	{
+		if (IS_VIRTUAL == null)
+		{
+			return false;
+		}
+		try
+		{
+			return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e)
+		{
+			return false;
+		}
+	}
+
+	private static Method findIsVirtual()
+	{
+		try
+		{
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+}
@@ -22,25 +22,33 @@
 package com.smmsp.core.net;
 
 import java.io.IOException;
-import java.net.ProtocolException;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
 import com.smmsp.core.utils.OSAPI;
 
 /**
+ * A file downloaded over HTTP into the cache directory. The response's ETag
+ * and Last-Modified are kept beside it, and updating a file that's already
+ * cached asks the server with If-None-Match and If-Modified-Since, so an
+ * unchanged file costs a 304 rather than a download.
+ * 
  * @author sean
  *
  */
 public class HTTPCachedFile extends Cachable {
 
 	private static final Logger log = Logger.getLogger(HTTPCachedFile.class);
+
+	private static final String ETAG = "ETag";
+
+	private static final String LAST_MODIFIED = "Last-Modified";
 	
 	private final String filename;
 	
@@ -58,34 +66,86 @@ public class HTTPCachedFile extends Cachable {
 		this.url = url;
 		
 	}
+
+	/**
+	 * Constructor for a file that goes stale after a time of it's own.
+	 * @param filename
+	 * @param url
+	 * @param maxAgeMillis How long the file is fresh for once fetched
+	 */
+	public HTTPCachedFile(
+			final String filename,
+			final String url,
+			final long maxAgeMillis){
+		this(filename, url);
+		setMaxAgeMillis(maxAgeMillis);
+	}
 	
 	/* (non-Javadoc)
 	 * @see com.smmsp.core.net.Cachable#updateCache()
 	 */
 	@Override
 	public void updateCache() throws CacheException {
-		Path fullCachedFile = getPathToCache();
+		final Path fullCachedFile = getPathToCache();
+		final Properties validators = loadValidators();
+		// the old copy is kept until the new one is all here.
+		final Path temp = fullCachedFile.resolveSibling(fullCachedFile
+				.getFileName() + ".tmp");
 
 		try {
-			HTTPConnection conn = new HTTPConnection(url);
+			OSAPI.ensureCacheDirExists();
+			final HTTPConnection conn = new HTTPConnection(url);
+			if (validators.containsKey(ETAG)) {
+				conn.addHeader("If-None-Match", validators.getProperty(ETAG));
+			}
+			if (validators.containsKey(LAST_MODIFIED)) {
+				conn.addHeader("If-Modified-Since",
+						validators.getProperty(LAST_MODIFIED));
+			}
 
-			ReadableByteChannel ftpChan = Channels.newChannel(conn
-					.getDataStream());
+			try (HTTPResponse response = conn.getResponse()) {
+				if (response == null) {
+					throw new CacheException("No response from " + url);
+				}
+				final int code = response.getResponseCode();
+				if (code == 304) {
+					log.debug(url + " is unchanged");
+					markFresh();
+					return;
+				}
+				if (code != 200) {
+					throw new CacheException("Unexpected response code "
+							+ code + " from " + url);
+				}
 
-			// create the file if it doesn't exist and
-			// hose it if it does
-			FileChannel cachedFile = FileChannel.open(fullCachedFile,
-					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
-					StandardOpenOption.TRUNCATE_EXISTING);
+				try (FileChannel out = FileChannel.open(temp,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					response.transferTo(out, 0);
+				}
+				replace(temp, fullCachedFile);
 
-			// pipe it to the file.
-			cachedFile.transferFrom(ftpChan, 0, Integer.MAX_VALUE);
-		} catch (ProtocolException e) {
-			e.printStackTrace();
-			log.error("Error with FTP download from IANA.", e);
+				final Properties fresh = new Properties();
+				final HTTPHeaders headers = response.getHeaders();
+				if (headers.getFirst(ETAG) != null) {
+					fresh.setProperty(ETAG, headers.getFirst(ETAG));
+				}
+				if (headers.getFirst(LAST_MODIFIED) != null) {
+					fresh.setProperty(LAST_MODIFIED,
+							headers.getFirst(LAST_MODIFIED));
+				}
+				saveValidators(fresh);
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
-			log.error("Error file file IO.", e);
+			log.error("Unable to update " + fullCachedFile + " from " + url, e);
+			throw new CacheException("Unable to update " + fullCachedFile
+					+ " from " + url, e);
+		} finally {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				// no-op
+			}
 		}
 
 	}
@@ -22,27 +22,30 @@
  */
 package com.smmsp.core.net;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.log4j.Logger;
 
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
+import com.smmsp.core.net.HTTPConnectionPool.PooledConnection;
+import com.smmsp.core.utils.ArrayUtils;
+
 
 /**
  * This class wraps the URL connection to provide an easy wrapper to simply make
@@ -55,6 +58,22 @@ public class HTTPConnection extends AbstractInternetConnection
 
 	private static final Logger LOG = Logger.getLogger(HTTPConnection.class);
 
+	/**
+	 * How many times to retry a request whose pooled connection turned out
+	 * to have been closed by the server.
+	 */
+	private static final int MAX_STALE_RETRIES = 3;
+
+	/**
+	 * Time allowed to establish each connection, in millis.
+	 */
+	private static volatile int connectTimeoutMillis = 10000;
+
+	/**
+	 * Time allowed between bytes received, in millis.
+	 */
+	private static volatile int readTimeoutMillis = 60000;
+
 	/**
 	 * All possible request methods.
 	 * 
@@ -86,6 +105,11 @@ public class HTTPConnection extends AbstractInternetConnection
 	 */
 	private final LinkedHashMap<String, String> formElems;
 
+	/**
+	 * Why the last call to {@link #getResponse()} returned null.
+	 */
+	private volatile Exception failure;
+
 	/**
 	 * Constructor
 	 * 
@@ -126,6 +150,14 @@ public class HTTPConnection extends AbstractInternetConnection
 		this.method = other.method;
 	}
 
+	/**
+	 * @return The URL this connection requests
+	 */
+	public URL getURL()
+	{
+		return url;
+	}
+
 	/**
 	 * Adds a header to this request.
 	 * 
@@ -148,46 +180,330 @@ public class HTTPConnection extends AbstractInternetConnection
 		this.formElems.put(key, val);
 	}
 
+	/**
+	 * @param millis Time allowed to establish each new connection, 0 for no
+	 *            limit
+	 */
+	public static void setConnectTimeoutMillis(final int millis)
+	{
+		connectTimeoutMillis = millis;
+	}
+
+	/**
+	 * @param millis Time allowed between bytes received on new connections,
+	 *            0 for no limit
+	 */
+	public static void setReadTimeoutMillis(final int millis)
+	{
+		readTimeoutMillis = millis;
+	}
+
+	/**
+	 * Connects to the URL's host and port, trying each of the host's
+	 * addresses in the order {@link DNSResolver} gives them.
+	 * 
+	 * @return The connected socket
+	 * @throws HTTPException If the URL isn't HTTP or HTTPS
+	 * @throws IOException If none of the addresses could be connected to
+	 */
 	protected Socket openConnection() throws HTTPException, IOException
 	{
 		final String protocol = url.getProtocol();
-		final Socket sock;
+		final boolean secure;
 		int port = 80;
 		if ("http".equals(protocol) || "HTTP".equals(protocol))
 		{
-			sock = getSocket();
+			secure = false;
 		} else if ("https".equals(protocol) || "HTTPS".equals(protocol))
 		{
-			sock = getSSLSocket();
+			secure = true;
 			port = 443;
 		} else
 		{
 			throw new HTTPException("Protocol is not HTTP or HTTPS!");
 		}
 
-		SocketAddress addr = new InetSocketAddress(url.getHost(), port);
-		sock.connect(addr, 10000); // 10s in millis.
+		if (url.getPort() != -1)
+		{
+			port = url.getPort();
+		}
+
+		final DNSResolver dns = DNSResolver.getDefault();
+		IOException failure = null;
+		for (InetAddress addr : dns.resolve(url.getHost()))
+		{
+			final Socket sock = getSocket();
+			final long start = System.nanoTime();
+			try
+			{
+				sock.connect(new InetSocketAddress(addr, port),
+						connectTimeoutMillis);
+			} catch (IOException e)
+			{
+				sock.close();
+				dns.recordFailure(addr);
+				if (failure == null)
+				{
+					failure = e;
+				} else
+				{
+					failure.addSuppressed(e);
+				}
+				continue;
+			}
+			dns.recordConnect(addr, System.nanoTime() - start);
+			sock.setSoTimeout(readTimeoutMillis);
 
-		return sock;
+			if (secure)
+			{
+				return getSSLSocket(sock, url.getHost(), port);
+			}
+			return sock;
+		}
+		throw failure;
 	}
 
-	protected static Socket getSSLSocket() throws IOException
+	/**
+	 * Layers TLS over a connected socket using the shared
+	 * {@link TLSContext}, so that the session can be resumed by later
+	 * connections to the same host.
+	 * 
+	 * @param plain The connected socket, closed along with the TLS socket
+	 * @param host The host name, for SNI and certificate checking
+	 * @param port The port connected to
+	 * @return The TLS socket, handshake complete
+	 * @throws IOException
+	 */
+	protected static Socket getSSLSocket(final Socket plain, final String host,
+			final int port) throws IOException
 	{
-		return SSLSocketFactory.getDefault().createSocket();
+		return TLSContext.getDefault().createSocket(plain, host, port);
 	}
 
+	/**
+	 * Opens an unconnected socket backed by a {@link SocketChannel}, so
+	 * response bodies can be moved straight into files with
+	 * {@link java.nio.channels.FileChannel#transferFrom}.
+	 * 
+	 * @return The socket
+	 * @throws IOException
+	 */
 	protected static Socket getSocket() throws IOException
 	{
-		return SocketFactory.getDefault().createSocket();
+		return SocketChannel.open().socket();
 	}
 
 	public HTTPResponse getResponse()
 	{
+		failure = null;
 		if (url == null)
 		{
 			return null;
 		}
 
+		final byte[] request = buildRequest();
+		final HTTPConnectionPool pool = HTTPConnectionPool.getDefault();
+		final String key = getPoolKey();
+		for (int attempt = 1;; ++attempt)
+		{
+			PooledConnection conn = null;
+			boolean gotStatus = false;
+			try
+			{
+				conn = pool.lease(key, this::openConnection);
+
+				final OutputStream os = conn.getOutputStream();
+				os.write(request);
+				os.flush();
+
+				final InputStream is = conn.getInputStream();
+
+				HTTPHeaderParser parser;
+				do
+				{
+					parser = conn.readHeaders();
+					gotStatus = conn.getHeaderParser().isStarted();
+					if (parser == null)
+					{
+						throw new EOFException("Connection closed before a "
+								+ "response was received from "
+								+ url.getHost());
+					}
+					// skip interim responses, the real one follows.
+				} while (parser.getResponseCode() / 100 == 1);
+				final int code = parser.getResponseCode();
+				final HTTPHeaders responseFields = parser.getHeaders();
+				if (LOG.isDebugEnabled())
+				{
+					LOG.debug(responseFields);
+				}
+
+				final String transferEncoding = responseFields
+						.getFirst("Transfer-Encoding");
+				final long contentLength = responseFields.getContentLength();
+
+				final InputStream framed;
+				boolean keepAlive = isKeepAlive(parser.isHTTP11(),
+						responseFields);
+				if (code == 204 || code == 304)
+				{
+					framed = new ContentLengthInputStream(is, 0);
+				} else if (transferEncoding != null
+						&& transferEncoding.toLowerCase().contains("chunked"))
+				{
+					framed = new ChunkedInputStream(is);
+				} else if (contentLength != -1)
+				{
+					framed = new ContentLengthInputStream(is, contentLength,
+							conn.getSocket());
+				} else
+				{
+					// no framing, the body runs until the server hangs up.
+					framed = is;
+					keepAlive = false;
+				}
+
+				LOG.debug("Response code: " + code);
+				// the body stream now owns the connection, it goes back to
+				// the pool once the body has been read or closed.
+				final InputStream bodyStream = new PooledBodyInputStream(
+						framed, pool, conn, keepAlive);
+				try
+				{
+					return new HTTPResponse(code, responseFields, decodeBody(
+							bodyStream,
+							responseFields.getFirst("Content-Encoding")));
+				} catch (IOException e)
+				{
+					bodyStream.close();
+					throw new HTTPException("Unable to decode response body",
+							e);
+				}
+			} catch (IOException e)
+			{
+				if (conn != null)
+				{
+					pool.release(conn, false);
+				}
+				// an idle keep-alive socket the server has since closed.
+				if (conn != null && conn.isReused() && !gotStatus
+						&& attempt < MAX_STALE_RETRIES)
+				{
+					LOG.debug("Retrying on a fresh connection to " + key, e);
+					continue;
+				}
+				LOG.error(e, e);
+				failure = e;
+			} catch (HTTPException e)
+			{
+				if (conn != null)
+				{
+					pool.release(conn, false);
+				}
+				LOG.error(e, e);
+				failure = e;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return Why the last call to {@link #getResponse()} returned null, or
+	 *         null if it didn't fail
+	 */
+	public Exception getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * Wraps the body in a decompressor matching it's Content-Encoding.
+	 * 
+	 * @param body The de-framed body
+	 * @param encoding The Content-Encoding header, may be null
+	 * @return A stream of the decoded body
+	 * @throws IOException
+	 */
+	protected static InputStream decodeBody(final InputStream body,
+			final String encoding) throws IOException
+	{
+		if (encoding == null || "identity".equalsIgnoreCase(encoding.trim()))
+		{
+			return body;
+		}
+
+		// peek at the first two bytes, an empty body has nothing to decode
+		// and "deflate" is sent both with and without the zlib wrapper.
+		final BufferedInputStream peek = new BufferedInputStream(body);
+		peek.mark(2);
+		final int first = peek.read();
+		final int second = peek.read();
+		peek.reset();
+		if (first == -1)
+		{
+			return peek;
+		}
+
+		final String enc = encoding.trim().toLowerCase();
+		if ("gzip".equals(enc) || "x-gzip".equals(enc))
+		{
+			return new GZIPInputStream(peek, 8192);
+		} else if ("deflate".equals(enc))
+		{
+			final boolean zlib = (first & 0x0F) == 8
+					&& ((first << 8) | second) % 31 == 0;
+			final Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(peek, inflater, 8192)
+			{
+				@Override
+				public void close() throws IOException
+				{
+					super.close();
+					inflater.end();
+				}
+			};
+		}
+		LOG.warn("Unsupported Content-Encoding: " + encoding);
+		return peek;
+	}
+
+	/**
+	 * @return The key this connection is pooled under (scheme://host:port)
+	 */
+	protected String getPoolKey()
+	{
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url
+				.getPort();
+		return url.getProtocol().toLowerCase() + "://"
+				+ url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Will the server keep this connection open after the response?
+	 * 
+	 * @param http11 True if the status line was HTTP/1.1 or later
+	 * @param responseFields The response headers
+	 * @return True if the connection may be reused
+	 */
+	private static boolean isKeepAlive(final boolean http11,
+			final HTTPHeaders responseFields)
+	{
+		if (!http11)
+		{
+			return responseFields.valueEqualsIgnoreCase("Connection",
+					"keep-alive");
+		}
+		return !responseFields.valueEqualsIgnoreCase("Connection", "close");
+	}
+
+	/**
+	 * Builds the raw bytes of this request, the request line, headers and
+	 * any form body.
+	 * 
+	 * @return The request, ready to be written to the connection
+	 */
+	protected byte[] buildRequest()
+	{
 		final StringBuffer request = new StringBuffer();
 		request.append(method.toString());
 		request.append(' ');
@@ -196,10 +512,20 @@ public class HTTPConnection extends AbstractInternetConnection
 		request.append("HTTP/1.1");
 		request.append("\r\n");
 
-		addHeader("Host", url.getHost());
+		// with the port only when it isn't the scheme's own.
+		final int port = url.getPort();
+		addHeader("Host", port == -1 || port == url.getDefaultPort() ? url
+				.getHost() : url.getHost() + ":" + port);
 		addHeader("Accept", "*/*");
 		addHeader("User-Agent", "SPM-HttpClient-v.1-Beta");
-		addHeader("Connection", "keep-alive");
+		if (!headers.containsKey("Connection"))
+		{
+			addHeader("Connection", "keep-alive");
+		}
+		if (!headers.containsKey("Accept-Encoding"))
+		{
+			addHeader("Accept-Encoding", "gzip, deflate");
+		}
 
 		final String body = generateBody();
 		if (!"".equals(body))
@@ -219,73 +545,43 @@ public class HTTPConnection extends AbstractInternetConnection
 		}
 		request.append("\r\n");
 		LOG.debug(request.toString());
-		try (final Socket sock = openConnection())
+
+		final byte[] head = request.toString().getBytes(
+				StandardCharsets.ISO_8859_1);
+		if ("".equals(body))
 		{
+			return head;
+		}
+		return ArrayUtils.combine(head, body.getBytes());
+	}
 
-			try (final OutputStream os = sock.getOutputStream())
+	/**
+	 * Reads a single CRLF (or LF) terminated line off of the raw
+	 * socket stream without buffering past the end of it, so the body bytes
+	 * that follow are left untouched.
+	 * 
+	 * @param is The stream to read from
+	 * @return The line without it's terminator, or null on end of stream
+	 * @throws IOException
+	 */
+	protected static String readLine(final InputStream is) throws IOException
+	{
+		final StringBuilder bld = new StringBuilder();
+		int chr;
+		while ((chr = is.read()) != -1)
+		{
+			if (chr == '\n')
 			{
-				os.write(request.toString().getBytes());
-
-				if (!"".equals(body))
+				final int len = bld.length();
+				if (len > 0 && bld.charAt(len - 1) == '\r')
 				{
-					LOG.debug(body);
-					os.write(body.getBytes());
-				}
-
-				try (final InputStream is = sock.getInputStream())
-				{
-					final BufferedReader read = new BufferedReader(
-							new InputStreamReader(is));
-
-					final String response = read.readLine();
-					final String[] respParts = response.split(" ", 3);
-					final int code = Integer.valueOf(respParts[1]);
-
-					final HashMap<String, List<String>> responseFields = new HashMap<>();
-					String line = "";
-					while ((line = read.readLine()) != null)
-					{
-						if ("".equals(line))
-						{
-							break;
-						}
-						final String[] parts = line.split(": ");
-						if (!responseFields.containsKey(parts[0]))
-						{
-							responseFields.put(parts[0],
-									new ArrayList<String>());
-						}
-						responseFields.get(parts[0]).add(parts[1]);
-					}
-					LOG.debug(responseFields);
-
-					int readLen = -1;
-					if (responseFields.containsKey("Content-Length"))
-					{
-						readLen = Integer.valueOf(responseFields.get(
-								"Content-Length").get(0));
-					}
-					final StringBuffer outBuf = new StringBuffer();
-					int chr = 0;
-					while (readLen-- > 0 && (chr = read.read()) != -1)
-					{
-						outBuf.append((char) chr);
-					}
-
-					LOG.debug("Response code: " + code);
-					return new HTTPResponse(code, responseFields,
-							new ByteArrayInputStream(outBuf.toString()
-									.getBytes()));
+					bld.setLength(len - 1);
 				}
+				return bld.toString();
 			}
-		} catch (IOException e)
-		{
-			LOG.error(e, e);
-		} catch (HTTPException e)
-		{
-			LOG.error(e, e);
+			bld.append((char) chr);
 		}
-		return null;
+		return bld.length() == 0 ? null : bld.toString();
 	}
 
 	/**
@@ -320,4 +616,21 @@ public class HTTPConnection extends AbstractInternetConnection
 	{
 		return getResponse().getStream();
 	}
+
+	/**
+	 * Writes the response body into the file, straight from the socket for
+	 * uncompressed bodies over plain HTTP.
+	 */
+	@Override
+	protected long transferTo(final FileChannel out) throws IOException
+	{
+		try (HTTPResponse response = getResponse())
+		{
+			if (response == null)
+			{
+				throw new IOException("No response from " + url, failure);
+			}
+			return response.transferTo(out, 0);
+		}
+	}
 }
@@ -0,0 +1,655 @@
+/*
+ * HTTPConnectionPool.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded, thread-safe pool of keep-alive connections keyed by
+ * scheme://host:port. Each host may have at most {@link #getMaxPerHost()}
+ * sockets open (leased or idle); idle sockets are closed once they have sat
+ * unused for longer than {@link #getMaxIdleMillis()}.
+ *
+ * @author Sean
+ *
+ */
+public class HTTPConnectionPool
+{
+
+	private static final Logger LOG = Logger
+			.getLogger(HTTPConnectionPool.class);
+
+	/**
+	 * The pool shared by all HTTPConnections.
+	 */
+	private static final HTTPConnectionPool DEFAULT = new HTTPConnectionPool(
+			8, 30000);
+
+	/**
+	 * Opens a brand new socket when the pool has nothing idle to hand out.
+	 *
+	 * @author Sean
+	 *
+	 */
+	public interface SocketOpener
+	{
+		public Socket open() throws IOException, HTTPException;
+	}
+
+	/**
+	 * Per-host bookkeeping.
+	 */
+	private final ConcurrentHashMap<String, HostPool> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Closes idle connections in the background.
+	 */
+	private final ScheduledExecutorService reaper;
+
+	/**
+	 * Maximum number of open sockets for any one host.
+	 */
+	private volatile int maxPerHost;
+
+	/**
+	 * How long a socket may sit idle before it is closed.
+	 */
+	private volatile long maxIdleMillis;
+
+	/**
+	 * How long to wait for a free slot when a host is at it's limit.
+	 */
+	private volatile long leaseTimeoutMillis = 60000;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxPerHost Maximum number of open sockets per host
+	 * @param maxIdleMillis Idle time after which a socket is closed
+	 */
+	public HTTPConnectionPool(final int maxPerHost, final long maxIdleMillis)
+	{
+		this.maxPerHost = maxPerHost;
+		this.maxIdleMillis = maxIdleMillis;
+		this.reaper = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "HTTP Connection Reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		final long period = Math.max(1000, maxIdleMillis / 2);
+		reaper.scheduleWithFixedDelay(this::evictIdle, period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The pool shared by all HTTPConnections
+	 */
+	public static HTTPConnectionPool getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @return The maximum number of open sockets per host
+	 */
+	public int getMaxPerHost()
+	{
+		return maxPerHost;
+	}
+
+	/**
+	 * @param maxPerHost The maximum number of open sockets per host
+	 */
+	public void setMaxPerHost(final int maxPerHost)
+	{
+		this.maxPerHost = Math.max(1, maxPerHost);
+		hosts.values().forEach(HostPool::signalAll);
+	}
+
+	/**
+	 * @return How long a socket may sit idle before it is closed
+	 */
+	public long getMaxIdleMillis()
+	{
+		return maxIdleMillis;
+	}
+
+	/**
+	 * @param maxIdleMillis How long a socket may sit idle before it is closed
+	 */
+	public void setMaxIdleMillis(final long maxIdleMillis)
+	{
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	/**
+	 * @param leaseTimeoutMillis How long to wait for a free slot on a host
+	 */
+	public void setLeaseTimeoutMillis(final long leaseTimeoutMillis)
+	{
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+	}
+
+	/**
+	 * Hands out an idle connection for the key, or opens a new one if there
+	 * are none and the host is below it's limit. Blocks while the host is at
+	 * it's limit.
+	 *
+	 * @param key scheme://host:port
+	 * @param opener Used to open a new socket
+	 * @return A connection that must be given back with
+	 *         {@link #release(PooledConnection, boolean)}
+	 * @throws IOException
+	 * @throws HTTPException
+	 */
+	public PooledConnection lease(final String key, final SocketOpener opener)
+			throws IOException, HTTPException
+	{
+		final HostPool host = hosts.computeIfAbsent(key, HostPool::new);
+		final PooledConnection idle = host.acquire();
+		if (idle != null)
+		{
+			LOG.debug("Reusing connection to " + key);
+			return idle;
+		}
+
+		try
+		{
+			LOG.debug("Opening new connection to " + key);
+			return new PooledConnection(host, opener.open());
+		} catch (IOException | HTTPException | RuntimeException e)
+		{
+			host.free();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a leased connection back to the pool.
+	 *
+	 * @param conn The connection
+	 * @param reusable True if the response was read completely and the server
+	 *            is willing to keep the connection alive
+	 */
+	public void release(final PooledConnection conn, final boolean reusable)
+	{
+		if (reusable && !conn.socket.isClosed())
+		{
+			conn.lastUsed = System.nanoTime();
+			conn.host.giveBack(conn);
+		} else
+		{
+			conn.closeSocket();
+			conn.host.free();
+		}
+	}
+
+	/**
+	 * Closes every connection that has been idle for too long.
+	 */
+	public void evictIdle()
+	{
+		final long cutoff = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+		hosts.values().forEach(host -> host.evict(cutoff));
+	}
+
+	/**
+	 * Closes every idle connection in the pool.
+	 */
+	public void closeIdle()
+	{
+		hosts.values().forEach(host -> host.evict(Long.MAX_VALUE));
+	}
+
+	/**
+	 * The idle connections and open count for a single host.
+	 */
+	private final class HostPool
+	{
+		private final String key;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition available = lock.newCondition();
+		private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+		private int open = 0;
+
+		HostPool(final String key)
+		{
+			this.key = key;
+		}
+
+		/**
+		 * @return An idle connection, or null if the caller has been granted
+		 *         a slot to open a new one.
+		 */
+		PooledConnection acquire() throws HTTPException
+		{
+			final long cutoff = System.nanoTime()
+					- TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+			long waitNanos = TimeUnit.MILLISECONDS.toNanos(leaseTimeoutMillis);
+			lock.lock();
+			try
+			{
+				while (true)
+				{
+					PooledConnection conn;
+					while ((conn = idle.pollFirst()) != null)
+					{
+						if (conn.lastUsed - cutoff > 0 && conn.isUsable())
+						{
+							conn.reused = true;
+							return conn;
+						}
+						conn.closeSocket();
+						--open;
+					}
+					if (open < maxPerHost)
+					{
+						++open;
+						return null;
+					}
+					if (waitNanos <= 0)
+					{
+						throw new HTTPException("Timed out waiting for a "
+								+ "connection to " + key);
+					}
+					waitNanos = available.awaitNanos(waitNanos);
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new HTTPException("Interrupted waiting for a "
+						+ "connection to " + key, e);
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void giveBack(final PooledConnection conn)
+		{
+			lock.lock();
+			try
+			{
+				idle.addFirst(conn);
+				available.signal();
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void free()
+		{
+			lock.lock();
+			try
+			{
+				--open;
+				available.signal();
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void signalAll()
+		{
+			lock.lock();
+			try
+			{
+				available.signalAll();
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+
+		void evict(final long cutoff)
+		{
+			lock.lock();
+			try
+			{
+				final Iterator<PooledConnection> rator = idle.iterator();
+				while (rator.hasNext())
+				{
+					final PooledConnection conn = rator.next();
+					if (cutoff - conn.lastUsed >= 0 || !conn.isUsable())
+					{
+						rator.remove();
+						conn.closeSocket();
+						--open;
+						available.signal();
+					}
+				}
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A socket and the buffered streams wrapped around it. The input stream
+	 * has to travel with the socket since it may hold bytes that were read
+	 * ahead.
+	 *
+	 * @author Sean
+	 *
+	 */
+	public static final class PooledConnection
+	{
+		private final HostPool host;
+		private final Socket socket;
+		private final ConnectionInputStream in;
+		private final OutputStream out;
+		private final HTTPHeaderParser parser = new HTTPHeaderParser();
+		private final Throttle throttle = new Throttle();
+		private volatile long lastUsed;
+		private boolean reused = false;
+
+		PooledConnection(final HostPool host, final Socket socket)
+				throws IOException
+		{
+			this.host = host;
+			this.socket = socket;
+			this.in = new ConnectionInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+			this.lastUsed = System.nanoTime();
+		}
+
+		/**
+		 * @return The underlying socket
+		 */
+		public Socket getSocket()
+		{
+			return socket;
+		}
+
+		/**
+		 * @return The bandwidth limits on this connection's bodies
+		 */
+		public Throttle getThrottle()
+		{
+			return throttle;
+		}
+
+		/**
+		 * @return The buffered input stream for this socket
+		 */
+		public InputStream getInputStream()
+		{
+			return in;
+		}
+
+		/**
+		 * @return The socket's channel, or null for sockets (like TLS) that
+		 *         don't have one. Anything still buffered in
+		 *         {@link #getInputStream()} comes before what the channel
+		 *         returns.
+		 */
+		public ReadableByteChannel getChannel()
+		{
+			return socket.getChannel();
+		}
+
+		/**
+		 * Reads the status line and headers of the next response straight
+		 * out of the read-ahead buffer.
+		 *
+		 * @return This connection's parser, holding the response, or null if
+		 *         the connection closed first. The parser's
+		 *         {@link HTTPHeaderParser#isStarted()} tells whether any of
+		 *         the response arrived.
+		 * @throws IOException
+		 */
+		public HTTPHeaderParser readHeaders() throws IOException
+		{
+			parser.reset();
+			return in.readHeaders(parser) ? parser : null;
+		}
+
+		/**
+		 * @return The response parser last used by {@link #readHeaders()}
+		 */
+		public HTTPHeaderParser getHeaderParser()
+		{
+			return parser;
+		}
+
+		/**
+		 * @return The output stream for this socket
+		 */
+		public OutputStream getOutputStream()
+		{
+			return out;
+		}
+
+		/**
+		 * @return True if this connection has already served a request, and
+		 *         so may have been closed by the server while idle.
+		 */
+		public boolean isReused()
+		{
+			return reused;
+		}
+
+		/**
+		 * An idle keep-alive connection should have nothing waiting to be
+		 * read; anything there means the server has closed or confused it.
+		 */
+		boolean isUsable()
+		{
+			if (socket.isClosed() || socket.isInputShutdown()
+					|| socket.isOutputShutdown())
+			{
+				return false;
+			}
+			try
+			{
+				return in.available() == 0;
+			} catch (IOException e)
+			{
+				return false;
+			}
+		}
+
+		void closeSocket()
+		{
+			try
+			{
+				socket.close();
+			} catch (IOException e)
+			{
+				LOG.debug("Error closing pooled socket", e);
+			}
+		}
+	}
+
+	/**
+	 * The read-ahead buffer of a pooled socket, which can say how many bytes
+	 * it is holding so they can be written out before reading the rest of a
+	 * body from the socket's channel. A leased connection is only read by
+	 * one thread at a time, so unlike BufferedInputStream it takes no
+	 * monitor, which would pin a virtual thread to it's carrier for as long
+	 * as it blocked on the socket.
+	 *
+	 * @author Sean
+	 *
+	 */
+	static final class ConnectionInputStream extends InputStream
+	{
+		private static final int BUFFER_SIZE = 8192;
+
+		private final InputStream in;
+		private final byte[] buf = new byte[BUFFER_SIZE];
+
+		/**
+		 * Wraps buf for the header parser.
+		 */
+		private final ByteBuffer view = ByteBuffer.wrap(buf);
+		private int pos = 0;
+		private int count = 0;
+
+		ConnectionInputStream(final InputStream in)
+		{
+			this.in = in;
+		}
+
+		/**
+		 * Feeds the read-ahead buffer to the parser, refilling it as needed,
+		 * until the headers are complete. The body is left in the buffer.
+		 *
+		 * @param parser A reset parser
+		 * @return False if the connection closed before the headers ended
+		 * @throws IOException
+		 */
+		boolean readHeaders(final HTTPHeaderParser parser) throws IOException
+		{
+			while (true)
+			{
+				if (pos >= count && !fill())
+				{
+					return false;
+				}
+				view.limit(count);
+				view.position(pos);
+				final boolean done = parser.parse(view);
+				pos = view.position();
+				if (done)
+				{
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return How many bytes have been read ahead off of the socket
+		 */
+		int buffered()
+		{
+			return count - pos;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (pos >= count && !fill())
+			{
+				return -1;
+			}
+			return buf[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (pos >= count)
+			{
+				if (len >= BUFFER_SIZE)
+				{
+					// no point copying it through the buffer.
+					return in.read(b, off, len);
+				}
+				if (!fill())
+				{
+					return -1;
+				}
+			}
+			final int num = Math.min(len, count - pos);
+			System.arraycopy(buf, pos, b, off, num);
+			pos += num;
+			return num;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			if (n <= 0)
+			{
+				return 0;
+			}
+			if (pos >= count)
+			{
+				return in.skip(n);
+			}
+			final int num = (int) Math.min(n, count - pos);
+			pos += num;
+			return num;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (count - pos) + in.available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+
+		/**
+		 * Reads whatever the socket has next into the empty buffer.
+		 *
+		 * @return False at the end of the stream
+		 */
+		private boolean fill() throws IOException
+		{
+			pos = 0;
+			count = 0;
+			final int num = in.read(buf, 0, BUFFER_SIZE);
+			if (num <= 0)
+			{
+				return false;
+			}
+			count = num;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * HTTPHeaderParser.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses the status line and headers of a response a byte at a time,
+ * straight out of whatever buffer the bytes were read into. It can be fed
+ * the response in as many pieces as it arrives in, and is reset and reused
+ * for each response on a connection, so after it's arrays have grown to fit
+ * the first response no garbage is made until
+ * {@link #getHeaders()} takes a copy.
+ *
+ * @author Sean
+ *
+ */
+public final class HTTPHeaderParser
+{
+
+	/**
+	 * Responses with bigger status lines and headers than this are refused.
+	 */
+	private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+	private enum State
+	{
+		STATUS, LINE_START, NAME, BEFORE_VALUE, VALUE, DONE
+	}
+
+	/**
+	 * The status line, then the names and values of the headers back to
+	 * back, without separators or line endings.
+	 */
+	private byte[] data = new byte[1024];
+	private int length;
+
+	/**
+	 * Three per header, see {@link HTTPHeaders}.
+	 */
+	private int[] offsets = new int[3 * 16];
+	private int count;
+
+	private State state = State.STATUS;
+	private boolean started;
+	private int statusLength;
+	private int responseCode;
+	private boolean http11;
+
+	/**
+	 * True while the line being read continues the previous header's value.
+	 */
+	private boolean folding;
+
+	/**
+	 * Readies the parser for the next response.
+	 */
+	public void reset()
+	{
+		length = 0;
+		count = 0;
+		state = State.STATUS;
+		started = false;
+		statusLength = 0;
+		responseCode = 0;
+		http11 = false;
+		folding = false;
+	}
+
+	/**
+	 * Reads the response out of buf, stopping just after the blank line that
+	 * ends the headers so that buf is left positioned at the body.
+	 *
+	 * @param buf Bytes read from the connection (read mode)
+	 * @return True once the headers are complete, false if more bytes are
+	 *         needed
+	 * @throws IOException If the response is malformed or too large
+	 */
+	public boolean parse(final ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining() && state != State.DONE)
+		{
+			final byte chr = buf.get();
+			started = true;
+			if (chr == '\r')
+			{
+				// lines end at the LF, bare LFs are tolerated.
+				continue;
+			}
+			switch (state)
+			{
+			case STATUS:
+				if (chr == '\n')
+				{
+					parseStatusLine();
+					state = State.LINE_START;
+				} else
+				{
+					append(chr);
+				}
+				break;
+			case LINE_START:
+				if (chr == '\n')
+				{
+					state = State.DONE;
+				} else if ((chr == ' ' || chr == '\t') && count > 0)
+				{
+					// obsolete line folding, joined to the last value.
+					length = offsets[count * 3 - 1];
+					append((byte) ' ');
+					folding = true;
+					state = State.BEFORE_VALUE;
+				} else
+				{
+					ensureOffsets();
+					offsets[count * 3] = length;
+					append(chr);
+					state = State.NAME;
+				}
+				break;
+			case NAME:
+				if (chr == ':')
+				{
+					offsets[count * 3 + 1] = length;
+					state = State.BEFORE_VALUE;
+				} else if (chr == '\n')
+				{
+					// not a header, drop it.
+					length = offsets[count * 3];
+					state = State.LINE_START;
+				} else
+				{
+					append(chr);
+				}
+				break;
+			case BEFORE_VALUE:
+				if (chr == '\n')
+				{
+					endHeader();
+				} else if (chr != ' ' && chr != '\t')
+				{
+					append(chr);
+					state = State.VALUE;
+				}
+				break;
+			case VALUE:
+				if (chr == '\n')
+				{
+					endHeader();
+				} else
+				{
+					append(chr);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return state == State.DONE;
+	}
+
+	/**
+	 * @return True once any of the response has been seen
+	 */
+	public boolean isStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * @return The status code
+	 */
+	public int getResponseCode()
+	{
+		return responseCode;
+	}
+
+	/**
+	 * @return True if the server speaks HTTP/1.1 or later
+	 */
+	public boolean isHTTP11()
+	{
+		return http11;
+	}
+
+	/**
+	 * @return The status line, as sent
+	 */
+	public String getStatusLine()
+	{
+		return new String(data, 0, statusLength, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return A copy of the headers that outlives {@link #reset()}
+	 */
+	public HTTPHeaders getHeaders()
+	{
+		final int base = statusLength;
+		final int[] copy = new int[count * 3];
+		for (int i = 0; i < copy.length; ++i)
+		{
+			copy[i] = offsets[i] - base;
+		}
+		return new HTTPHeaders(Arrays.copyOfRange(data, base, length), copy,
+				count);
+	}
+
+	private void parseStatusLine() throws IOException
+	{
+		statusLength = length;
+		// HTTP/x.y ddd reason
+		if (length < 12 || data[0] != 'H' || data[1] != 'T' || data[2] != 'T'
+				|| data[3] != 'P' || data[4] != '/' || data[6] != '.'
+				|| data[8] != ' ' || !isDigit(data[9]) || !isDigit(data[10])
+				|| !isDigit(data[11]) || (length > 12 && data[12] != ' '))
+		{
+			throw new IOException("Bad status line: " + getStatusLine());
+		}
+		http11 = data[5] > '1' || (data[5] == '1' && data[7] >= '1');
+		responseCode = (data[9] - '0') * 100 + (data[10] - '0') * 10
+				+ (data[11] - '0');
+	}
+
+	private void endHeader()
+	{
+		int end = length;
+		final int valueStart = offsets[(folding ? count - 1 : count) * 3 + 1];
+		while (end > valueStart && (data[end - 1] == ' ' || data[end - 1] == '\t'))
+		{
+			--end;
+		}
+		length = end;
+		if (folding)
+		{
+			offsets[count * 3 - 1] = end;
+			folding = false;
+		} else
+		{
+			offsets[count * 3 + 2] = end;
+			++count;
+		}
+		state = State.LINE_START;
+	}
+
+	private void append(final byte chr) throws IOException
+	{
+		if (length == data.length)
+		{
+			if (length >= MAX_HEADER_BYTES)
+			{
+				throw new IOException("Response headers are larger than "
+						+ MAX_HEADER_BYTES + " bytes");
+			}
+			data = Arrays.copyOf(data, length * 2);
+		}
+		data[length++] = chr;
+	}
+
+	private void ensureOffsets()
+	{
+		if ((count + 1) * 3 > offsets.length)
+		{
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+	}
+
+	private static boolean isDigit(final byte chr)
+	{
+		return chr >= '0' && chr <= '9';
+	}
+}
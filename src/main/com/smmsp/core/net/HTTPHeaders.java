@@ -0,0 +1,314 @@
+/*
+ * HTTPHeaders.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The headers of a response, kept as the raw bytes of their names and values
+ * in a single array plus three offsets per header. Names are matched without
+ * regard to case, and Strings are only made for the values asked for.
+ *
+ * @author Sean
+ *
+ */
+public final class HTTPHeaders
+{
+
+	/**
+	 * No headers at all.
+	 */
+	public static final HTTPHeaders EMPTY = new HTTPHeaders(new byte[0],
+			new int[0], 0);
+
+	/**
+	 * The names and values, back to back.
+	 */
+	private final byte[] data;
+
+	/**
+	 * For each header: where it's name starts, where it's value starts (and
+	 * so it's name ends) and where it's value ends.
+	 */
+	private final int[] offsets;
+
+	/**
+	 * The number of headers.
+	 */
+	private final int count;
+
+	/**
+	 * Built the first time it is asked for.
+	 */
+	private Map<String, List<String>> map;
+
+	/**
+	 * Constructor
+	 *
+	 * @param data The names and values
+	 * @param offsets Three offsets per header into data
+	 * @param count The number of headers
+	 */
+	HTTPHeaders(final byte[] data, final int[] offsets, final int count)
+	{
+		this.data = data;
+		this.offsets = offsets;
+		this.count = count;
+	}
+
+	/**
+	 * Packs a map of headers, for responses that didn't come through
+	 * {@link HTTPHeaderParser}.
+	 *
+	 * @param headers The headers
+	 * @return The packed headers
+	 */
+	public static HTTPHeaders of(final Map<String, List<String>> headers)
+	{
+		int bytes = 0;
+		int num = 0;
+		for (Map.Entry<String, List<String>> ent : headers.entrySet())
+		{
+			for (String value : ent.getValue())
+			{
+				bytes += ent.getKey().length() + value.length();
+				++num;
+			}
+		}
+		final byte[] data = new byte[bytes];
+		final int[] offsets = new int[num * 3];
+		int pos = 0;
+		int idx = 0;
+		for (Map.Entry<String, List<String>> ent : headers.entrySet())
+		{
+			final byte[] name = ent.getKey().getBytes(
+					StandardCharsets.ISO_8859_1);
+			for (String value : ent.getValue())
+			{
+				final byte[] val = value.getBytes(StandardCharsets.ISO_8859_1);
+				offsets[idx++] = pos;
+				System.arraycopy(name, 0, data, pos, name.length);
+				pos += name.length;
+				offsets[idx++] = pos;
+				System.arraycopy(val, 0, data, pos, val.length);
+				pos += val.length;
+				offsets[idx++] = pos;
+			}
+		}
+		return new HTTPHeaders(data, offsets, num);
+	}
+
+	/**
+	 * @return The number of headers, counting repeated names separately
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @param i Which header
+	 * @return It's name, as sent
+	 */
+	public String getName(final int i)
+	{
+		return string(offsets[i * 3], offsets[i * 3 + 1]);
+	}
+
+	/**
+	 * @param i Which header
+	 * @return It's value
+	 */
+	public String getValue(final int i)
+	{
+		return string(offsets[i * 3 + 1], offsets[i * 3 + 2]);
+	}
+
+	/**
+	 * @param name The header to look for, in any case
+	 * @return True if it is present
+	 */
+	public boolean contains(final String name)
+	{
+		return indexOf(name, 0) != -1;
+	}
+
+	/**
+	 * @param name The header to look for, in any case
+	 * @return It's first value, or null if it's missing
+	 */
+	public String getFirst(final String name)
+	{
+		final int i = indexOf(name, 0);
+		return i == -1 ? null : getValue(i);
+	}
+
+	/**
+	 * @param name The header to look for, in any case
+	 * @return All of it's values in the order received, empty if it's
+	 *         missing
+	 */
+	public List<String> getAll(final String name)
+	{
+		final List<String> values = new ArrayList<>(1);
+		for (int i = indexOf(name, 0); i != -1; i = indexOf(name, i + 1))
+		{
+			values.add(getValue(i));
+		}
+		return values;
+	}
+
+	/**
+	 * The length of the body from the Content-Length header. It may be
+	 * repeated, or be a comma separated list, as long as every value is the
+	 * same.
+	 *
+	 * @return The length, or -1 if there is no Content-Length
+	 * @throws ProtocolException If a value isn't a length, or they disagree
+	 */
+	public long getContentLength() throws ProtocolException
+	{
+		long length = -1;
+		for (int i = indexOf("Content-Length", 0); i != -1; i = indexOf(
+				"Content-Length", i + 1))
+		{
+			final String value = getValue(i);
+			for (String part : value.split(","))
+			{
+				final long num;
+				try
+				{
+					num = Long.parseLong(part.trim());
+				} catch (NumberFormatException e)
+				{
+					throw new ProtocolException("Bad Content-Length: " + value);
+				}
+				if (num < 0 || (length != -1 && num != length))
+				{
+					throw new ProtocolException("Bad Content-Length: " + value);
+				}
+				length = num;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Checks if the value of a header equals a String, without making a
+	 * String out of the value.
+	 *
+	 * @param name The header to look for, in any case
+	 * @param value The value to compare the first one against, in any case
+	 * @return True if the header is present with that value
+	 */
+	public boolean valueEqualsIgnoreCase(final String name, final String value)
+	{
+		final int i = indexOf(name, 0);
+		return i != -1
+				&& regionMatches(offsets[i * 3 + 1], offsets[i * 3 + 2], value);
+	}
+
+	/**
+	 * A read only, case insensitive map of the headers, for code that
+	 * predates this class.
+	 *
+	 * @return The headers by name
+	 */
+	public synchronized Map<String, List<String>> asMap()
+	{
+		if (map == null)
+		{
+			final Map<String, List<String>> m = new TreeMap<>(
+					String.CASE_INSENSITIVE_ORDER);
+			for (int i = 0; i < count; ++i)
+			{
+				m.computeIfAbsent(getName(i), k -> new ArrayList<>(1)).add(
+						getValue(i));
+			}
+			map = Collections.unmodifiableMap(m);
+		}
+		return map;
+	}
+
+	@Override
+	public String toString()
+	{
+		return asMap().toString();
+	}
+
+	/**
+	 * @return The index of the first header with that name at or after
+	 *         from, -1 if there isn't one
+	 */
+	private int indexOf(final String name, final int from)
+	{
+		for (int i = from; i < count; ++i)
+		{
+			if (regionMatches(offsets[i * 3], offsets[i * 3 + 1], name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * ASCII case insensitive comparison of data[start, end) and str.
+	 */
+	private boolean regionMatches(final int start, final int end,
+			final String str)
+	{
+		if (end - start != str.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < str.length(); ++i)
+		{
+			if (toLower(data[start + i] & 0xFF) != toLower(str.charAt(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLower(final int chr)
+	{
+		return chr >= 'A' && chr <= 'Z' ? chr + ('a' - 'A') : chr;
+	}
+
+	private String string(final int start, final int end)
+	{
+		return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -26,29 +26,43 @@
  */
 package com.smmsp.core.net;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 
 /**
+ * The status, headers and body of a single HTTP response. The body is
+ * streamed directly from the connection, so the response must be closed
+ * once the caller is finished with it.
+ * 
  * @author Sean
  *
  */
-public class HTTPResponse
+public class HTTPResponse implements Closeable
 {
 
 	private final int responseCode;
-	private final Map<String, List<String>> responseHeaders;
+	private final HTTPHeaders headers;
 	private final InputStream stream;
 	
 	
-	public HTTPResponse(int responseCode, Map<String, List<String>> responseHeaders,
+	public HTTPResponse(int responseCode, HTTPHeaders headers,
 			InputStream stream)
 	{
 		this.responseCode = responseCode;
-		this.responseHeaders = responseHeaders;
+		this.headers = headers;
 		this.stream = stream;
 	}
+	
+	
+	public HTTPResponse(int responseCode, Map<String, List<String>> responseHeaders,
+			InputStream stream)
+	{
+		this(responseCode, HTTPHeaders.of(responseHeaders), stream);
+	}
 
 
 	public int getResponseCode()
@@ -57,9 +71,21 @@ public class HTTPResponse
 	}
 
 
+	/**
+	 * @return The headers, looked up without regard to case
+	 */
+	public HTTPHeaders getHeaders()
+	{
+		return headers;
+	}
+
+
+	/**
+	 * @return A case insensitive map view of {@link #getHeaders()}
+	 */
 	public Map<String, List<String>> getResponseHeaders()
 	{
-		return responseHeaders;
+		return headers.asMap();
 	}
 
 
@@ -67,7 +93,58 @@ public class HTTPResponse
 	{
 		return stream;
 	}
-	
-	
-	
+
+
+	/**
+	 * Moves up to count bytes of the body into a file. Uncompressed bodies
+	 * over plain HTTP go from the socket to the file without being copied
+	 * onto the heap; anything else is copied through a reused buffer.
+	 *
+	 * @param out Where to write the body
+	 * @param position The file offset to write the first byte at
+	 * @param count The most to move
+	 * @return The number of bytes moved, or -1 at the end of the body
+	 * @throws IOException
+	 */
+	public long transferTo(final FileChannel out, final long position,
+			final long count) throws IOException
+	{
+		if (stream instanceof PooledBodyInputStream)
+		{
+			return ((PooledBodyInputStream) stream).transferTo(out, position,
+					count);
+		}
+		return FileTransfer.copy(stream, out, position, count);
+	}
+
+
+	/**
+	 * Moves the rest of the body into a file.
+	 *
+	 * @param out Where to write the body
+	 * @param position The file offset to write the first byte at
+	 * @return The number of bytes moved
+	 * @throws IOException
+	 */
+	public long transferTo(final FileChannel out, final long position)
+			throws IOException
+	{
+		long total = 0;
+		long num;
+		while ((num = transferTo(out, position + total, Long.MAX_VALUE)) != -1)
+		{
+			total += num;
+		}
+		return total;
+	}
+
+
+	/**
+	 * Closes the body stream and the connection underneath it.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		stream.close();
+	}
 }
@@ -0,0 +1,141 @@
+/*
+ * HTTPStatusException.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A response whose status code meant it's body couldn't be used, kept
+ * separate from other IOExceptions so that callers can tell a server
+ * turning a request away (429, 503) from one that doesn't have the file
+ * (404) or a connection that failed.
+ *
+ * @author Sean
+ *
+ */
+public class HTTPStatusException extends IOException
+{
+
+	private static final long serialVersionUID = 6106285421930236021L;
+
+	private final int responseCode;
+
+	private final long retryAfterMillis;
+
+	/**
+	 * @param responseCode The status code
+	 * @param message What was being done
+	 */
+	public HTTPStatusException(final int responseCode, final String message)
+	{
+		this(responseCode, message, null);
+	}
+
+	/**
+	 * @param responseCode The status code
+	 * @param message What was being done
+	 * @param retryAfter The response's Retry-After header, may be null
+	 */
+	public HTTPStatusException(final int responseCode, final String message,
+			final String retryAfter)
+	{
+		super(message);
+		this.responseCode = responseCode;
+		this.retryAfterMillis = parseRetryAfter(retryAfter);
+	}
+
+	/**
+	 * @return The status code
+	 */
+	public int getResponseCode()
+	{
+		return responseCode;
+	}
+
+	/**
+	 * @return True if the server was shedding load (429 Too Many Requests or
+	 *         any 5xx) rather than refusing this request
+	 */
+	public boolean isThrottling()
+	{
+		return isThrottling(responseCode);
+	}
+
+	/**
+	 * @return How long the server asked to be left alone for, -1 if it
+	 *         didn't say
+	 */
+	public long getRetryAfterMillis()
+	{
+		return retryAfterMillis;
+	}
+
+	/**
+	 * @param responseCode A status code
+	 * @return True if it means the server was shedding load
+	 */
+	public static boolean isThrottling(final int responseCode)
+	{
+		return responseCode == 429 || responseCode >= 500;
+	}
+
+	/**
+	 * Reads a Retry-After header, which is either a number of seconds or an
+	 * HTTP date.
+	 * 
+	 * @param retryAfter The header, may be null
+	 * @return The milliseconds to wait, -1 if missing or unreadable
+	 */
+	public static long parseRetryAfter(final String retryAfter)
+	{
+		if (retryAfter == null || retryAfter.trim().isEmpty())
+		{
+			return -1;
+		}
+		final String value = retryAfter.trim();
+		try
+		{
+			return Math.max(0, Long.parseLong(value)) * 1000;
+		} catch (NumberFormatException e)
+		{
+			// not seconds, try a date.
+		}
+		try
+		{
+			final ZonedDateTime when = ZonedDateTime.parse(value,
+					DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, when.toInstant().toEpochMilli()
+					- System.currentTimeMillis());
+		} catch (DateTimeParseException e)
+		{
+			return -1;
+		}
+	}
+}
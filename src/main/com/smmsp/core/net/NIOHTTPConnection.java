@@ -0,0 +1,175 @@
+/*
+ * NIOHTTPConnection.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.smmsp.core.net.NIOHTTPEngine.BodyHandler;
+import com.smmsp.core.net.NIOHTTPEngine.Result;
+
+/**
+ * An HTTPConnection whose request runs on a shared {@link NIOHTTPEngine}
+ * rather than on a blocking socket owned by the calling thread. Use
+ * {@link #execute(BodyHandler)} to run fully asynchronously; the blocking
+ * methods inherited from {@link AbstractInternetConnection} still work, but
+ * park the caller until the exchange completes.
+ *
+ * @author Sean
+ *
+ */
+public class NIOHTTPConnection extends HTTPConnection
+{
+
+	private static final Logger LOG = Logger
+			.getLogger(NIOHTTPConnection.class);
+
+	/**
+	 * The engine to run on.
+	 */
+	private final NIOHTTPEngine engine;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param engine The engine to run on
+	 * @param u The URL to retrieve
+	 * @throws MalformedURLException
+	 */
+	public NIOHTTPConnection(final NIOHTTPEngine engine, final String u)
+			throws MalformedURLException
+	{
+		this(engine, u, RequestMethod.GET);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param engine The engine to run on
+	 * @param u The URL to retrieve
+	 * @param method How to retrieve it
+	 * @throws MalformedURLException
+	 */
+	public NIOHTTPConnection(final NIOHTTPEngine engine, final String u,
+			final RequestMethod method) throws MalformedURLException
+	{
+		super(u, method);
+		this.engine = engine;
+		// the engine neither pools connections nor decompresses bodies.
+		addHeader("Connection", "close");
+		addHeader("Accept-Encoding", "identity");
+	}
+
+	/**
+	 * Starts the request without blocking.
+	 * 
+	 * @param handler Picks where the body goes once the headers arrive
+	 * @return Completes once the body has been fully handled
+	 */
+	public CompletableFuture<Result> execute(final BodyHandler handler)
+	{
+		return engine.execute(getURL(), buildRequest(), handler);
+	}
+
+	/**
+	 * Runs the request, spooling the body to a temporary file that is
+	 * deleted when the returned response is closed.
+	 */
+	@Override
+	public HTTPResponse getResponse()
+	{
+		Path tmp = null;
+		try
+		{
+			tmp = Files.createTempFile("nio-http", ".body");
+			final Result result;
+			try (FileChannel out = FileChannel.open(tmp,
+					StandardOpenOption.WRITE))
+			{
+				result = execute((code, headers) -> out).get();
+			}
+			return new HTTPResponse(result.getResponseCode(),
+					result.getHeaders(), Files.newInputStream(tmp,
+							StandardOpenOption.DELETE_ON_CLOSE));
+		} catch (IOException | ExecutionException e)
+		{
+			LOG.error(e, e);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOG.error(e, e);
+		}
+		deleteQuietly(tmp);
+		return null;
+	}
+
+	/**
+	 * Writes the body straight from the selector thread into the file.
+	 */
+	@Override
+	public boolean saveToFile(final File f) throws IOException
+	{
+		try (FileChannel out = FileChannel.open(f.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			return execute((code, headers) -> out).get().getBodyLength() > 0;
+		} catch (ExecutionException e)
+		{
+			throw new IOException("Download of " + getURL() + " failed",
+					e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted downloading " + getURL(), e);
+		}
+	}
+
+	private static void deleteQuietly(final Path path)
+	{
+		if (path == null)
+		{
+			return;
+		}
+		try
+		{
+			Files.deleteIfExists(path);
+		} catch (IOException e)
+		{
+			LOG.debug("Unable to delete " + path, e);
+		}
+	}
+}
@@ -0,0 +1,1156 @@
+/*
+ * NIOHTTPEngine.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A non-blocking HTTP/1.1 engine. A small, fixed number of selector threads
+ * multiplex every in-flight exchange over non-blocking SocketChannels (with
+ * an SSLEngine for HTTPS), so the number of concurrent downloads is bounded
+ * by bandwidth rather than by threads.
+ *
+ * Each exchange uses it's own connection ("Connection: close") and the body
+ * is handed to the caller's channel as it arrives, de-chunked but otherwise
+ * untouched. Anything that may block (looking up the host, opening the
+ * file a body goes to) runs on a worker thread rather than a selector
+ * thread, and a host's addresses are tried in turn until one connects, as
+ * {@link HTTPConnection} does.
+ *
+ * @author Sean
+ *
+ */
+public class NIOHTTPEngine
+{
+
+	private static final Logger LOG = Logger.getLogger(NIOHTTPEngine.class);
+
+	/**
+	 * How often each selector wakes up to check for timeouts, at most.
+	 * Throttled exchanges can make it wake sooner.
+	 */
+	private static final long SELECT_MILLIS = 500;
+
+	/**
+	 * Picks the channel a response body should be written to once it's
+	 * headers have arrived. Called on a worker thread, so it may open files,
+	 * and the connection isn't read from until it returns.
+	 *
+	 * @author Sean
+	 *
+	 */
+	public interface BodyHandler
+	{
+		/**
+		 * @param code The response code
+		 * @param headers The response headers
+		 * @return Where to write the body, or null to discard it. The caller
+		 *         remains responsible for closing it, unless the exchange
+		 *         had already failed by the time it was returned, when the
+		 *         engine closes it.
+		 * @throws IOException
+		 */
+		public WritableByteChannel onHeaders(int code, HTTPHeaders headers)
+				throws IOException;
+	}
+
+	/**
+	 * The outcome of a completed exchange.
+	 *
+	 * @author Sean
+	 *
+	 */
+	public static final class Result
+	{
+		private final int responseCode;
+		private final HTTPHeaders responseHeaders;
+		private final long bodyLength;
+
+		Result(final int responseCode, final HTTPHeaders responseHeaders,
+				final long bodyLength)
+		{
+			this.responseCode = responseCode;
+			this.responseHeaders = responseHeaders;
+			this.bodyLength = bodyLength;
+		}
+
+		public int getResponseCode()
+		{
+			return responseCode;
+		}
+
+		public HTTPHeaders getHeaders()
+		{
+			return responseHeaders;
+		}
+
+		public Map<String, List<String>> getResponseHeaders()
+		{
+			return responseHeaders.asMap();
+		}
+
+		/**
+		 * @return The number of body bytes handed to the BodyHandler's channel
+		 */
+		public long getBodyLength()
+		{
+			return bodyLength;
+		}
+	}
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	/** Runs what mustn't block a selector thread. */
+	private final ExecutorService workers;
+	private final TLSContext tls;
+	private volatile long connectTimeoutMillis = 10000;
+	private volatile long readTimeoutMillis = 60000;
+
+	/**
+	 * Constructor, starts the selector threads.
+	 *
+	 * @param selectorThreads How many selector threads to run
+	 * @throws IOException if a selector can't be opened
+	 */
+	public NIOHTTPEngine(final int selectorThreads) throws IOException
+	{
+		this(selectorThreads, TLSContext.getDefault());
+	}
+
+	/**
+	 * Constructor, starts the selector threads.
+	 *
+	 * @param selectorThreads How many selector threads to run
+	 * @param tls Where TLS sessions come from
+	 * @throws IOException if a selector can't be opened
+	 */
+	public NIOHTTPEngine(final int selectorThreads, final TLSContext tls)
+			throws IOException
+	{
+		this.tls = tls;
+		final AtomicInteger num = new AtomicInteger();
+		this.workers = Executors.newCachedThreadPool(r ->
+		{
+			Thread t = new Thread(r, "NIO HTTP Worker " + num.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		this.loops = new SelectorLoop[Math.max(1, selectorThreads)];
+		for (int i = 0; i < loops.length; ++i)
+		{
+			loops[i] = new SelectorLoop(Selector.open());
+			Thread t = new Thread(loops[i], "NIO HTTP Selector " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * @param connectTimeoutMillis Time allowed to establish a connection
+	 */
+	public void setConnectTimeoutMillis(final long connectTimeoutMillis)
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @param readTimeoutMillis Time allowed between bytes once connected
+	 */
+	public void setReadTimeoutMillis(final long readTimeoutMillis)
+	{
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * Starts an exchange. Returns immediately, without waiting on DNS, so it
+	 * may be called from any thread; the future completes on a selector
+	 * thread once the whole body has been handed to the handler.
+	 *
+	 * @param url The URL being requested (for the host, port and scheme)
+	 * @param request The raw request bytes
+	 * @param handler Picks where the body goes
+	 * @return The outcome of the exchange
+	 */
+	public CompletableFuture<Result> execute(final URL url,
+			final byte[] request, final BodyHandler handler)
+	{
+		final CompletableFuture<Result> future = new CompletableFuture<>();
+		final String protocol = url.getProtocol().toLowerCase();
+		if (!"http".equals(protocol) && !"https".equals(protocol))
+		{
+			future.completeExceptionally(new HTTPException(
+					"Protocol is not HTTP or HTTPS!"));
+			return future;
+		}
+
+		final SelectorLoop loop = loops[Math.floorMod(
+				nextLoop.getAndIncrement(), loops.length)];
+		final Exchange ex = new Exchange(loop, url, request, handler, future);
+		if ("https".equals(protocol))
+		{
+			ex.ssl = tls.createEngine(url.getHost(), ex.port);
+		}
+		try
+		{
+			workers.execute(() ->
+			{
+				try
+				{
+					ex.addresses = DNSResolver.getDefault().resolve(
+							url.getHost());
+				} catch (UnknownHostException e)
+				{
+					future.completeExceptionally(e);
+					return;
+				}
+				loop.pending.add(ex);
+				loop.selector.wakeup();
+			});
+		} catch (RejectedExecutionException e)
+		{
+			future.completeExceptionally(new IOException(
+					"HTTP engine shut down", e));
+		}
+		return future;
+	}
+
+	/**
+	 * Stops the selector threads, failing anything still in flight.
+	 */
+	public void shutdown()
+	{
+		for (SelectorLoop loop : loops)
+		{
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Runs the selector for a share of the exchanges.
+	 */
+	private final class SelectorLoop implements Runnable
+	{
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Exchange> pending = new ConcurrentLinkedQueue<>();
+		/** Exchanges whose BodyHandler has returned. */
+		private final ConcurrentLinkedQueue<Exchange> resumed = new ConcurrentLinkedQueue<>();
+		private volatile boolean running = true;
+
+		SelectorLoop(final Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				long selectMillis = SELECT_MILLIS;
+				while (running)
+				{
+					Exchange ex;
+					while ((ex = pending.poll()) != null)
+					{
+						ex.start(selector);
+					}
+					while ((ex = resumed.poll()) != null)
+					{
+						ex.resume();
+					}
+
+					selector.select(selectMillis);
+					final Iterator<SelectionKey> rator = selector
+							.selectedKeys().iterator();
+					while (rator.hasNext())
+					{
+						final SelectionKey key = rator.next();
+						rator.remove();
+						((Exchange) key.attachment()).onReady(key);
+					}
+
+					final long now = System.nanoTime();
+					long wait = TimeUnit.MILLISECONDS.toNanos(SELECT_MILLIS);
+					for (SelectionKey key : selector.keys())
+					{
+						// cancelled ones may have moved on to another address.
+						if (key.isValid())
+						{
+							wait = Math.min(wait, ((Exchange) key.attachment())
+									.checkTimers(now));
+						}
+					}
+					selectMillis = Math.max(1,
+							TimeUnit.NANOSECONDS.toMillis(wait));
+				}
+			} catch (IOException | ClosedSelectorException e)
+			{
+				LOG.error("Selector failed", e);
+			} finally
+			{
+				for (SelectionKey key : selector.keys())
+				{
+					((Exchange) key.attachment()).fail(new IOException(
+							"HTTP engine shut down"));
+				}
+				Exchange ex;
+				while ((ex = pending.poll()) != null)
+				{
+					ex.fail(new IOException("HTTP engine shut down"));
+				}
+				while ((ex = resumed.poll()) != null)
+				{
+					ex.resume();
+				}
+				try
+				{
+					selector.close();
+				} catch (IOException e)
+				{
+					LOG.debug("Error closing selector", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where the response parser is in the byte stream.
+	 */
+	private enum ParseState
+	{
+		HEADERS, BODY_LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE
+	}
+
+	/**
+	 * A single request/response over it's own connection.
+	 */
+	private final class Exchange
+	{
+		private final SelectorLoop loop;
+		private final URL url;
+		private final int port;
+		private final ByteBuffer request;
+		private final BodyHandler handler;
+		private final CompletableFuture<Result> future;
+		private SSLEngine ssl;
+		/** The host's addresses, in the order to try them. */
+		private List<InetAddress> addresses;
+		private int nextAddress = 0;
+		/** The first address that couldn't be connected to's failure. */
+		private IOException connectFailure;
+		private InetSocketAddress address;
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private long deadline;
+		private boolean connected = false;
+		private boolean handshaking = false;
+		private long handshakeStart;
+		private long connectStart;
+		private boolean eof = false;
+
+		/** Network bytes waiting to be written (TLS only, write mode). */
+		private ByteBuffer netOut;
+		/** Network bytes waiting to be unwrapped (TLS only, write mode). */
+		private ByteBuffer netIn;
+		/** Plain text bytes waiting to be parsed (write mode). */
+		private ByteBuffer appIn;
+
+		private ParseState state = ParseState.HEADERS;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private final HTTPHeaderParser parser = new HTTPHeaderParser();
+		private int responseCode;
+		private HTTPHeaders responseHeaders = HTTPHeaders.EMPTY;
+		private WritableByteChannel sink;
+		/** True while the BodyHandler is picking the sink. */
+		private boolean awaitingSink = false;
+		private volatile WritableByteChannel pickedSink;
+		private volatile Throwable sinkFailure;
+		private long remaining;
+		private long bodyLength;
+
+		private final Throttle throttle = new Throttle();
+		/** True while reading is paused to pay off the throttle. */
+		private boolean throttled = false;
+		private long resumeAt;
+
+		Exchange(final SelectorLoop loop, final URL url, final byte[] request,
+				final BodyHandler handler,
+				final CompletableFuture<Result> future)
+		{
+			this.loop = loop;
+			this.url = url;
+			this.port = url.getPort() == -1 ? url.getDefaultPort() : url
+					.getPort();
+			this.request = ByteBuffer.wrap(request);
+			this.handler = handler;
+			this.future = future;
+		}
+
+		/**
+		 * Connects to the next of the host's addresses.
+		 */
+		void start(final Selector selector)
+		{
+			try
+			{
+				address = new InetSocketAddress(addresses.get(nextAddress++),
+						port);
+				connected = false;
+				eof = false;
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				final int bufSize;
+				if (ssl != null)
+				{
+					netOut = ByteBuffer.allocate(ssl.getSession()
+							.getPacketBufferSize());
+					netIn = ByteBuffer.allocate(ssl.getSession()
+							.getPacketBufferSize());
+					bufSize = ssl.getSession().getApplicationBufferSize();
+				} else
+				{
+					bufSize = 64 * 1024;
+				}
+				appIn = ByteBuffer.allocate(bufSize);
+				connectStart = System.nanoTime();
+				deadline = connectStart
+						+ TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+				if (channel.connect(address))
+				{
+					key = channel.register(selector, 0, this);
+					onConnected();
+				} else
+				{
+					key = channel.register(selector, SelectionKey.OP_CONNECT,
+							this);
+				}
+			} catch (IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		void onReady(final SelectionKey k)
+		{
+			try
+			{
+				if (k.isConnectable())
+				{
+					if (!channel.finishConnect())
+					{
+						return;
+					}
+					onConnected();
+					return;
+				}
+				if (k.isReadable())
+				{
+					final ByteBuffer dst = ssl != null ? netIn : appIn;
+					final int limit = dst.limit();
+					dst.limit(dst.position()
+							+ (int) throttle.chunk(dst.remaining()));
+					final int num;
+					try
+					{
+						num = channel.read(dst);
+					} finally
+					{
+						dst.limit(limit);
+					}
+					if (num == -1)
+					{
+						eof = true;
+					} else if (num > 0)
+					{
+						touch();
+					}
+				}
+				progress();
+			} catch (IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		private void onConnected() throws IOException
+		{
+			connected = true;
+			DNSResolver.getDefault().recordConnect(address.getAddress(),
+					System.nanoTime() - connectStart);
+			touch();
+			if (ssl != null)
+			{
+				handshakeStart = System.currentTimeMillis();
+				ssl.beginHandshake();
+				handshaking = true;
+			}
+			progress();
+		}
+
+		/**
+		 * Moves the exchange along as far as it can go without blocking and
+		 * then picks the events to wait for next.
+		 */
+		private void progress() throws IOException
+		{
+			if (ssl != null)
+			{
+				flush();
+				if (handshaking && !handshake())
+				{
+					updateInterest();
+					return;
+				}
+				if (request.hasRemaining())
+				{
+					wrapRequest();
+				}
+				if (!request.hasRemaining())
+				{
+					unwrap();
+				}
+			} else if (request.hasRemaining())
+			{
+				channel.write(request);
+			}
+
+			if (!request.hasRemaining())
+			{
+				parse();
+			}
+
+			if (awaitingSink)
+			{
+				// see resume().
+				updateInterest();
+				return;
+			}
+			if (state == ParseState.DONE)
+			{
+				finish();
+				return;
+			}
+			if (eof)
+			{
+				if (state == ParseState.BODY_UNTIL_CLOSE)
+				{
+					finish();
+					return;
+				}
+				throw new EOFException("Connection closed by " + url.getHost()
+						+ " before the response was complete");
+			}
+			updateInterest();
+		}
+
+		private void updateInterest()
+		{
+			int ops = 0;
+			if ((ssl != null && netOut.position() > 0)
+					|| (ssl == null && request.hasRemaining()))
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (ssl != null && request.hasRemaining() && !handshaking)
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if ((!request.hasRemaining() || handshaking) && !throttled
+					&& !awaitingSink)
+			{
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Drives the TLS handshake.
+		 *
+		 * @return True once the handshake has finished
+		 */
+		private boolean handshake() throws IOException
+		{
+			while (true)
+			{
+				if (!flush())
+				{
+					return false;
+				}
+				final HandshakeStatus hs = ssl.getHandshakeStatus();
+				switch (hs)
+				{
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					final SSLEngineResult wrapped = ssl.wrap(
+							ByteBuffer.allocate(0), netOut);
+					if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED)
+					{
+						throw new SSLException("TLS closed during handshake");
+					} else if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					{
+						// netOut was flushed, so it's too small.
+						netOut = grow(netOut, ssl.getSession()
+								.getPacketBufferSize());
+					}
+					break;
+				case NEED_UNWRAP:
+					netIn.flip();
+					final SSLEngineResult res = ssl.unwrap(netIn, appIn);
+					netIn.compact();
+					if (res.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					{
+						if (eof)
+						{
+							throw new SSLException(
+									"Connection closed during TLS handshake");
+						}
+						netIn = ensureRoom(netIn, ssl.getSession()
+								.getPacketBufferSize());
+						return false;
+					} else if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					{
+						appIn = grow(appIn, ssl.getSession()
+								.getApplicationBufferSize());
+					} else if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+					{
+						throw new SSLException("TLS closed during handshake");
+					}
+					break;
+				default:
+					// FINISHED or NOT_HANDSHAKING
+					handshaking = false;
+					tls.recordHandshake(ssl.getSession(), handshakeStart);
+					return true;
+				}
+			}
+		}
+
+		private void wrapRequest() throws IOException
+		{
+			while (request.hasRemaining())
+			{
+				final SSLEngineResult res = ssl.wrap(request, netOut);
+				if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				{
+					if (!flush())
+					{
+						return;
+					}
+				} else if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+				{
+					throw new SSLException("TLS closed while sending request");
+				}
+			}
+			flush();
+		}
+
+		/**
+		 * Unwraps everything that has arrived into appIn, dealing with any
+		 * post-handshake messages (session tickets, key updates) along the
+		 * way.
+		 */
+		private void unwrap() throws IOException
+		{
+			netIn.flip();
+			try
+			{
+				while (netIn.hasRemaining())
+				{
+					final SSLEngineResult res = ssl.unwrap(netIn, appIn);
+					if (res.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					{
+						runTasks();
+					}
+					if (ssl.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+					{
+						ssl.wrap(ByteBuffer.allocate(0), netOut);
+						flush();
+					}
+					final SSLEngineResult.Status status = res.getStatus();
+					if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					{
+						break;
+					} else if (status == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					{
+						// make room by handing what we have to the parser.
+						parse();
+						appIn = ensureRoom(appIn, ssl.getSession()
+								.getApplicationBufferSize());
+					} else if (status == SSLEngineResult.Status.CLOSED)
+					{
+						eof = true;
+						break;
+					}
+				}
+			} finally
+			{
+				netIn.compact();
+			}
+			netIn = ensureRoom(netIn, ssl.getSession().getPacketBufferSize());
+		}
+
+		/**
+		 * Writes out any pending TLS records.
+		 *
+		 * @return True if everything was written
+		 */
+		private boolean flush() throws IOException
+		{
+			if (netOut.position() == 0)
+			{
+				return true;
+			}
+			netOut.flip();
+			channel.write(netOut);
+			netOut.compact();
+			return netOut.position() == 0;
+		}
+
+		private void runTasks()
+		{
+			Runnable task;
+			while ((task = ssl.getDelegatedTask()) != null)
+			{
+				task.run();
+			}
+		}
+
+		/**
+		 * Feeds the plain text that has arrived through the response parser.
+		 */
+		private void parse() throws IOException
+		{
+			appIn.flip();
+			try
+			{
+				while (state != ParseState.DONE && !awaitingSink
+						&& appIn.hasRemaining())
+				{
+					switch (state)
+					{
+					case HEADERS:
+						if (parser.parse(appIn))
+						{
+							onHeaders();
+						}
+						break;
+					case BODY_LENGTH:
+					case CHUNK_DATA:
+						final int num = (int) Math.min(remaining,
+								appIn.remaining());
+						final ByteBuffer slice = appIn.duplicate();
+						slice.limit(slice.position() + num);
+						deliver(slice);
+						appIn.position(appIn.position() + num);
+						remaining -= num;
+						if (remaining == 0)
+						{
+							state = state == ParseState.BODY_LENGTH ? ParseState.DONE
+									: ParseState.CHUNK_END;
+						}
+						break;
+					case CHUNK_END:
+						if (readLine())
+						{
+							state = ParseState.CHUNK_SIZE;
+						}
+						break;
+					case CHUNK_SIZE:
+						if (readLine())
+						{
+							onChunkSize(takeLine());
+						}
+						break;
+					case TRAILERS:
+						if (readLine() && takeLine().isEmpty())
+						{
+							state = ParseState.DONE;
+						}
+						break;
+					case BODY_UNTIL_CLOSE:
+						deliver(appIn);
+						break;
+					default:
+						break;
+					}
+				}
+			} finally
+			{
+				appIn.compact();
+			}
+		}
+
+		/**
+		 * Accumulates bytes up to and including a LF.
+		 *
+		 * @return True once a full line has been read
+		 */
+		private boolean readLine()
+		{
+			while (appIn.hasRemaining())
+			{
+				final byte b = appIn.get();
+				if (b == '\n')
+				{
+					return true;
+				}
+				line.write(b);
+			}
+			return false;
+		}
+
+		private String takeLine()
+		{
+			String str = new String(line.toByteArray(),
+					StandardCharsets.ISO_8859_1);
+			line.reset();
+			if (str.endsWith("\r"))
+			{
+				str = str.substring(0, str.length() - 1);
+			}
+			return str;
+		}
+
+		private void onHeaders() throws IOException
+		{
+			responseCode = parser.getResponseCode();
+			if (responseCode / 100 == 1)
+			{
+				// an interim response, the real one follows.
+				parser.reset();
+				return;
+			}
+			responseHeaders = parser.getHeaders();
+
+			if (LOG.isDebugEnabled())
+			{
+				LOG.debug(url + " " + responseCode + " " + responseHeaders);
+			}
+			// checked before the handler opens anything for the body.
+			final long contentLength = responseHeaders.getContentLength();
+			if (handler != null)
+			{
+				pickSink();
+			}
+
+			final String transferEncoding = responseHeaders
+					.getFirst("Transfer-Encoding");
+			if (responseCode == 204 || responseCode == 304)
+			{
+				state = ParseState.DONE;
+			} else if (transferEncoding != null
+					&& transferEncoding.toLowerCase().contains("chunked"))
+			{
+				state = ParseState.CHUNK_SIZE;
+			} else if (contentLength != -1)
+			{
+				remaining = contentLength;
+				state = remaining == 0 ? ParseState.DONE
+						: ParseState.BODY_LENGTH;
+			} else
+			{
+				state = ParseState.BODY_UNTIL_CLOSE;
+			}
+		}
+
+		/**
+		 * Has a worker ask the BodyHandler for the sink, pausing the
+		 * exchange until it has.
+		 */
+		private void pickSink() throws IOException
+		{
+			awaitingSink = true;
+			final int code = responseCode;
+			final HTTPHeaders headers = responseHeaders;
+			try
+			{
+				workers.execute(() ->
+				{
+					try
+					{
+						pickedSink = handler.onHeaders(code, headers);
+					} catch (IOException | RuntimeException e)
+					{
+						sinkFailure = e;
+					}
+					loop.resumed.add(this);
+					loop.selector.wakeup();
+				});
+			} catch (RejectedExecutionException e)
+			{
+				throw new IOException("HTTP engine shut down", e);
+			}
+		}
+
+		/**
+		 * Carries on once the BodyHandler has picked the sink, on the
+		 * selector thread.
+		 */
+		void resume()
+		{
+			awaitingSink = false;
+			if (future.isDone())
+			{
+				// failed (timed out, shut down) while the handler ran.
+				if (pickedSink != null)
+				{
+					try
+					{
+						pickedSink.close();
+					} catch (IOException e)
+					{
+						LOG.debug("Error closing " + pickedSink, e);
+					}
+				}
+				return;
+			}
+			if (sinkFailure != null)
+			{
+				fail(sinkFailure);
+				return;
+			}
+			sink = pickedSink;
+			touch();
+			try
+			{
+				progress();
+			} catch (IOException | RuntimeException e)
+			{
+				fail(e);
+			}
+		}
+
+		private void onChunkSize(final String str) throws IOException
+		{
+			final int ext = str.indexOf(';');
+			final String size = (ext == -1 ? str : str.substring(0, ext))
+					.trim();
+			try
+			{
+				remaining = Long.parseLong(size, 16);
+			} catch (NumberFormatException e)
+			{
+				throw new IOException("Bad chunk size: " + str, e);
+			}
+			state = remaining == 0 ? ParseState.TRAILERS
+					: ParseState.CHUNK_DATA;
+		}
+
+		private void deliver(final ByteBuffer buf) throws IOException
+		{
+			final int num = buf.remaining();
+			if (sink != null)
+			{
+				while (buf.hasRemaining())
+				{
+					sink.write(buf);
+				}
+			} else
+			{
+				buf.position(buf.limit());
+			}
+			bodyLength += num;
+			final long wait = throttle.charge(num);
+			if (wait > 0)
+			{
+				// stop reading until it's paid off, see checkTimers.
+				throttled = true;
+				resumeAt = System.nanoTime() + wait;
+			}
+		}
+
+		/**
+		 * Grows a buffer an SSLEngine overflowed, at least doubling it's free
+		 * space so that it can't overflow the same way twice.
+		 */
+		private ByteBuffer grow(final ByteBuffer buf, final int room)
+		{
+			return ensureRoom(buf, Math.max(room, buf.remaining() * 2));
+		}
+
+		private ByteBuffer ensureRoom(final ByteBuffer buf, final int room)
+		{
+			if (buf.remaining() >= room)
+			{
+				return buf;
+			}
+			final ByteBuffer bigger = ByteBuffer.allocate(buf.position()
+					+ room);
+			buf.flip();
+			bigger.put(buf);
+			return bigger;
+		}
+
+		private void touch()
+		{
+			deadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+		}
+
+		/**
+		 * Resumes reading once a throttled exchange has waited long enough,
+		 * and fails one that has gone quiet for too long.
+		 *
+		 * @param now The time
+		 * @return How long until this needs checking again, in nanos
+		 */
+		long checkTimers(final long now)
+		{
+			if (throttled)
+			{
+				if (resumeAt - now > 0)
+				{
+					return resumeAt - now;
+				}
+				throttled = false;
+				touch();
+				if (state != ParseState.DONE)
+				{
+					try
+					{
+						updateInterest();
+					} catch (RuntimeException e)
+					{
+						fail(e);
+					}
+				}
+			} else if (now - deadline > 0)
+			{
+				fail(new SocketTimeoutException((connected ? "Read"
+						: "Connect") + " timed out talking to " + url.getHost()));
+			}
+			return Long.MAX_VALUE;
+		}
+
+		private void finish()
+		{
+			close();
+			future.complete(new Result(responseCode, responseHeaders,
+					bodyLength));
+		}
+
+		void fail(final Throwable t)
+		{
+			if (!connected && address != null && t instanceof IOException)
+			{
+				DNSResolver.getDefault().recordFailure(address.getAddress());
+				if (connectFailure == null)
+				{
+					connectFailure = (IOException) t;
+				} else if (connectFailure != t)
+				{
+					connectFailure.addSuppressed(t);
+				}
+				if (nextAddress < addresses.size() && loop.running)
+				{
+					LOG.debug("Unable to connect to " + address
+							+ ", trying the next address", t);
+					closeChannel();
+					// not started here, checkTimers may be walking the keys.
+					loop.pending.add(this);
+					loop.selector.wakeup();
+					return;
+				}
+			}
+			close();
+			future.completeExceptionally(!connected && connectFailure != null
+					&& t instanceof IOException ? connectFailure : t);
+		}
+
+		private void close()
+		{
+			state = ParseState.DONE;
+			if (ssl != null)
+			{
+				ssl.closeOutbound();
+			}
+			closeChannel();
+		}
+
+		private void closeChannel()
+		{
+			if (key != null)
+			{
+				try
+				{
+					key.cancel();
+				} catch (CancelledKeyException e)
+				{
+					// no-op
+				}
+			}
+			if (channel != null)
+			{
+				try
+				{
+					channel.close();
+				} catch (IOException e)
+				{
+					LOG.debug("Error closing channel", e);
+				}
+			}
+		}
+	}
+}
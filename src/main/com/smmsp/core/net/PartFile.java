@@ -0,0 +1,409 @@
+/*
+ * PartFile.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A download in progress, kept in "&lt;file&gt;.part" next to it's final
+ * location. A small sidecar ("&lt;file&gt;.part.properties") records the
+ * validator (ETag or Last-Modified) the bytes came from and how many of
+ * them have been flushed to disk, so an interrupted download can carry on
+ * with a Range request instead of starting again from zero.
+ *
+ * @author Sean
+ *
+ */
+public class PartFile
+{
+
+	private static final Logger LOG = Logger.getLogger(PartFile.class);
+
+	/**
+	 * How many bytes to write between sidecar checkpoints.
+	 */
+	private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+	private static final String VALIDATOR_KEY = "validator";
+	private static final String OFFSET_KEY = "offset";
+
+	/**
+	 * Where the finished file ends up.
+	 */
+	private final Path target;
+
+	/**
+	 * The partial download.
+	 */
+	private final Path part;
+
+	/**
+	 * The validator and offset of the partial download.
+	 */
+	private final Path sidecar;
+
+	/**
+	 * The validator the bytes in the part file came from.
+	 */
+	private String validator;
+
+	/**
+	 * How many bytes of the part file are known to be good.
+	 */
+	private long offset;
+
+	/**
+	 * Constructor, picks up any partial download left behind.
+	 *
+	 * @param target Where the finished file should end up
+	 */
+	public PartFile(final Path target)
+	{
+		this.target = target;
+		this.part = target.resolveSibling(target.getFileName() + ".part");
+		this.sidecar = target.resolveSibling(target.getFileName()
+				+ ".part.properties");
+		load();
+	}
+
+	/**
+	 * @return Where the finished file ends up
+	 */
+	public Path getTarget()
+	{
+		return target;
+	}
+
+	/**
+	 * @return The partial download file
+	 */
+	public Path getPartPath()
+	{
+		return part;
+	}
+
+	/**
+	 * @return How many bytes can be resumed from, 0 if none
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Asks for the rest of the file if there is something to resume from.
+	 * Always asks for the identity encoding so that byte offsets line up
+	 * with the file on disk.
+	 *
+	 * @param conn The request for the file
+	 */
+	public void addResumeHeaders(final HTTPConnection conn)
+	{
+		conn.addHeader("Accept-Encoding", "identity");
+		if (offset > 0 && validator != null)
+		{
+			LOG.info("Resuming " + target.getFileName() + " from byte "
+					+ offset);
+			conn.addHeader("Range", "bytes=" + offset + "-");
+			conn.addHeader("If-Range", validator);
+		}
+	}
+
+	/**
+	 * Opens the part file for the body of a response, positioned where the
+	 * body starts: at the resume offset for a matching 206, or truncated to
+	 * zero for a 200.
+	 *
+	 * @param code The response code
+	 * @param headers The response headers
+	 * @return A channel to write the body to. Closing it checkpoints the
+	 *         sidecar.
+	 * @throws IOException If the response can't be written to this file
+	 */
+	public WritableByteChannel open(final int code,
+			final HTTPHeaders headers) throws IOException
+	{
+		return openChannel(code, headers);
+	}
+
+	private CheckpointChannel openChannel(final int code,
+			final HTTPHeaders headers) throws IOException
+	{
+		long start;
+		if (code == 206)
+		{
+			start = parseContentRangeStart(headers.getFirst("Content-Range"));
+			if (start != offset)
+			{
+				reset();
+				throw new IOException("Server resumed " + target.getFileName()
+						+ " at " + start + " rather than " + offset);
+			}
+		} else if (code == 200)
+		{
+			if (offset > 0)
+			{
+				LOG.info("Server sent all of " + target.getFileName()
+						+ ", discarding " + offset + " partial bytes");
+			}
+			start = 0;
+		} else
+		{
+			if (code == 416)
+			{
+				// our partial copy no longer lines up with the file.
+				reset();
+			}
+			throw new HTTPStatusException(code, "Unexpected response code "
+					+ code + " downloading " + target.getFileName(),
+					headers.getFirst("Retry-After"));
+		}
+
+		validator = pickValidator(headers);
+		offset = start;
+		final FileChannel chan = FileChannel.open(part,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		chan.truncate(start);
+		chan.position(start);
+		save();
+		return new CheckpointChannel(chan);
+	}
+
+	/**
+	 * Copies a response body into the part file.
+	 *
+	 * @param response The response for the file
+	 * @return The number of bytes received
+	 * @throws IOException
+	 */
+	public long write(final HTTPResponse response) throws IOException
+	{
+		long total = 0;
+		try (CheckpointChannel out = openChannel(response.getResponseCode(),
+				response.getHeaders()))
+		{
+			long num;
+			while ((num = response.transferTo(out.chan, offset,
+					CHECKPOINT_BYTES)) != -1)
+			{
+				out.advance(num);
+				total += num;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Moves the finished part file into place and removes the sidecar.
+	 *
+	 * @throws IOException
+	 */
+	public void complete() throws IOException
+	{
+		try
+		{
+			Files.move(part, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.deleteIfExists(sidecar);
+		offset = 0;
+		validator = null;
+	}
+
+	/**
+	 * Throws away the partial download.
+	 *
+	 * @throws IOException
+	 */
+	public void reset() throws IOException
+	{
+		offset = 0;
+		validator = null;
+		Files.deleteIfExists(part);
+		Files.deleteIfExists(sidecar);
+	}
+
+	/**
+	 * Reads the sidecar, trusting no more of the part file than it records.
+	 */
+	private void load()
+	{
+		offset = 0;
+		validator = null;
+		if (!Files.exists(sidecar) || !Files.exists(part))
+		{
+			return;
+		}
+		final Properties p = new Properties();
+		try (InputStream in = Files.newInputStream(sidecar))
+		{
+			p.load(in);
+			validator = p.getProperty(VALIDATOR_KEY);
+			offset = Math.min(Long.parseLong(p.getProperty(OFFSET_KEY, "0")),
+					Files.size(part));
+		} catch (IOException | NumberFormatException e)
+		{
+			LOG.warn("Ignoring unreadable " + sidecar, e);
+			offset = 0;
+			validator = null;
+		}
+	}
+
+	/**
+	 * Writes the sidecar.
+	 */
+	private void save() throws IOException
+	{
+		final Properties p = new Properties();
+		if (validator != null)
+		{
+			p.setProperty(VALIDATOR_KEY, validator);
+		}
+		p.setProperty(OFFSET_KEY, Long.toString(offset));
+		final Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp))
+		{
+			p.store(out, "Partial download of " + target.getFileName());
+		}
+		Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Picks the validator to resume with. Weak ETags can't be used with
+	 * If-Range, so Last-Modified is used instead of those.
+	 */
+	private static String pickValidator(final HTTPHeaders headers)
+	{
+		final String etag = headers.getFirst("ETag");
+		if (etag != null && !etag.trim().startsWith("W/"))
+		{
+			return etag.trim();
+		}
+		final String lastModified = headers.getFirst("Last-Modified");
+		return lastModified == null ? null : lastModified.trim();
+	}
+
+	/**
+	 * @param contentRange A "bytes start-end/total" header
+	 * @return The start of the range
+	 */
+	private static long parseContentRangeStart(final String contentRange)
+			throws IOException
+	{
+		if (contentRange == null)
+		{
+			throw new IOException("206 response without a Content-Range");
+		}
+		try
+		{
+			final String range = contentRange.trim().substring(
+					"bytes".length()).trim();
+			return Long.parseLong(range.substring(0, range.indexOf('-'))
+					.trim());
+		} catch (RuntimeException e)
+		{
+			throw new IOException("Bad Content-Range: " + contentRange, e);
+		}
+	}
+
+	/**
+	 * Writes to the part file, flushing it and recording the offset in the
+	 * sidecar every {@link PartFile#CHECKPOINT_BYTES} and when closed.
+	 */
+	private final class CheckpointChannel implements WritableByteChannel
+	{
+		private final FileChannel chan;
+		private long lastCheckpoint;
+
+		CheckpointChannel(final FileChannel chan)
+		{
+			this.chan = chan;
+			this.lastCheckpoint = offset;
+		}
+
+		@Override
+		public int write(final ByteBuffer src) throws IOException
+		{
+			final int num = chan.write(src);
+			advance(num);
+			return num;
+		}
+
+		/**
+		 * Records bytes written to {@link #chan} at the current offset.
+		 */
+		void advance(final long num) throws IOException
+		{
+			offset += num;
+			if (offset - lastCheckpoint >= CHECKPOINT_BYTES)
+			{
+				checkpoint();
+			}
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return chan.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				checkpoint();
+			} finally
+			{
+				chan.close();
+			}
+		}
+
+		private void checkpoint() throws IOException
+		{
+			chan.force(false);
+			save();
+			lastCheckpoint = offset;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * PooledBodyInputStream.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.smmsp.core.net.HTTPConnectionPool.PooledConnection;
+
+/**
+ * Wraps a framed response body and hands the connection back to it's pool
+ * once the body has been fully read, or closes it if the body is abandoned
+ * with too much left to drain. Every body byte passes through here, so this
+ * is also where the connection's {@link Throttle} is paid.
+ *
+ * @author Sean
+ *
+ */
+public class PooledBodyInputStream extends FilterInputStream
+{
+
+	/**
+	 * The most we are willing to read and throw away to save a connection.
+	 */
+	private static final long MAX_DRAIN = 64 * 1024;
+
+	private final HTTPConnectionPool pool;
+	private final PooledConnection conn;
+	private final boolean keepAlive;
+	private final AtomicBoolean released = new AtomicBoolean(false);
+	private final Throttle throttle;
+
+	/**
+	 * Constructor
+	 *
+	 * @param body The framed body (must return -1 at the end of the body,
+	 *            not the end of the connection)
+	 * @param pool The pool the connection was leased from
+	 * @param conn The connection
+	 * @param keepAlive True if the server will keep the connection open
+	 */
+	public PooledBodyInputStream(final InputStream body,
+			final HTTPConnectionPool pool, final PooledConnection conn,
+			final boolean keepAlive)
+	{
+		super(body);
+		this.pool = pool;
+		this.conn = conn;
+		this.keepAlive = keepAlive;
+		this.throttle = conn.getThrottle();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		try
+		{
+			final int chr = in.read();
+			if (chr == -1)
+			{
+				release(keepAlive);
+			} else
+			{
+				throttle.pay(1);
+			}
+			return chr;
+		} catch (IOException e)
+		{
+			release(false);
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException
+	{
+		try
+		{
+			final int num = in.read(b, off, (int) throttle.chunk(len));
+			if (num == -1)
+			{
+				release(keepAlive);
+			} else
+			{
+				throttle.pay(num);
+			}
+			return num;
+		} catch (IOException e)
+		{
+			release(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Moves up to count bytes of the body into a file, socket-to-file when
+	 * the body is a plain Content-Length body.
+	 *
+	 * @param out Where to write the body
+	 * @param position The file offset to write the first byte at
+	 * @param count The most to move
+	 * @return The number of bytes moved, or -1 at the end of the body
+	 * @throws IOException
+	 */
+	public long transferTo(final FileChannel out, final long position,
+			final long count) throws IOException
+	{
+		try
+		{
+			final long wanted = throttle.chunk(count);
+			final long num;
+			if (in instanceof ContentLengthInputStream)
+			{
+				num = ((ContentLengthInputStream) in).transferTo(out,
+						position, wanted);
+			} else
+			{
+				num = FileTransfer.copy(in, out, position, wanted);
+			}
+			if (num == -1)
+			{
+				release(keepAlive);
+			} else
+			{
+				throttle.pay(num);
+			}
+			return num;
+		} catch (IOException e)
+		{
+			release(false);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * Drains a small remainder so the connection can be reused, otherwise
+	 * closes it.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (released.get())
+		{
+			return;
+		}
+		if (!keepAlive)
+		{
+			release(false);
+			return;
+		}
+		try
+		{
+			final byte[] buf = new byte[8192];
+			long drained = 0;
+			int num = 0;
+			while (drained <= MAX_DRAIN
+					&& (num = in.read(buf, 0, buf.length)) != -1)
+			{
+				drained += num;
+			}
+			release(num == -1);
+		} catch (IOException e)
+		{
+			release(false);
+		}
+	}
+
+	private void release(final boolean reusable)
+	{
+		if (released.compareAndSet(false, true))
+		{
+			pool.release(conn, reusable);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * RateLimiter.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket over bytes. Rather than a token count and a
+ * refill time (two values that would need a lock to update together) it
+ * keeps the one time at which everything taken so far will have been paid
+ * for, and each caller moves that forward with a compare-and-set. Callers
+ * are told how long to wait rather than being made to, so the same bucket
+ * can pace a blocking stream or a selector.
+ * <p>
+ * An idle bucket fills up to {@link #BURST_MILLIS} worth of bytes, which
+ * can be taken at once. A rate of 0 is unlimited, and then taking from the
+ * bucket costs one volatile read.
+ *
+ * @author Sean
+ *
+ */
+public final class RateLimiter
+{
+
+	/**
+	 * How much an idle bucket holds, in time at the current rate.
+	 */
+	public static final long BURST_MILLIS = 100;
+
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(BURST_MILLIS);
+
+	/**
+	 * The smallest amount worth pacing separately.
+	 */
+	private static final long MIN_CHUNK = 4 * 1024;
+
+	private volatile long bytesPerSecond;
+
+	/**
+	 * When the bytes taken so far will have been paid for.
+	 */
+	private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Constructor
+	 *
+	 * @param bytesPerSecond The rate, 0 for unlimited
+	 */
+	public RateLimiter(final long bytesPerSecond)
+	{
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * Changes the rate, taking effect immediately. Any debt built up at the
+	 * old rate is forgiven.
+	 *
+	 * @param bytesPerSecond The rate, 0 for unlimited
+	 */
+	public void setBytesPerSecond(final long bytesPerSecond)
+	{
+		paidUntil.set(System.nanoTime());
+		this.bytesPerSecond = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * @return The rate, 0 for unlimited
+	 */
+	public long getBytesPerSecond()
+	{
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @return True if there is a limit
+	 */
+	public boolean isLimiting()
+	{
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * @param wanted The most the caller would like to move at once
+	 * @return How much to move before taking it from the bucket, so that
+	 *         the waits come often and short rather than rare and long
+	 */
+	public long chunk(final long wanted)
+	{
+		final long rate = bytesPerSecond;
+		if (rate <= 0)
+		{
+			return wanted;
+		}
+		return Math.min(wanted, Math.max(MIN_CHUNK, rate * BURST_MILLIS
+				/ 1000));
+	}
+
+	/**
+	 * Takes bytes from the bucket, running into debt if there aren't enough.
+	 *
+	 * @param bytes How many bytes were (or are about to be) moved
+	 * @return How long the caller should wait before moving more, in nanos
+	 */
+	public long take(final long bytes)
+	{
+		final long rate = bytesPerSecond;
+		if (rate <= 0 || bytes <= 0)
+		{
+			return 0;
+		}
+		final long cost = (long) (bytes * 1e9 / rate);
+		final long now = System.nanoTime();
+		while (true)
+		{
+			final long prev = paidUntil.get();
+			// an idle bucket only fills so far.
+			final long from = prev - (now - BURST_NANOS) > 0 ? prev : now
+					- BURST_NANOS;
+			final long next = from + cost;
+			if (paidUntil.compareAndSet(prev, next))
+			{
+				return Math.max(0, next - now);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		final long rate = bytesPerSecond;
+		return rate <= 0 ? "unlimited" : (rate / 1024) + " kb/s";
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * ReadWatchdog.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes a channel that has gone a read timeout without progress. Blocking
+ * channel reads (unlike socket stream reads) ignore SO_TIMEOUT, so this
+ * stands in for it while a body is moved with transferFrom.
+ *
+ * @author Sean
+ *
+ */
+final class ReadWatchdog implements Runnable
+{
+
+	private static final ScheduledExecutorService TIMER = Executors
+			.newSingleThreadScheduledExecutor(r ->
+			{
+				final Thread t = new Thread(r, "Read Timeout Watchdog");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final Closeable target;
+	private final long timeoutNanos;
+	private volatile long lastProgress = System.nanoTime();
+	private volatile boolean expired = false;
+	private volatile ScheduledFuture<?> task;
+
+	private ReadWatchdog(final Closeable target, final long timeoutMillis)
+	{
+		this.target = target;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * @param target What to close if reading stalls
+	 * @param timeoutMillis The read timeout, 0 or less for none
+	 * @return The running watchdog, or null if there is no timeout
+	 */
+	static ReadWatchdog start(final Closeable target, final int timeoutMillis)
+	{
+		if (timeoutMillis <= 0)
+		{
+			return null;
+		}
+		final ReadWatchdog dog = new ReadWatchdog(target, timeoutMillis);
+		final long period = Math.max(10, timeoutMillis / 4);
+		dog.task = TIMER.scheduleWithFixedDelay(dog, period, period,
+				TimeUnit.MILLISECONDS);
+		return dog;
+	}
+
+	/**
+	 * Records that bytes were read.
+	 */
+	void progress()
+	{
+		lastProgress = System.nanoTime();
+	}
+
+	/**
+	 * @return True if the watchdog closed the target
+	 */
+	boolean isExpired()
+	{
+		return expired;
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	void cancel()
+	{
+		task.cancel(false);
+	}
+
+	@Override
+	public void run()
+	{
+		if (System.nanoTime() - lastProgress > timeoutNanos)
+		{
+			expired = true;
+			task.cancel(false);
+			try
+			{
+				target.close();
+			} catch (IOException e)
+			{
+				// no-op, it's being abandoned.
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * RetryPolicy.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * When to try a failed download again, and how long to wait first.
+ * <p>
+ * Only failures that may go away by themselves are retried: throttling
+ * (429 and 5xx) and network errors, but not disk errors or TLS failures.
+ * The wait doubles with each attempt up to a ceiling, and is picked at
+ * random below that ("full jitter") so that downloads that failed together
+ * don't all come back together. A Retry-After from the server is waited out
+ * in full.
+ *
+ * @author Sean
+ *
+ */
+public class RetryPolicy
+{
+
+	private final int maxAttempts;
+	private final long baseMillis;
+	private final long maxMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxAttempts How many times to try, including the first
+	 * @param baseMillis The longest wait after the first failure
+	 * @param maxMillis The longest wait after any failure
+	 */
+	public RetryPolicy(final int maxAttempts, final long baseMillis,
+			final long maxMillis)
+	{
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseMillis = Math.max(1, baseMillis);
+		this.maxMillis = Math.max(this.baseMillis, maxMillis);
+	}
+
+	/**
+	 * @return How many times to try, including the first
+	 */
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	/**
+	 * @param attempt The attempt that failed, from 1
+	 * @param failure Why it failed
+	 * @return The milliseconds to wait before trying again, or -1 to give up
+	 */
+	public long nextDelayMillis(final int attempt, final Throwable failure)
+	{
+		if (attempt >= maxAttempts || !isTransient(failure))
+		{
+			return -1;
+		}
+		long ceiling = baseMillis;
+		for (int i = 1; i < attempt && ceiling < maxMillis; ++i)
+		{
+			ceiling <<= 1;
+		}
+		long delay = ThreadLocalRandom.current().nextLong(
+				Math.min(ceiling, maxMillis) + 1);
+
+		final Throwable cause = unwrap(failure);
+		if (cause instanceof HTTPStatusException)
+		{
+			delay = Math.max(delay,
+					((HTTPStatusException) cause).getRetryAfterMillis());
+		}
+		return delay;
+	}
+
+	/**
+	 * Looks through the failure and it's causes for a reason to try again.
+	 * Disk errors, TLS failures and anything else that would only fail the
+	 * same way next time are not transient.
+	 *
+	 * @param failure Why a download failed
+	 * @return True if the server turned it away for load (429 or 5xx), or
+	 *         the network failed (timeouts, refused or reset connections, or
+	 *         the connection closing early)
+	 */
+	public static boolean isTransient(final Throwable failure)
+	{
+		for (Throwable t = failure; t != null; t = t.getCause())
+		{
+			if (t instanceof HTTPStatusException)
+			{
+				return ((HTTPStatusException) t).isThrottling();
+			}
+			if (t instanceof SSLException)
+			{
+				// a failed handshake or a bad certificate.
+				return false;
+			}
+			if (t instanceof SocketTimeoutException
+					|| t instanceof SocketException
+					|| t instanceof EOFException)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param failure A failure, maybe wrapped by a future or a stream
+	 * @return What actually went wrong
+	 */
+	public static Throwable unwrap(final Throwable failure)
+	{
+		Throwable t = failure;
+		while ((t instanceof CompletionException
+				|| t instanceof ExecutionException || t instanceof UncheckedIOException)
+				&& t.getCause() != null)
+		{
+			t = t.getCause();
+		}
+		return t;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Up to " + maxAttempts + " attempts, waiting " + baseMillis
+				+ "ms to " + maxMillis + "ms between them";
+	}
+}
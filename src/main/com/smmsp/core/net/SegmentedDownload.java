@@ -0,0 +1,248 @@
+/*
+ * SegmentedDownload.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads a single file as several byte ranges at once, each over it's own
+ * connection, writing every range straight to it's offset in the part file.
+ * Start it with a "Range: bytes=0-" request; if the server answers with a
+ * plain 200 the body is simply written out sequentially instead.
+ *
+ * @author Sean
+ *
+ */
+public class SegmentedDownload
+{
+
+	private static final Logger LOG = Logger.getLogger(SegmentedDownload.class);
+
+	/**
+	 * Files are never split into ranges smaller than this.
+	 */
+	private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	/**
+	 * The request for the file, copied for each extra range.
+	 */
+	private final HTTPConnection template;
+
+	/**
+	 * How many ranges to split the file into.
+	 */
+	private final int segments;
+
+	/**
+	 * Runs the extra ranges.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param template The request that was made for the file (with it's
+	 *            cookies)
+	 * @param segments How many ranges to split the file into
+	 * @param executor Runs the extra ranges, must not be the pool waiting on
+	 *            this download
+	 */
+	public SegmentedDownload(final HTTPConnection template, final int segments,
+			final ExecutorService executor)
+	{
+		this.template = template;
+		this.segments = segments;
+		this.executor = executor;
+	}
+
+	/**
+	 * Asks for the whole file as a range, so the first response can tell us
+	 * whether the server supports ranges and how big the file is.
+	 *
+	 * @param conn The request for the file
+	 */
+	public static void addProbeHeaders(final HTTPConnection conn)
+	{
+		conn.addHeader("Accept-Encoding", "identity");
+		conn.addHeader("Range", "bytes=0-");
+	}
+
+	/**
+	 * Downloads the file given the response to the probe request.
+	 *
+	 * @param response The response to the "Range: bytes=0-" request
+	 * @param part Where the file is written
+	 * @return The number of bytes downloaded
+	 * @throws IOException
+	 */
+	public long download(final HTTPResponse response, final PartFile part)
+			throws IOException
+	{
+		long total = -1;
+		if (response.getResponseCode() == 206)
+		{
+			total = parseTotal(response.getHeaders().getFirst("Content-Range"));
+		}
+		final int num = (int) Math.min(segments,
+				Math.max(1, total / MIN_SEGMENT_BYTES));
+		if (total <= 0 || num <= 1)
+		{
+			// no range support (or not worth splitting), so take it whole.
+			return part.write(response);
+		}
+
+		// segments land out of order, so there is no single offset to resume.
+		part.reset();
+		final long segSize = (total + num - 1) / num;
+		LOG.debug("Downloading " + template.getURL() + " as " + num
+				+ " ranges of " + segSize + " bytes");
+
+		try (FileChannel out = FileChannel.open(part.getPartPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final List<Future<Long>> rest = new ArrayList<>();
+			for (int i = 1; i < num; ++i)
+			{
+				final long start = i * segSize;
+				final long end = Math.min(total, start + segSize) - 1;
+				rest.add(executor.submit(() -> fetchRange(out, start, end)));
+			}
+
+			try
+			{
+				// the probe's own body is the first range.
+				copyRange(response, out, 0, segSize);
+				response.close();
+
+				for (Future<Long> future : rest)
+				{
+					future.get();
+				}
+			} catch (ExecutionException e)
+			{
+				rest.forEach(future -> future.cancel(true));
+				part.reset();
+				throw new IOException("Segmented download of "
+						+ template.getURL() + " failed", e.getCause());
+			} catch (IOException | RuntimeException e)
+			{
+				rest.forEach(future -> future.cancel(true));
+				part.reset();
+				throw e;
+			} catch (InterruptedException e)
+			{
+				rest.forEach(future -> future.cancel(true));
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted downloading "
+						+ template.getURL(), e);
+			}
+			out.force(false);
+		}
+		return total;
+	}
+
+	/**
+	 * Fetches one range over it's own connection.
+	 */
+	private long fetchRange(final FileChannel out, final long start,
+			final long end) throws IOException
+	{
+		final HTTPConnection conn = new HTTPConnection(template);
+		conn.addHeader("Range", "bytes=" + start + "-" + end);
+		try (HTTPResponse response = conn.getResponse())
+		{
+			if (response == null)
+			{
+				throw new IOException("No response for range " + start + "-"
+						+ end, conn.getFailure());
+			}
+			final String range = response.getHeaders().getFirst(
+					"Content-Range");
+			if (response.getResponseCode() != 206 || range == null
+					|| !range.trim().startsWith("bytes " + start + "-"))
+			{
+				throw new IOException("Server did not honour range " + start
+						+ "-" + end + " (" + response.getResponseCode() + " "
+						+ range + ")");
+			}
+			return copyRange(response, out, start, end - start + 1);
+		}
+	}
+
+	/**
+	 * Moves up to length bytes of the body into the file at position.
+	 */
+	private static long copyRange(final HTTPResponse response,
+			final FileChannel out, final long position, final long length)
+			throws IOException
+	{
+		long copied = 0;
+		while (copied < length)
+		{
+			final long num = response.transferTo(out, position + copied, length
+					- copied);
+			if (num == -1)
+			{
+				throw new EOFException("Range at " + position + " ended after "
+						+ copied + " of " + length + " bytes");
+			}
+			copied += num;
+		}
+		return copied;
+	}
+
+	/**
+	 * @param contentRange A "bytes start-end/total" header
+	 * @return The total, or -1 if it is missing or unknown
+	 */
+	private static long parseTotal(final String contentRange)
+	{
+		if (contentRange == null)
+		{
+			return -1;
+		}
+		try
+		{
+			return Long.parseLong(contentRange.substring(
+					contentRange.indexOf('/') + 1).trim());
+		} catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * TLSContext.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The one SSLContext every HTTPS connection is made from, so that they all
+ * share a client session cache and later connections to a host can resume
+ * an earlier session (by session ID or ticket) instead of doing a full
+ * handshake. Every socket and engine it makes checks the server's host name
+ * and sends it with SNI. Counts of full and resumed handshakes are kept to
+ * show how well that is working.
+ *
+ * @author Sean
+ *
+ */
+public final class TLSContext
+{
+
+	private static final Logger LOG = Logger.getLogger(TLSContext.class);
+
+	/**
+	 * Sessions kept for resumption, by default.
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+
+	/**
+	 * Seconds a cached session is kept, by default.
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	private static final String SESSION_TICKETS = "jdk.tls.client.enableSessionTicketExtension";
+
+	/**
+	 * IPv4 and IPv6 literals, which aren't sent with SNI.
+	 */
+	private static final Pattern IP_LITERAL = Pattern
+			.compile("^(\\d{1,3}(\\.\\d{1,3}){3}|\\[?[0-9a-fA-F:.]*:[0-9a-fA-F:.]*\\]?)$");
+
+	private static TLSContext defaultContext;
+
+	static
+	{
+		// stateless resumption, read when the TLS provider first loads.
+		if (System.getProperty(SESSION_TICKETS) == null)
+		{
+			System.setProperty(SESSION_TICKETS, "true");
+		}
+	}
+
+	private final SSLContext context;
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+	/**
+	 * Constructor, trusting the JVM's default trust store.
+	 *
+	 * @param sessionCacheSize Sessions to keep for resumption, 0 for no
+	 *            limit
+	 * @param sessionTimeout Seconds to keep a session, 0 for no limit
+	 * @throws IOException If TLS isn't available
+	 */
+	public TLSContext(final int sessionCacheSize, final int sessionTimeout)
+			throws IOException
+	{
+		try
+		{
+			context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+		} catch (GeneralSecurityException e)
+		{
+			throw new IOException("Unable to set up TLS", e);
+		}
+		final SSLSessionContext sessions = context.getClientSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+	}
+
+	/**
+	 * @return The context shared by every connection, made with the default
+	 *         cache settings if none has been set
+	 * @throws IOException If TLS isn't available
+	 */
+	public static synchronized TLSContext getDefault() throws IOException
+	{
+		if (defaultContext == null)
+		{
+			defaultContext = new TLSContext(DEFAULT_SESSION_CACHE_SIZE,
+					DEFAULT_SESSION_TIMEOUT);
+		}
+		return defaultContext;
+	}
+
+	/**
+	 * @param context The context to share between connections from now on
+	 */
+	public static synchronized void setDefault(final TLSContext context)
+	{
+		defaultContext = context;
+	}
+
+	/**
+	 * @return The underlying SSLContext
+	 */
+	public SSLContext getSSLContext()
+	{
+		return context;
+	}
+
+	/**
+	 * Layers TLS over a connected socket and completes the handshake.
+	 *
+	 * @param plain The connected socket, closed along with the TLS socket
+	 * @param host The host name, for SNI, resumption and certificate checks
+	 * @param port The port connected to
+	 * @return The TLS socket
+	 * @throws IOException If the handshake fails
+	 */
+	public SSLSocket createSocket(final Socket plain, final String host,
+			final int port) throws IOException
+	{
+		final SSLSocket sock = (SSLSocket) context.getSocketFactory()
+				.createSocket(plain, host, port, true);
+		sock.setSSLParameters(configure(sock.getSSLParameters(), host));
+		final long start = System.currentTimeMillis();
+		try
+		{
+			sock.startHandshake();
+		} catch (IOException e)
+		{
+			sock.close();
+			throw e;
+		}
+		recordHandshake(sock.getSession(), start);
+		return sock;
+	}
+
+	/**
+	 * @param host The host name, for SNI, resumption and certificate checks
+	 * @param port The port being connected to
+	 * @return A client mode engine, the caller must report it's handshake
+	 *         to {@link #recordHandshake(SSLSession, long)}
+	 */
+	public SSLEngine createEngine(final String host, final int port)
+	{
+		final SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		engine.setSSLParameters(configure(engine.getSSLParameters(), host));
+		return engine;
+	}
+
+	/**
+	 * Counts a completed handshake. A session created before the handshake
+	 * began was resumed, this holds for both session IDs and tickets.
+	 *
+	 * @param session The session the handshake produced
+	 * @param startMillis When the handshake began
+	 */
+	public void recordHandshake(final SSLSession session,
+			final long startMillis)
+	{
+		if (session.getCreationTime() < startMillis)
+		{
+			resumedHandshakes.incrementAndGet();
+		} else
+		{
+			fullHandshakes.incrementAndGet();
+		}
+		if (LOG.isDebugEnabled())
+		{
+			LOG.debug(session.getProtocol() + " handshake with "
+					+ session.getPeerHost()
+					+ (session.getCreationTime() < startMillis ? " resumed"
+							: " full"));
+		}
+	}
+
+	/**
+	 * @return The number of full handshakes done so far
+	 */
+	public long getFullHandshakes()
+	{
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * @return The number of abbreviated (resumed) handshakes done so far
+	 */
+	public long getResumedHandshakes()
+	{
+		return resumedHandshakes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TLS handshakes: " + fullHandshakes.get() + " full, "
+				+ resumedHandshakes.get() + " resumed";
+	}
+
+	/**
+	 * Turns on host name checking and SNI.
+	 */
+	private static SSLParameters configure(final SSLParameters params,
+			final String host)
+	{
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		if (!IP_LITERAL.matcher(host).matches())
+		{
+			params.setServerNames(Collections.singletonList(new SNIHostName(
+					host)));
+		}
+		return params;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Throttle.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the bandwidth of one connection, both against a limit shared by
+ * every connection and against one of it's own. Both limits can be changed
+ * while downloads are running.
+ *
+ * @author Sean
+ *
+ */
+public final class Throttle
+{
+
+	private static final RateLimiter GLOBAL = new RateLimiter(0);
+
+	private static volatile long connectionBytesPerSecond = 0;
+
+	/**
+	 * This connection's own bucket, kept at the per-connection rate.
+	 */
+	private final RateLimiter connection = new RateLimiter(0);
+
+	/**
+	 * @param bytesPerSecond The most all connections together may download
+	 *            at, 0 for unlimited
+	 */
+	public static void setGlobalBytesPerSecond(final long bytesPerSecond)
+	{
+		if (GLOBAL.getBytesPerSecond() != bytesPerSecond)
+		{
+			GLOBAL.setBytesPerSecond(bytesPerSecond);
+		}
+	}
+
+	/**
+	 * @return The most all connections together may download at, 0 for
+	 *         unlimited
+	 */
+	public static long getGlobalBytesPerSecond()
+	{
+		return GLOBAL.getBytesPerSecond();
+	}
+
+	/**
+	 * @param bytesPerSecond The most each connection may download at, 0 for
+	 *            unlimited
+	 */
+	public static void setConnectionBytesPerSecond(final long bytesPerSecond)
+	{
+		connectionBytesPerSecond = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * @return The most each connection may download at, 0 for unlimited
+	 */
+	public static long getConnectionBytesPerSecond()
+	{
+		return connectionBytesPerSecond;
+	}
+
+	/**
+	 * @param wanted The most the caller would like to move at once
+	 * @return How much to move before calling {@link #pay(long)}
+	 */
+	public long chunk(final long wanted)
+	{
+		return connection.chunk(GLOBAL.chunk(wanted));
+	}
+
+	/**
+	 * Charges moved bytes to both limits without waiting.
+	 *
+	 * @param bytes How many bytes were moved
+	 * @return How long to hold off before moving more, in nanos
+	 */
+	public long charge(final long bytes)
+	{
+		final long rate = connectionBytesPerSecond;
+		if (connection.getBytesPerSecond() != rate)
+		{
+			connection.setBytesPerSecond(rate);
+		}
+		return Math.max(GLOBAL.take(bytes), connection.take(bytes));
+	}
+
+	/**
+	 * Charges moved bytes to both limits, waiting out any debt.
+	 *
+	 * @param bytes How many bytes were moved
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	public void pay(final long bytes) throws InterruptedIOException
+	{
+		final long wait = charge(bytes);
+		if (wait <= 0)
+		{
+			return;
+		}
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			final InterruptedIOException ex = new InterruptedIOException(
+					"Interrupted while throttled");
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * AreaSelectionTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static com.seanmadden.usgs.TileSetTest.tiles;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AreaSelection}.
+ *
+ * @author Sean
+ *
+ */
+public class AreaSelectionTest
+{
+
+	private static final Settings[] AREA = { Settings.MIN_LAT,
+			Settings.MAX_LAT, Settings.MIN_LON, Settings.MAX_LON,
+			Settings.BOXES, Settings.TILES, Settings.GEOJSON, Settings.BUFFER,
+			Settings.EXCLUDE };
+
+	private final Map<Settings, String> saved = new EnumMap<>(Settings.class);
+
+	@Before
+	public void setUp()
+	{
+		for (Settings setting : AREA)
+		{
+			saved.put(setting, setting.getValue());
+			setting.setValue(null);
+		}
+		Settings.BUFFER.setValue("0");
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (Settings setting : AREA)
+		{
+			setting.setValue(saved.get(setting));
+		}
+	}
+
+	@Test
+	public void testParseBoxes()
+	{
+		assertEquals(TileSet.box(10, 11, -10, -8).union(
+				TileSet.box(-5, -5, 170, 171)), AreaSelection
+				.parseBoxes(" 10,-10,11,-8 ; -5, 171, -5, 170;"));
+		assertEquals(0, AreaSelection.parseBoxes("").size());
+		for (String bad : new String[] { "1,2,3", "1,2,3,x", "91,0,0,0",
+				"0,-181,0,0" })
+		{
+			try
+			{
+				AreaSelection.parseBoxes(bad);
+				fail("Parsed " + bad);
+			} catch (IllegalArgumentException e)
+			{
+				// expected.
+			}
+		}
+	}
+
+	@Test
+	public void testLatitudeLongitudeBox() throws IOException
+	{
+		Settings.MIN_LAT.setValue("10");
+		Settings.MAX_LAT.setValue("11");
+		Settings.MIN_LON.setValue("-10");
+		Settings.MAX_LON.setValue("-8");
+		assertEquals(TileSet.box(10, 11, -10, -8), AreaSelection
+				.fromSettings());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPartOfABox() throws IOException
+	{
+		Settings.MIN_LAT.setValue("10");
+		Settings.MAX_LON.setValue("-8");
+		AreaSelection.fromSettings();
+	}
+
+	@Test
+	public void testEverythingTogether() throws IOException
+	{
+		final Path geojson = Files.createTempFile("area", ".geojson");
+		try
+		{
+			Files.write(geojson, ("{\"type\": \"Point\", \"coordinates\": "
+					+ "[179.5, -20.5]}").getBytes(StandardCharsets.UTF_8));
+			Settings.BOXES.setValue("0,0,1,1");
+			Settings.TILES.setValue("N10W010, s05e003");
+			Settings.GEOJSON.setValue(geojson.toString());
+			Settings.BUFFER.setValue("1");
+			Settings.EXCLUDE.setValue("-1,-1,0,2;10,-11,10,-11");
+
+			final TileSet expected = TileSet.box(1, 2, -1, 2);
+			expected.union(TileSet.box(9, 11, -11, -9));
+			expected.union(TileSet.box(-6, -4, 2, 4));
+			// the buffer wraps around the antimeridian.
+			expected.union(TileSet.box(-22, -20, 178, 179));
+			expected.union(TileSet.box(-22, -20, -180, -180));
+			expected.difference(tiles(10, -11));
+			assertEquals(expected, AreaSelection.fromSettings());
+		} finally
+		{
+			Files.delete(geojson);
+		}
+	}
+
+	@Test
+	public void testMissingGeoJSON()
+	{
+		Settings.GEOJSON.setValue("/no/such/area.geojson");
+		try
+		{
+			AreaSelection.fromSettings();
+			fail("Read a missing file");
+		} catch (IOException e)
+		{
+			// expected.
+		}
+	}
+}
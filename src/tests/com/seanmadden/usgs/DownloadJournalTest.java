@@ -0,0 +1,335 @@
+/*
+ * DownloadJournalTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.seanmadden.usgs.DownloadJournal.State;
+
+/**
+ * Tests for {@link DownloadJournal}: replaying it, dropping torn and damaged
+ * records, compacting it, sharing it with other writers and checking
+ * finished files against it.
+ *
+ * @author Sean
+ *
+ */
+public class DownloadJournalTest
+{
+
+	/**
+	 * The size of each record, see DownloadJournal.
+	 */
+	private static final int RECORD_BYTES = 21;
+
+	private static final Tile FIRST = new Tile(10, -9);
+	private static final Tile SECOND = new Tile(10, -8);
+	private static final Tile THIRD = new Tile(-45, 170);
+
+	private Path dir;
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("journal");
+		path = dir.resolve("test.journal");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+		{
+			for (Path p : files)
+			{
+				Files.delete(p);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testReplay() throws IOException
+	{
+		final Path file = tileFile(FIRST, 1000);
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			journal.started(FIRST);
+			journal.done(FIRST, file);
+			journal.missing(SECOND);
+			journal.started(THIRD);
+		}
+		assertEquals(4 * RECORD_BYTES, Files.size(path));
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(State.DONE, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			// interrupted, to be downloaded again.
+			assertEquals(State.PENDING, journal.getState(THIRD));
+			assertEquals(State.PENDING, journal.getState(new Tile(0, 0)));
+			assertTrue(journal.toString().endsWith(
+					"1 tiles done, 1 not available, 1 interrupted"));
+		}
+	}
+
+	@Test
+	public void testTornRecordIsTruncated() throws IOException
+	{
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			journal.missing(FIRST);
+			journal.missing(SECOND);
+		}
+		// a crash part way through writing the third record.
+		try (FileChannel chan = FileChannel.open(path,
+				StandardOpenOption.APPEND))
+		{
+			chan.write(ByteBuffer.wrap(new byte[] { 0, 0, 1, 2, 3, 4, 5 }));
+		}
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(2 * RECORD_BYTES, Files.size(path));
+			assertEquals(State.MISSING, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			journal.missing(THIRD);
+		}
+		// records carry on from the end of the last good one.
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(3 * RECORD_BYTES, Files.size(path));
+			assertEquals(State.MISSING, journal.getState(THIRD));
+		}
+	}
+
+	@Test
+	public void testDamagedRecordIsRejected() throws IOException
+	{
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			journal.missing(FIRST);
+			journal.missing(SECOND);
+			journal.missing(THIRD);
+		}
+		// flip a bit in the size of the second record.
+		final byte[] bytes = Files.readAllBytes(path);
+		bytes[RECORD_BYTES + 8] ^= 0x10;
+		Files.write(path, bytes);
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			// everything from the damaged record on is dropped.
+			assertEquals(State.MISSING, journal.getState(FIRST));
+			assertEquals(State.PENDING, journal.getState(SECOND));
+			assertEquals(State.PENDING, journal.getState(THIRD));
+		}
+		assertEquals(RECORD_BYTES, Files.size(path));
+	}
+
+	@Test
+	public void testCompaction() throws IOException
+	{
+		final Path file = tileFile(FIRST, 100);
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			for (int i = 0; i < 3000; ++i)
+			{
+				journal.started(FIRST);
+				journal.failed(FIRST);
+			}
+			journal.done(FIRST, file);
+			journal.missing(SECOND);
+		}
+		assertEquals(6002 * RECORD_BYTES, Files.size(path));
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(2 * RECORD_BYTES, Files.size(path));
+			assertFalse(Files.exists(dir.resolve("test.journal.tmp")));
+			assertEquals(State.DONE, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			assertTrue(journal.isIntact(FIRST, file, true));
+			journal.missing(THIRD);
+		}
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(3 * RECORD_BYTES, Files.size(path));
+			assertEquals(State.MISSING, journal.getState(THIRD));
+		}
+	}
+
+	@Test
+	public void testAppendsAfterOtherWriters() throws IOException
+	{
+		final byte[] other = records(THIRD);
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			journal.missing(FIRST);
+			journal.sync();
+			// another process's record, then one it died part way through.
+			try (FileChannel chan = FileChannel.open(path,
+					StandardOpenOption.APPEND))
+			{
+				chan.write(ByteBuffer.wrap(other));
+				chan.write(ByteBuffer.wrap(new byte[] { 0, 0, 1, 2, 3 }));
+			}
+			journal.missing(SECOND);
+		}
+		assertEquals(3 * RECORD_BYTES, Files.size(path));
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(State.MISSING, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			assertEquals(State.MISSING, journal.getState(THIRD));
+		}
+	}
+
+	@Test
+	public void testCompactionKeepsOthersAppending() throws IOException
+	{
+		final Path other = dir.resolve("other.journal");
+		try (DownloadJournal journal = DownloadJournal.open(other))
+		{
+			for (int i = 0; i < 3000; ++i)
+			{
+				journal.started(FIRST);
+				journal.failed(FIRST);
+			}
+			journal.missing(FIRST);
+		}
+		final byte[] superseded = Files.readAllBytes(other);
+
+		try (DownloadJournal first = DownloadJournal.open(path))
+		{
+			first.missing(SECOND);
+			first.sync();
+			Files.write(path, superseded, StandardOpenOption.APPEND);
+			// a second process compacts the journal as it opens it.
+			try (DownloadJournal second = DownloadJournal.open(path))
+			{
+				assertEquals(2 * RECORD_BYTES, Files.size(path));
+				first.missing(THIRD);
+			}
+		}
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(3 * RECORD_BYTES, Files.size(path));
+			assertEquals(State.MISSING, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			assertEquals(State.MISSING, journal.getState(THIRD));
+		}
+	}
+
+	@Test
+	public void testInterruptedCompactionIsFinished() throws IOException
+	{
+		// compacted records written, then a crash just after the journal
+		// was emptied and another process appended to it.
+		Files.write(dir.resolve("test.journal.tmp"), records(FIRST));
+		Files.write(path, records(SECOND));
+
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			assertEquals(State.MISSING, journal.getState(FIRST));
+			assertEquals(State.MISSING, journal.getState(SECOND));
+			assertFalse(Files.exists(dir.resolve("test.journal.tmp")));
+			assertEquals(2 * RECORD_BYTES, Files.size(path));
+		}
+	}
+
+	@Test
+	public void testIntact() throws IOException
+	{
+		final Path file = tileFile(FIRST, 5000);
+		try (DownloadJournal journal = DownloadJournal.open(path))
+		{
+			journal.done(FIRST, file);
+			assertTrue(journal.isIntact(FIRST, file, false));
+			assertTrue(journal.isIntact(FIRST, file, true));
+			assertFalse(journal.isIntact(SECOND, file, false));
+
+			// same size, different contents.
+			final byte[] bytes = Files.readAllBytes(file);
+			bytes[1234] ^= 1;
+			Files.write(file, bytes);
+			assertTrue(journal.isIntact(FIRST, file, false));
+			assertFalse(journal.isIntact(FIRST, file, true));
+
+			Files.write(file, new byte[10]);
+			assertFalse(journal.isIntact(FIRST, file, false));
+
+			Files.delete(file);
+			assertFalse(journal.isIntact(FIRST, file, false));
+		}
+	}
+
+	/**
+	 * @return The journal records of tiles that aren't on the server
+	 */
+	private byte[] records(final Tile... tiles) throws IOException
+	{
+		final Path scratch = dir.resolve("scratch.journal");
+		try (DownloadJournal journal = DownloadJournal.open(scratch))
+		{
+			for (Tile tile : tiles)
+			{
+				journal.missing(tile);
+			}
+		}
+		final byte[] bytes = Files.readAllBytes(scratch);
+		Files.delete(scratch);
+		return bytes;
+	}
+
+	private Path tileFile(final Tile tile, final int size) throws IOException
+	{
+		final byte[] bytes = new byte[size];
+		for (int i = 0; i < size; ++i)
+		{
+			bytes[i] = (byte) (i * 31 + tile.getIndex());
+		}
+		return Files.write(dir.resolve(tile.getFileName()), bytes);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * GeoJSONTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static com.seanmadden.usgs.TileSetTest.tiles;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GeoJSON}.
+ *
+ * @author Sean
+ *
+ */
+public class GeoJSONTest
+{
+
+	@Test
+	public void testPolygonWithHole() throws IOException
+	{
+		final TileSet set = GeoJSON.parse("{\"type\": \"Polygon\", "
+				+ "\"coordinates\": [[[0, 0], [5, 0], [5, 5], [0, 5], [0, 0]],"
+				+ " [[1, 1], [1, 4], [4, 4], [4, 1], [1, 1]]]}");
+		assertEquals(TileSet.box(0, 4, 0, 4).difference(
+				TileSet.box(1, 3, 1, 3)), set);
+	}
+
+	@Test
+	public void testFeatureCollection() throws IOException
+	{
+		final TileSet set = GeoJSON.parse("{\"type\":\"FeatureCollection\","
+				+ "\"features\":[{\"type\":\"Feature\",\"properties\":"
+				+ "{\"name\":\"a \\\"quoted\\\" \\u00e9 name\",\"n\":[1,true,"
+				+ "null]},\"geometry\":{\"type\":\"Point\","
+				+ "\"coordinates\":[-9.5,10.5,120.0]}},{\"type\":\"Feature\","
+				+ "\"properties\":null,\"geometry\":null},{\"type\":"
+				+ "\"Feature\",\"geometry\":{\"type\":\"GeometryCollection\","
+				+ "\"geometries\":[{\"type\":\"LineString\",\"coordinates\":"
+				+ "[[20.5,-0.5],[22.5,-0.5]]},{\"type\":\"MultiPoint\","
+				+ "\"coordinates\":[[1e1,-2.5E1]]}]}}]}");
+		assertEquals(tiles(10, -10, -1, 20, -1, 21, -1, 22, -25, 10), set);
+	}
+
+	@Test
+	public void testMultiPolygonAcrossAntimeridian() throws IOException
+	{
+		// RFC 7946 splits geometries that cross it into two.
+		final TileSet set = GeoJSON.parse("{\"type\": \"MultiPolygon\", "
+				+ "\"coordinates\": [[[[178.5, -1.5], [180, -1.5], [180, 0.5],"
+				+ " [178.5, 0.5], [178.5, -1.5]]], [[[-180, -1.5], "
+				+ "[-179.5, -1.5], [-179.5, 0.5], [-180, 0.5], "
+				+ "[-180, -1.5]]]]}");
+		assertEquals(TileSet.box(-2, 0, 178, 179).union(
+				TileSet.box(-2, 0, -180, -180)), set);
+	}
+
+	@Test
+	public void testMultiLineString() throws IOException
+	{
+		final TileSet set = GeoJSON.parse("{\"type\":\"MultiLineString\","
+				+ "\"coordinates\":[[[0.5,0.5],[0.5,2.5]],[[179.5,5.5],"
+				+ "[180,5.5]]]}");
+		assertEquals(tiles(0, 0, 1, 0, 2, 0, 5, 179), set);
+	}
+
+	@Test
+	public void testBadGeoJSON()
+	{
+		final String[] bad = { "", "[]", "{\"type\": \"Polygon\"}",
+				"{\"type\": \"Circle\", \"coordinates\": [0, 0]}",
+				"{\"type\": \"Point\", \"coordinates\": [0]}",
+				"{\"type\": \"Point\", \"coordinates\": [\"0\", 0]}",
+				"{\"type\": \"Point\", \"coordinates\": [181, 0]}",
+				"{\"type\": \"Point\", \"coordinates\": [0, 0]",
+				"{\"type\": \"Point\", \"coordinates\": [0, 0]} x" };
+		for (String json : bad)
+		{
+			try
+			{
+				GeoJSON.parse(json);
+				fail("Parsed " + json);
+			} catch (IOException e)
+			{
+				assertTrue(e.getMessage() != null);
+			}
+		}
+	}
+}
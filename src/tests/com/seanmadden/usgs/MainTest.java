@@ -0,0 +1,202 @@
+/*
+ * MainTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Main#downloadSingleFile(Tile, String)} against a local
+ * server that turns away requests without a session.
+ *
+ * @author Sean
+ *
+ */
+public class MainTest
+{
+
+	/**
+	 * Where the tile is downloaded to, in the working directory.
+	 */
+	private static final String FILE = "MainTestLogin.dt2";
+
+	private static final byte[] TILE = "not really a tile"
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	private ServerSocket server;
+
+	private Thread serve;
+
+	/**
+	 * The request lines the server was sent, in order.
+	 */
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<>());
+
+	private Path journal;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new ServerSocket(0);
+		serve = new Thread(this::serve);
+		serve.setDaemon(true);
+		serve.start();
+
+		journal = Files.createTempFile("journal", ".bin");
+		Main.JOURNAL = DownloadJournal.open(journal);
+		Main.SESSION = new SessionManager(url("/login"), "user", "pass",
+				null, 0);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		server.close();
+		Main.JOURNAL.close();
+		Main.JOURNAL = null;
+		Main.SESSION = null;
+		Files.deleteIfExists(journal);
+		for (String suffix : new String[] { "", ".part", ".part.properties" })
+		{
+			Files.deleteIfExists(Paths.get(FILE + suffix));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testLoginRedirectLogsIn() throws IOException
+	{
+		final Tile tile = new Tile(0, 0);
+		assertEquals(TILE.length,
+				Main.downloadSingleFile(tile, url("/download/" + FILE)));
+		assertArrayEquals(TILE, Files.readAllBytes(Paths.get(FILE)));
+		assertEquals(DownloadJournal.State.DONE, Main.JOURNAL.getState(tile));
+		assertEquals(
+				"GET /download/" + FILE + ",GET /login,POST /login,GET /download/"
+						+ FILE, String.join(",", requests));
+	}
+
+	private String url(final String path)
+	{
+		return "http://127.0.0.1:" + server.getLocalPort() + path;
+	}
+
+	/**
+	 * Answers one request per connection until the server is closed. Tiles
+	 * are only sent with the cookie the login POST sets, anything else is
+	 * redirected to /login.
+	 */
+	private void serve()
+	{
+		while (!server.isClosed())
+		{
+			try (Socket s = server.accept())
+			{
+				final InputStream in = s.getInputStream();
+				final String head = readHead(in);
+				final String request = head.substring(0,
+						head.indexOf(" HTTP/"));
+				requests.add(request);
+				in.skip(contentLength(head));
+
+				final String response;
+				byte[] body = new byte[0];
+				if (request.startsWith("POST /login"))
+				{
+					response = "HTTP/1.1 200 OK\r\nSet-Cookie: auth=ok\r\n";
+				} else if (request.startsWith("GET /login"))
+				{
+					response = "HTTP/1.1 200 OK\r\nSet-Cookie: PHPSESSID=1\r\n";
+				} else if (head.contains("auth=ok"))
+				{
+					response = "HTTP/1.1 200 OK\r\n";
+					body = TILE;
+				} else
+				{
+					response = "HTTP/1.1 302 Found\r\nLocation: /login\r\n";
+				}
+
+				final OutputStream out = s.getOutputStream();
+				out.write((response + "Content-Length: " + body.length
+						+ "\r\nConnection: close\r\n\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+				out.write(body);
+				out.flush();
+			} catch (IOException e)
+			{
+				// closed by tearDown, or the client gave up.
+			}
+		}
+	}
+
+	/**
+	 * @param in The request
+	 * @return It's request line and headers
+	 */
+	private static String readHead(final InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int tail = 0;
+		int chr;
+		while (tail != 0x0d0a0d0a && (chr = in.read()) != -1)
+		{
+			tail = tail << 8 | chr;
+			head.write(chr);
+		}
+		return new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static long contentLength(final String head)
+	{
+		for (String line : head.split("\r\n"))
+		{
+			if (line.toLowerCase().startsWith("content-length:"))
+			{
+				return Long.parseLong(line.substring(15).trim());
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * SettingsTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Settings#reloadFromSettingsFile(Settings...)}: that
+ * edits to the file are picked up, without undoing a value given on the
+ * command line until the file's is edited.
+ *
+ * @author Sean
+ *
+ */
+public class SettingsTest
+{
+
+	private Path file;
+
+	private String configFile;
+
+	private String maxBandwidth;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		configFile = Settings.CONFIG_FILE.getValue();
+		maxBandwidth = Settings.MAX_BANDWIDTH.getValue();
+		file = Files.createTempFile("settings", ".properties");
+		Settings.CONFIG_FILE.setValue(file.toString());
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		Settings.CONFIG_FILE.setValue(configFile);
+		Settings.MAX_BANDWIDTH.setValue(maxBandwidth);
+		Files.delete(file);
+	}
+
+	@Test
+	public void testReloadKeepsCommandLineValue() throws IOException
+	{
+		writeMaxBandwidth("100");
+		assertTrue(Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH));
+		assertEquals("100", Settings.MAX_BANDWIDTH.getValue());
+
+		// given with -DmaxBandwidth, over the file's.
+		Settings.MAX_BANDWIDTH.setValue("500");
+		assertFalse(Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH));
+		assertEquals("500", Settings.MAX_BANDWIDTH.getValue());
+
+		writeMaxBandwidth("200");
+		assertTrue(Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH));
+		assertEquals("200", Settings.MAX_BANDWIDTH.getValue());
+		assertFalse(Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH));
+	}
+
+	@Test
+	public void testReloadIgnoresBadValue() throws IOException
+	{
+		Settings.MAX_BANDWIDTH.setValue("300");
+		writeMaxBandwidth("-1");
+		assertFalse(Settings.reloadFromSettingsFile(Settings.MAX_BANDWIDTH));
+		assertEquals("300", Settings.MAX_BANDWIDTH.getValue());
+	}
+
+	private void writeMaxBandwidth(final String value) throws IOException
+	{
+		Files.write(file, Collections.singletonList(Settings.MAX_BANDWIDTH
+				.getName() + "=" + value), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * TileOrderTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Property tests for {@link TileOrder}: the curves visit every cell once,
+ * and each order is a permutation of the area that puts the tiles it
+ * favours first.
+ *
+ * @author Sean
+ *
+ */
+public class TileOrderTest
+{
+
+	private static final int SIDE = 512;
+
+	private static List<Tile> list(final Iterable<Tile> tiles)
+	{
+		final List<Tile> list = new ArrayList<>();
+		for (Tile tile : tiles)
+		{
+			list.add(tile);
+		}
+		return list;
+	}
+
+	@Test
+	public void testHilbertIsABijection()
+	{
+		final int[] cells = new int[SIDE * SIDE];
+		Arrays.fill(cells, -1);
+		for (int x = 0; x < SIDE; ++x)
+		{
+			for (int y = 0; y < SIDE; ++y)
+			{
+				final long d = TileOrder.hilbert(x, y);
+				assertTrue(d >= 0 && d < cells.length);
+				assertEquals("(" + x + ", " + y + ") and another at " + d,
+						-1, cells[(int) d]);
+				cells[(int) d] = x * SIDE + y;
+			}
+		}
+	}
+
+	@Test
+	public void testHilbertStepsAreAdjacent()
+	{
+		final int[] cells = new int[SIDE * SIDE];
+		for (int x = 0; x < SIDE; ++x)
+		{
+			for (int y = 0; y < SIDE; ++y)
+			{
+				cells[(int) TileOrder.hilbert(x, y)] = x * SIDE + y;
+			}
+		}
+		assertEquals(0, cells[0]);
+		for (int d = 1; d < cells.length; ++d)
+		{
+			final int dx = cells[d] / SIDE - cells[d - 1] / SIDE;
+			final int dy = cells[d] % SIDE - cells[d - 1] % SIDE;
+			assertEquals("step " + d, 1, Math.abs(dx) + Math.abs(dy));
+		}
+	}
+
+	@Test
+	public void testSpread()
+	{
+		for (int value = 0; value < SIDE; ++value)
+		{
+			long expected = 0;
+			for (int bit = 0; bit < 9; ++bit)
+			{
+				expected |= (long) (value >>> bit & 1) << 2 * bit;
+			}
+			assertEquals(expected, TileOrder.spread(value));
+		}
+		assertEquals(0x15555L, TileOrder.spread(SIDE - 1));
+	}
+
+	@Test
+	public void testMortonIsABijection()
+	{
+		final boolean[] seen = new boolean[SIDE * SIDE];
+		for (int lat = -90; lat < 90; ++lat)
+		{
+			for (int lon = -180; lon < 180; ++lon)
+			{
+				final long key = TileOrder.MORTON.key(lat, lon);
+				assertFalse(seen[(int) key]);
+				seen[(int) key] = true;
+			}
+		}
+	}
+
+	@Test
+	public void testOrdersArePermutations()
+	{
+		final TileSet area = TileSet.box(-30, 40, 100, 179);
+		area.union(TileSet.box(-90, -85, -180, 179));
+		area.add(89, -180);
+		final TileOrder[] orders = { TileOrder.ROW, TileOrder.MORTON,
+				TileOrder.HILBERT, TileOrder.nearest(51.5, -0.1),
+				TileOrder.priority(Arrays.asList(TileSet.box(0, 5, 120, 125))) };
+		for (TileOrder order : orders)
+		{
+			final TileSet seen = new TileSet();
+			int count = 0;
+			for (Tile tile : order.order(area))
+			{
+				assertTrue(order + " " + tile, area.contains(tile));
+				assertFalse(order + " " + tile, seen.contains(tile));
+				seen.add(tile);
+				++count;
+			}
+			assertEquals(order.toString(), area.size(), count);
+		}
+	}
+
+	@Test
+	public void testRowOrder()
+	{
+		assertEquals(list(TileSet.box(-2, 2, -2, 2)), list(TileOrder.ROW
+				.order(TileSet.box(-2, 2, -2, 2))));
+	}
+
+	@Test
+	public void testNearestIsByDistance()
+	{
+		final double lat = 47.3;
+		final double lon = -122.2;
+		final List<Tile> order = list(TileOrder.nearest(lat, lon).order(
+				TileSet.box(30, 60, -140, -100)));
+		assertEquals(new Tile(47, -123), order.get(0));
+		double last = 0;
+		for (Tile tile : order)
+		{
+			final double distance = distance(lat, lon, tile.getLat() + 0.5,
+					tile.getLon() + 0.5);
+			// keys are whole microradians.
+			assertTrue(tile.toString(), distance >= last - 1e-6);
+			last = distance;
+		}
+	}
+
+	@Test
+	public void testNearestAcrossAntimeridian()
+	{
+		final TileSet area = TileSet.box(0, 0, 170, 179);
+		area.union(TileSet.box(0, 0, -180, -170));
+		final List<Tile> order = list(TileOrder.nearest(0.5, 179.9).order(
+				area));
+		assertEquals(new Tile(0, 179), order.get(0));
+		assertEquals(new Tile(0, -180), order.get(1));
+		assertTrue(order.indexOf(new Tile(0, -179)) < order.indexOf(new Tile(
+				0, 177)));
+	}
+
+	@Test
+	public void testPriorityRanksComeFirst()
+	{
+		final TileSet first = TileSet.box(10, 12, 10, 12);
+		final TileSet second = TileSet.box(11, 20, 11, 20);
+		final TileSet area = TileSet.box(0, 30, 0, 30);
+		final List<Tile> order = list(TileOrder.priority(
+				Arrays.asList(first, second)).order(area));
+		assertEquals(area.size(), order.size());
+
+		// the ranks, then the rest, without overlaps counted twice.
+		final TileSet rest = TileSet.box(0, 30, 0, 30).difference(second)
+				.difference(first);
+		final TileSet secondOnly = TileSet.box(11, 20, 11, 20).difference(
+				first);
+		int i = 0;
+		for (TileSet rank : Arrays.asList(first, secondOnly, rest))
+		{
+			long last = -1;
+			for (int n = rank.size(); n > 0; --n, ++i)
+			{
+				final Tile tile = order.get(i);
+				assertTrue(i + " " + tile, rank.contains(tile));
+				// along a Hilbert curve within each.
+				final long key = TileOrder.HILBERT.key(tile.getLat(), tile
+						.getLon());
+				assertTrue(key > last);
+				last = key;
+			}
+		}
+	}
+
+	@Test
+	public void testNoPriorities()
+	{
+		final TileSet area = TileSet.box(-5, 5, -5, 5);
+		assertEquals(list(TileOrder.HILBERT.order(area)), list(TileOrder
+				.priority(new ArrayList<TileSet>()).order(area)));
+	}
+
+	/**
+	 * @return The great circle distance in radians, by the haversine formula
+	 */
+	private static double distance(final double lat1, final double lon1,
+			final double lat2, final double lon2)
+	{
+		final double dLat = Math.toRadians(lat2 - lat1);
+		final double dLon = Math.toRadians(lon2 - lon1);
+		final double a = Math.pow(Math.sin(dLat / 2), 2)
+				+ Math.cos(Math.toRadians(lat1))
+				* Math.cos(Math.toRadians(lat2))
+				* Math.pow(Math.sin(dLon / 2), 2);
+		return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+}
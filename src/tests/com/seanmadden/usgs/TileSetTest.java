@@ -0,0 +1,243 @@
+/*
+ * TileSetTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TileSet}: boxes, rasterizing polygons (with holes),
+ * lines and points, wrapping around the antimeridian and buffering.
+ *
+ * @author Sean
+ *
+ */
+public class TileSetTest
+{
+
+	/**
+	 * @param tiles lat, lon pairs
+	 * @return A set of exactly those tiles
+	 */
+	static TileSet tiles(final int... tiles)
+	{
+		final TileSet set = new TileSet();
+		for (int i = 0; i < tiles.length; i += 2)
+		{
+			set.add(tiles[i], tiles[i + 1]);
+		}
+		return set;
+	}
+
+	/**
+	 * @param corners lon, lat pairs
+	 * @return A ring of [longitude, latitude] positions
+	 */
+	static double[][] ring(final double... corners)
+	{
+		final double[][] ring = new double[corners.length / 2][];
+		for (int i = 0; i < ring.length; ++i)
+		{
+			ring[i] = new double[] { corners[i * 2], corners[i * 2 + 1] };
+		}
+		return ring;
+	}
+
+	private static TileSet polygon(final double[]... rings)
+	{
+		final List<double[][]> list = new ArrayList<>();
+		for (double[] corners : rings)
+		{
+			list.add(ring(corners));
+		}
+		final TileSet set = new TileSet();
+		set.addPolygon(list);
+		return set;
+	}
+
+	@Test
+	public void testBox()
+	{
+		final TileSet box = TileSet.box(10, 11, -10, -8);
+		assertEquals(6, box.size());
+		assertTrue(box.contains(new Tile(10, -10)));
+		assertTrue(box.contains(new Tile(11, -8)));
+		assertFalse(box.contains(new Tile(12, -8)));
+		assertFalse(box.contains(new Tile(11, -7)));
+		// bounds in either order.
+		assertEquals(box, TileSet.box(11, 10, -8, -10));
+	}
+
+	@Test
+	public void testIterationOrder()
+	{
+		final List<Tile> order = new ArrayList<>();
+		for (Tile tile : tiles(5, 5, -5, 5, 5, -5, -5, -5))
+		{
+			order.add(tile);
+		}
+		assertEquals(Arrays.asList(new Tile(-5, -5), new Tile(-5, 5),
+				new Tile(5, -5), new Tile(5, 5)), order);
+	}
+
+	@Test
+	public void testUnionAndDifference()
+	{
+		final TileSet set = TileSet.box(0, 2, 0, 2);
+		set.union(TileSet.box(2, 4, 2, 4));
+		assertEquals(17, set.size());
+		set.difference(TileSet.box(1, 3, 1, 3));
+		assertEquals(10, set.size());
+		assertFalse(set.contains(new Tile(2, 2)));
+		assertTrue(set.contains(new Tile(4, 4)));
+	}
+
+	@Test
+	public void testAntimeridianWraps()
+	{
+		// longitude 180 is the tile at -180.
+		assertEquals(tiles(0, 179, 0, -180), TileSet.box(0, 0, 179, 180));
+		final TileSet set = new TileSet();
+		set.add(0, 181);
+		set.add(0, -181);
+		assertEquals(tiles(0, -179, 0, 179), set);
+		// rows off the grid are dropped.
+		set.add(90, 0);
+		set.add(-91, 0);
+		assertEquals(2, set.size());
+	}
+
+	@Test
+	public void testPolygonOnGridLines()
+	{
+		// only shares edges with the tiles around it.
+		assertEquals(tiles(0, 0, 0, 1, 1, 0, 1, 1), polygon(new double[] { 0,
+				0, 2, 0, 2, 2, 0, 2 }));
+	}
+
+	@Test
+	public void testPolygonOffGridLines()
+	{
+		assertEquals(TileSet.box(0, 2, 0, 2), polygon(new double[] { 0.5,
+				0.5, 2.5, 0.5, 2.5, 2.5, 0.5, 2.5 }));
+		// smaller than a tile.
+		assertEquals(tiles(-1, -1), polygon(new double[] { -0.8, -0.8, -0.2,
+				-0.8, -0.5, -0.2 }));
+	}
+
+	@Test
+	public void testTriangle()
+	{
+		// the tiles whose interiors are under x + y = 4.
+		final TileSet set = polygon(new double[] { 0, 0, 4, 0, 0, 4 });
+		assertEquals(10, set.size());
+		for (Tile tile : set)
+		{
+			assertTrue(tile.toString(), tile.getLat() + tile.getLon() <= 3);
+		}
+	}
+
+	@Test
+	public void testPolygonHoles()
+	{
+		// a hole on the grid lines takes out the tiles within it.
+		final TileSet ring = polygon(new double[] { 0, 0, 5, 0, 5, 5, 0, 5 },
+				new double[] { 1, 1, 4, 1, 4, 4, 1, 4 });
+		assertEquals(TileSet.box(0, 4, 0, 4).difference(
+				TileSet.box(1, 3, 1, 3)), ring);
+
+		// one off them only takes out the tiles it wholly covers.
+		final TileSet holed = polygon(new double[] { 0, 0, 5, 0, 5, 5, 0, 5 },
+				new double[] { 1.5, 1.5, 3.5, 1.5, 3.5, 3.5, 1.5, 3.5 });
+		assertEquals(TileSet.box(0, 4, 0, 4).difference(tiles(2, 2)), holed);
+	}
+
+	@Test
+	public void testPolygonToAntimeridian()
+	{
+		// either side of the antimeridian, as GeoJSON splits them.
+		final TileSet set = polygon(new double[] { 178, 0, 180, 0, 180, 1,
+				178, 1 });
+		set.union(polygon(new double[] { -180, 0, -178.5, 0, -178.5, 1, -180,
+				1 }));
+		assertEquals(tiles(0, 178, 0, 179, 0, -180, 0, -179), set);
+	}
+
+	@Test
+	public void testLinesAndPoints()
+	{
+		final TileSet set = new TileSet();
+		set.addLine(ring(0.5, 0.5, 2.5, 0.5));
+		assertEquals(tiles(0, 0, 0, 1, 0, 2), set);
+
+		// along a grid line it takes the tiles to the north.
+		final TileSet edge = new TileSet();
+		edge.addLine(ring(0, 3, 2, 3));
+		assertEquals(tiles(3, 0, 3, 1), edge);
+
+		// through a corner it doesn't take the tiles it only touches.
+		final TileSet diagonal = new TileSet();
+		diagonal.addLine(ring(0.5, 0.5, 2.5, 2.5));
+		assertEquals(tiles(0, 0, 1, 1, 2, 2), diagonal);
+
+		final TileSet point = new TileSet();
+		point.addPoint(new double[] { -0.5, 10.25 });
+		point.addLine(ring(-8.5, -8.5));
+		assertEquals(tiles(10, -1, -9, -9), point);
+	}
+
+	@Test
+	public void testBuffer()
+	{
+		assertEquals(TileSet.box(9, 11, 9, 11), tiles(10, 10).buffer(1));
+		assertEquals(TileSet.box(8, 12, 8, 12), tiles(10, 10).buffer(2));
+		assertEquals(tiles(10, 10), tiles(10, 10).buffer(0));
+		assertTrue(new TileSet().buffer(3).isEmpty());
+	}
+
+	@Test
+	public void testBufferWraps()
+	{
+		// across the antimeridian.
+		final TileSet set = tiles(0, 179).buffer(1);
+		assertEquals(TileSet.box(-1, 1, 178, 179).union(
+				TileSet.box(-1, 1, -180, -180)), set);
+
+		// stops at the poles.
+		assertEquals(TileSet.box(88, 89, 0, 2), tiles(89, 1).buffer(1));
+
+		// further than the globe is wide.
+		assertEquals(TileSet.box(-90, 89, -180, 179), tiles(0, 0).buffer(180));
+	}
+}
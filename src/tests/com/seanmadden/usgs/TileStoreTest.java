@@ -0,0 +1,206 @@
+/*
+ * TileStoreTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.seanmadden.usgs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TileStore}: storing, restoring, sharing objects between
+ * tiles (and processes) with the same contents, and eviction.
+ *
+ * @author Sean
+ *
+ */
+public class TileStoreTest
+{
+
+	private static final Tile FIRST = new Tile(10, -9);
+	private static final Tile SECOND = new Tile(10, -8);
+	private static final Tile THIRD = new Tile(11, -8);
+
+	private Path dir;
+	private Path root;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("tilestore");
+		root = dir.resolve("store");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		try (Stream<Path> files = Files.walk(dir))
+		{
+			files.sorted((a, b) -> b.compareTo(a)).forEach(p ->
+			{
+				try
+				{
+					Files.delete(p);
+				} catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testPutAndRestore() throws IOException
+	{
+		final Path file = tileFile("a", 1000, 1);
+		try (TileStore store = TileStore.open(root, 1 << 20, 0))
+		{
+			store.put(FIRST, file);
+			assertTrue(store.contains(FIRST));
+			final Path target = dir.resolve("restored");
+			assertTrue(store.restore(FIRST, target));
+			assertArrayEquals(Files.readAllBytes(file),
+					Files.readAllBytes(target));
+			assertFalse(store.restore(SECOND, target));
+		}
+		// and in a later run.
+		try (TileStore store = TileStore.open(root, 1 << 20, 0))
+		{
+			assertTrue(store.contains(FIRST));
+			assertEquals(1, objects());
+		}
+	}
+
+	@Test
+	public void testEvictionDeletesObjects() throws IOException
+	{
+		try (TileStore store = TileStore.open(root, 2500, 0))
+		{
+			store.put(FIRST, tileFile("a", 1000, 1));
+			store.put(SECOND, tileFile("b", 1000, 2));
+			store.put(THIRD, tileFile("c", 1000, 3));
+			assertFalse(store.contains(FIRST));
+			assertTrue(store.contains(SECOND));
+			assertTrue(store.contains(THIRD));
+			assertEquals(2, objects());
+		}
+	}
+
+	@Test
+	public void testSameContentsShareAnObject() throws IOException
+	{
+		try (TileStore store = TileStore.open(root, 2500, 0))
+		{
+			store.put(FIRST, tileFile("a", 1000, 1));
+			store.put(SECOND, tileFile("b", 1000, 1));
+			assertEquals(1, objects());
+			// the first changes, it's old object is still the second's.
+			store.put(FIRST, tileFile("c", 1000, 3));
+			assertEquals(2, objects());
+			assertTrue(store.restore(SECOND, dir.resolve("restored")));
+			// and goes once neither has it.
+			store.put(SECOND, tileFile("d", 1000, 3));
+			assertEquals(1, objects());
+		}
+	}
+
+	@Test
+	public void testObjectStoredByAnotherProcessIsKept() throws IOException
+	{
+		try (TileStore store = TileStore.open(root, 2500, 0))
+		{
+			store.put(FIRST, tileFile("a", 1000, 1));
+			final String hash;
+			try (Stream<Path> objects = Files.walk(root.resolve("objects")))
+			{
+				hash = objects.filter(Files::isRegularFile).findFirst().get()
+						.getFileName().toString();
+			}
+			// another process stores the same contents as a tile of it's
+			// own, finding the object already there.
+			Files.write(root.resolve("index"), ("P " + SECOND.getIndex() + " "
+					+ hash + " 1000\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.APPEND);
+
+			// replacing this process's tile mustn't delete it from under
+			// the other's.
+			store.put(FIRST, tileFile("c", 1000, 3));
+			assertTrue(Files.exists(root.resolve("objects")
+					.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4))
+					.resolve(hash)));
+			assertTrue(store.restore(SECOND, dir.resolve("restored")));
+		}
+	}
+
+	@Test
+	public void testDamagedObjectIsDropped() throws IOException
+	{
+		try (TileStore store = TileStore.open(root, 1 << 20, 0))
+		{
+			store.put(FIRST, tileFile("a", 1000, 1));
+			try (Stream<Path> objects = Files.walk(root.resolve("objects")))
+			{
+				final Path object = objects.filter(Files::isRegularFile)
+						.findFirst().get();
+				final byte[] bytes = Files.readAllBytes(object);
+				bytes[10] ^= 1;
+				Files.write(object, bytes);
+			}
+			assertFalse(store.restore(FIRST, dir.resolve("restored")));
+			assertFalse(store.contains(FIRST));
+			assertEquals(0, objects());
+		}
+	}
+
+	private long objects() throws IOException
+	{
+		try (Stream<Path> objects = Files.walk(root.resolve("objects")))
+		{
+			return objects.filter(Files::isRegularFile).count();
+		}
+	}
+
+	private Path tileFile(final String name, final int size, final int seed)
+			throws IOException
+	{
+		final byte[] bytes = new byte[size];
+		Arrays.fill(bytes, (byte) seed);
+		return Files.write(dir.resolve(name), bytes);
+	}
+}
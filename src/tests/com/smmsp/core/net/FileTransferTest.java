@@ -0,0 +1,186 @@
+/*
+ * FileTransferTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FileTransfer}, on platform threads and (on Java 21 and
+ * later) on virtual threads, which copy through pooled buffers.
+ *
+ * @author Sean
+ *
+ */
+public class FileTransferTest
+{
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("filetransfer");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+		{
+			for (Path p : files)
+			{
+				Files.delete(p);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testCopy() throws IOException
+	{
+		final byte[] data = randomBytes(200 * 1024, 1);
+		final Path file = dir.resolve("copy");
+		try (FileChannel out = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			final ByteArrayInputStream in = new ByteArrayInputStream(data);
+			assertEquals(1000, FileTransfer.copy(in, out, 0, 1000));
+			assertEquals(data.length - 1000,
+					FileTransfer.copyAll(in, out, 1000));
+			assertEquals(-1, FileTransfer.copy(in, out, data.length, 10));
+		}
+		assertArrayEquals(data, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void testConcurrentCopies() throws Exception
+	{
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			copyConcurrently(pool);
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception
+	{
+		final ExecutorService pool = newVirtualThreadExecutor();
+		assumeNotNull(pool);
+		try
+		{
+			copyConcurrently(pool);
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Copies many different files at once, so that any buffer shared
+	 * between two copies would corrupt one of them.
+	 */
+	private void copyConcurrently(final ExecutorService pool) throws Exception
+	{
+		final int files = 32;
+		final List<Future<byte[]>> results = new ArrayList<>(files);
+		for (int i = 0; i < files; ++i)
+		{
+			final int seed = i;
+			results.add(pool.submit(() ->
+			{
+				final byte[] data = randomBytes(300 * 1024 + seed, seed);
+				final Path file = dir.resolve("file" + seed);
+				try (FileChannel out = FileChannel.open(file,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+				{
+					FileTransfer.copyAll(new ByteArrayInputStream(data), out,
+							0);
+				}
+				assertArrayEquals(data, Files.readAllBytes(file));
+				return data;
+			}));
+		}
+		for (Future<byte[]> result : results)
+		{
+			result.get();
+		}
+	}
+
+	private static byte[] randomBytes(final int length, final long seed)
+	{
+		final byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * @return A thread per task executor of virtual threads, or null before
+	 *         Java 21
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			final Object virtual = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			final ThreadFactory factory = (ThreadFactory) builder.getMethod(
+					"factory").invoke(virtual);
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+					null, factory);
+		} catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+}
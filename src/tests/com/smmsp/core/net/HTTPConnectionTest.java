@@ -0,0 +1,64 @@
+/*
+ * HTTPConnectionTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests for the requests {@link HTTPConnection} builds.
+ *
+ * @author Sean
+ *
+ */
+public class HTTPConnectionTest
+{
+
+	@Test
+	public void testHostHeaderPort() throws MalformedURLException
+	{
+		assertHost("example.com", "http://example.com/a.dt2");
+		assertHost("example.com", "http://example.com:80/a.dt2");
+		assertHost("example.com", "https://example.com:443/a.dt2");
+		assertHost("example.com:8080", "http://example.com:8080/a.dt2");
+		assertHost("example.com:80", "https://example.com:80/a.dt2");
+		assertHost("example.com:443", "http://example.com:443/a.dt2");
+	}
+
+	private static void assertHost(final String host, final String url)
+			throws MalformedURLException
+	{
+		final String request = new String(
+				new HTTPConnection(url).buildRequest(),
+				StandardCharsets.ISO_8859_1);
+		assertTrue(request, request.contains("\r\nHost: " + host + "\r\n"));
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * HTTPHeaderParserTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link HTTPHeaderParser}, and a comparison of it against the
+ * readLine/split/HashMap parsing it replaced.
+ *
+ * @author Sean
+ *
+ */
+public class HTTPHeaderParserTest
+{
+
+	/**
+	 * A login redirect much like the ones EarthExplorer sends.
+	 */
+	private static final String REDIRECT = "HTTP/1.1 302 Found\r\n"
+			+ "Date: Fri, 16 Oct 2026 12:00:00 GMT\r\n"
+			+ "Server: Apache\r\n"
+			+ "X-Frame-Options: SAMEORIGIN\r\n"
+			+ "Strict-Transport-Security: max-age=31536000\r\n"
+			+ "Cache-Control: no-store, no-cache, must-revalidate\r\n"
+			+ "Pragma: no-cache\r\n"
+			+ "Expires: Thu, 19 Nov 1981 08:52:00 GMT\r\n"
+			+ "Set-Cookie: EROS_SSO_production=abcdef0123456789; path=/; "
+			+ "domain=.usgs.gov; secure; HttpOnly\r\n"
+			+ "Set-Cookie: PHPSESSID=0123456789abcdef; path=/; HttpOnly\r\n"
+			+ "Location: https://earthexplorer.usgs.gov/\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "Content-Type: text/html; charset=UTF-8\r\n"
+			+ "\r\n";
+
+	private static HTTPHeaderParser parse(final String response)
+			throws IOException
+	{
+		final HTTPHeaderParser parser = new HTTPHeaderParser();
+		assertTrue(parser.parse(ByteBuffer.wrap(response
+				.getBytes(StandardCharsets.ISO_8859_1))));
+		return parser;
+	}
+
+	@Test
+	public void testStatusAndHeaders() throws IOException
+	{
+		final HTTPHeaderParser parser = parse(REDIRECT);
+		assertEquals(302, parser.getResponseCode());
+		assertTrue(parser.isHTTP11());
+		assertEquals("HTTP/1.1 302 Found", parser.getStatusLine());
+
+		final HTTPHeaders headers = parser.getHeaders();
+		assertEquals(12, headers.size());
+		assertEquals("https://earthexplorer.usgs.gov/",
+				headers.getFirst("location"));
+		assertEquals("Server", headers.getName(1));
+		assertNull(headers.getFirst("Transfer-Encoding"));
+	}
+
+	@Test
+	public void testDuplicateSetCookie() throws IOException
+	{
+		final HTTPHeaders headers = parse(REDIRECT).getHeaders();
+		final List<String> cookies = headers.getAll("set-cookie");
+		assertEquals(2, cookies.size());
+		assertTrue(cookies.get(0).startsWith("EROS_SSO_production="));
+		assertTrue(cookies.get(1).startsWith("PHPSESSID="));
+		assertEquals(cookies, headers.asMap().get("SET-COOKIE"));
+	}
+
+	@Test
+	public void testFoldedHeader() throws IOException
+	{
+		final HTTPHeaders headers = parse("HTTP/1.1 200 OK\r\n"
+				+ "X-Long: first part  \r\n"
+				+ "  second part\r\n"
+				+ "\tthird part\r\n"
+				+ "Server: x\r\n\r\n").getHeaders();
+		assertEquals(2, headers.size());
+		assertEquals("first part second part third part",
+				headers.getFirst("X-Long"));
+		assertEquals("x", headers.getFirst("Server"));
+	}
+
+	@Test
+	public void testBareLF() throws IOException
+	{
+		final HTTPHeaderParser parser = parse("HTTP/1.0 404 Not Found\n"
+				+ "Content-Length: 5\n"
+				+ "Connection: close\r\n\nbody!");
+		assertEquals(404, parser.getResponseCode());
+		assertFalse(parser.isHTTP11());
+		assertEquals("5", parser.getHeaders().getFirst("Content-Length"));
+		assertEquals("close", parser.getHeaders().getFirst("Connection"));
+	}
+
+	@Test
+	public void testLeavesBufferAtBody() throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.wrap("HTTP/1.1 200 OK\r\n\r\nbody"
+				.getBytes(StandardCharsets.ISO_8859_1));
+		assertTrue(new HTTPHeaderParser().parse(buf));
+		assertEquals(4, buf.remaining());
+		assertEquals('b', buf.get());
+	}
+
+	@Test
+	public void testFedAByteAtATime() throws IOException
+	{
+		final byte[] bytes = REDIRECT.getBytes(StandardCharsets.ISO_8859_1);
+		final HTTPHeaderParser parser = new HTTPHeaderParser();
+		for (int i = 0; i < bytes.length - 1; ++i)
+		{
+			assertFalse(parser.parse(ByteBuffer.wrap(bytes, i, 1)));
+		}
+		assertTrue(parser.parse(ByteBuffer.wrap(bytes, bytes.length - 1, 1)));
+		assertEquals(parse(REDIRECT).getHeaders().asMap(), parser.getHeaders()
+				.asMap());
+	}
+
+	@Test
+	public void testReset() throws IOException
+	{
+		final HTTPHeaderParser parser = parse(REDIRECT);
+		final HTTPHeaders first = parser.getHeaders();
+		parser.reset();
+		assertFalse(parser.isStarted());
+		assertTrue(parser.parse(ByteBuffer.wrap("HTTP/1.1 204 No Content\r\n\r\n"
+				.getBytes(StandardCharsets.ISO_8859_1))));
+		assertEquals(204, parser.getResponseCode());
+		assertEquals(0, parser.getHeaders().size());
+		// copies taken before the reset are unaffected.
+		assertEquals("0", first.getFirst("Content-Length"));
+	}
+
+	@Test
+	public void testOversizeHeader()
+	{
+		final char[] value = new char[70 * 1024];
+		Arrays.fill(value, 'a');
+		try
+		{
+			parse("HTTP/1.1 200 OK\r\nX-Big: " + new String(value) + "\r\n\r\n");
+			fail("Parsed " + value.length + " bytes of headers");
+		} catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("larger than"));
+		}
+	}
+
+	@Test
+	public void testBadStatusLine()
+	{
+		for (String status : new String[] { "HTTP/1.1 20 OK", "HTTP/1.1 2x0 OK",
+				"ICY 200 OK", "HTTP/1.1 200OK" })
+		{
+			try
+			{
+				parse(status + "\r\n\r\n");
+				fail("Parsed " + status);
+			} catch (IOException e)
+			{
+				assertTrue(e.getMessage().startsWith("Bad status line"));
+			}
+		}
+	}
+
+	/**
+	 * Checks the parser finds the same headers as the old
+	 * readLine/split/HashMap path on the same response.
+	 */
+	@Test
+	public void testAgainstLineParsing() throws IOException
+	{
+		final byte[] bytes = REDIRECT.getBytes(StandardCharsets.ISO_8859_1);
+		final HTTPHeaderParser parser = new HTTPHeaderParser();
+
+		final Map<String, List<String>> old = parseLines(bytes);
+		parser.parse(ByteBuffer.wrap(bytes));
+		final HTTPHeaders headers = parser.getHeaders();
+		for (Map.Entry<String, List<String>> ent : old.entrySet())
+		{
+			assertEquals(ent.getValue(), headers.getAll(ent.getKey()));
+		}
+	}
+
+	/**
+	 * How HTTPConnection read headers before HTTPHeaderParser.
+	 */
+	private static Map<String, List<String>> parseLines(final byte[] bytes)
+			throws IOException
+	{
+		final InputStream is = new ByteArrayInputStream(bytes);
+		final String[] status = readLine(is).split(" ", 3);
+		Integer.valueOf(status[1]);
+		final Map<String, List<String>> fields = new HashMap<>();
+		String line;
+		while ((line = readLine(is)) != null && !"".equals(line))
+		{
+			final String[] parts = line.split(": ");
+			if (!fields.containsKey(parts[0]))
+			{
+				fields.put(parts[0], new ArrayList<String>());
+			}
+			fields.get(parts[0]).add(parts[1]);
+		}
+		return fields;
+	}
+
+	private static String readLine(final InputStream is) throws IOException
+	{
+		final StringBuilder bld = new StringBuilder();
+		int chr;
+		while ((chr = is.read()) != -1)
+		{
+			if (chr == '\n')
+			{
+				final int len = bld.length();
+				if (len > 0 && bld.charAt(len - 1) == '\r')
+				{
+					bld.setLength(len - 1);
+				}
+				return bld.toString();
+			}
+			bld.append((char) chr);
+		}
+		return bld.length() == 0 ? null : bld.toString();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * HTTPHeadersTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link HTTPHeaders#getContentLength()}, and that a bad
+ * Content-Length fails a request as an IOException would.
+ *
+ * @author Sean
+ *
+ */
+public class HTTPHeadersTest
+{
+
+	private static HTTPHeaders parse(final String headers) throws IOException
+	{
+		final HTTPHeaderParser parser = new HTTPHeaderParser();
+		parser.parse(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n" + headers + "\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1)));
+		return parser.getHeaders();
+	}
+
+	@Test
+	public void testContentLength() throws IOException
+	{
+		assertEquals(1234, parse("Content-Length: 1234\r\n").getContentLength());
+		assertEquals(0, parse("content-length:0\r\n").getContentLength());
+		assertEquals(-1, parse("Server: x\r\n").getContentLength());
+	}
+
+	@Test
+	public void testRepeatedContentLength() throws IOException
+	{
+		assertEquals(10, parse("Content-Length: 10\r\nContent-Length: 10\r\n")
+				.getContentLength());
+		assertEquals(10, parse("Content-Length: 10, 10\r\n").getContentLength());
+	}
+
+	@Test
+	public void testBadContentLength() throws IOException
+	{
+		for (String bad : new String[] { "Content-Length: abc\r\n",
+				"Content-Length: -5\r\n", "Content-Length: \r\n",
+				"Content-Length: 10\r\nContent-Length: 11\r\n",
+				"Content-Length: 10, 12\r\n",
+				"Content-Length: 99999999999999999999\r\n" })
+		{
+			try
+			{
+				parse(bad).getContentLength();
+				fail("Accepted " + bad);
+			} catch (ProtocolException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testBadContentLengthFailsTheRequest() throws Exception
+	{
+		try (ServerSocket server = new ServerSocket(0))
+		{
+			final Thread serve = new Thread(() ->
+			{
+				try (Socket s = server.accept())
+				{
+					final InputStream in = s.getInputStream();
+					// read up to the blank line that ends the request.
+					int tail = 0;
+					int chr;
+					while (tail != 0x0d0a0d0a && (chr = in.read()) != -1)
+					{
+						tail = tail << 8 | chr;
+					}
+					final OutputStream out = s.getOutputStream();
+					out.write("HTTP/1.1 200 OK\r\nContent-Length: 1O\r\n\r\n0123456789"
+							.getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				} catch (IOException e)
+				{
+					// the client gave up.
+				}
+			});
+			serve.start();
+			final HTTPConnection conn = new HTTPConnection("http://127.0.0.1:"
+					+ server.getLocalPort() + "/");
+			assertNull(conn.getResponse());
+			serve.join();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * RetryPolicyTest.java
+ *
+ * Copyright (C) 2014 Sean P Madden
+ *
+ * The MIT License (MIT)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.smmsp.core.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.Test;
+
+/**
+ * Tests for which failures {@link RetryPolicy} tries again.
+ *
+ * @author Sean
+ *
+ */
+public class RetryPolicyTest
+{
+
+	@Test
+	public void testNetworkFailuresAreTransient()
+	{
+		assertTrue(RetryPolicy.isTransient(new SocketTimeoutException(
+				"Read timed out")));
+		assertTrue(RetryPolicy.isTransient(new ConnectException(
+				"Connection refused")));
+		assertTrue(RetryPolicy.isTransient(new SocketException(
+				"Connection reset")));
+		assertTrue(RetryPolicy.isTransient(new EOFException(
+				"Connection closed with 10 bytes of the body left unread")));
+	}
+
+	@Test
+	public void testThrottlingIsTransient()
+	{
+		assertTrue(RetryPolicy.isTransient(new HTTPStatusException(503,
+				"Unavailable")));
+		assertTrue(RetryPolicy.isTransient(new HTTPStatusException(429,
+				"Too many requests")));
+		assertFalse(RetryPolicy.isTransient(new HTTPStatusException(404,
+				"Not found")));
+	}
+
+	@Test
+	public void testLocalFailuresAreNot()
+	{
+		assertFalse(RetryPolicy.isTransient(new FileSystemException(
+				"n10_w009_1arc_v3.dt2.part", null, "No space left on device")));
+		assertFalse(RetryPolicy.isTransient(new AccessDeniedException(
+				"n10_w009_1arc_v3.dt2")));
+		assertFalse(RetryPolicy.isTransient(new IOException(
+				"No space left on device")));
+		assertFalse(RetryPolicy.isTransient(new ProtocolException(
+				"Bad Content-Length: 1O")));
+		assertFalse(RetryPolicy.isTransient(null));
+	}
+
+	@Test
+	public void testHandshakeFailuresAreNot()
+	{
+		final SSLHandshakeException handshake = new SSLHandshakeException(
+				"Remote host terminated the handshake");
+		// the JDK reports a server hanging up mid handshake this way.
+		handshake.initCause(new EOFException("SSL peer shut down incorrectly"));
+		assertFalse(RetryPolicy.isTransient(handshake));
+		assertFalse(RetryPolicy.isTransient(new IOException("No response",
+				handshake)));
+	}
+
+	@Test
+	public void testWrappedFailures()
+	{
+		final SocketTimeoutException timeout = new SocketTimeoutException(
+				"Read timed out");
+		assertTrue(RetryPolicy.isTransient(new CompletionException(timeout)));
+		assertTrue(RetryPolicy.isTransient(new ExecutionException(timeout)));
+		assertTrue(RetryPolicy.isTransient(new UncheckedIOException(timeout)));
+		assertTrue(RetryPolicy.isTransient(new IOException(
+				"No response from dds.cr.usgs.gov", timeout)));
+		assertFalse(RetryPolicy.isTransient(new CompletionException(
+				new AccessDeniedException("n10_w009_1arc_v3.dt2"))));
+	}
+
+	@Test
+	public void testNextDelay()
+	{
+		final RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+		final IOException reset = new SocketException("Connection reset");
+		for (int i = 0; i < 100; ++i)
+		{
+			final long delay = policy.nextDelayMillis(2, reset);
+			assertTrue(delay >= 0 && delay <= 200);
+		}
+		assertEquals(-1, policy.nextDelayMillis(3, reset));
+		assertEquals(-1, policy.nextDelayMillis(1, new AccessDeniedException(
+				"n10_w009_1arc_v3.dt2")));
+		assertTrue(policy.nextDelayMillis(1, new HTTPStatusException(429,
+				"Too many requests", "5")) >= 5000);
+	}
+}